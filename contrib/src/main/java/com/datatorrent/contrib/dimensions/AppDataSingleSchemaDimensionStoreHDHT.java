@@ -4,22 +4,31 @@
  */
 package com.datatorrent.contrib.dimensions;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datatorrent.lib.appdata.gpo.GPOUtils;
 import com.datatorrent.lib.appdata.schemas.*;
 import com.datatorrent.lib.dimensions.AbstractDimensionsComputationFlexibleSingleSchema;
 import com.datatorrent.lib.dimensions.DimensionsDescriptor;
 import com.datatorrent.lib.dimensions.DimensionsEvent.Aggregate;
+import com.datatorrent.lib.dimensions.DimensionsEvent.EventKey;
 
 import com.datatorrent.api.Context.OperatorContext;
 
@@ -27,6 +36,14 @@ import com.datatorrent.api.Context.OperatorContext;
  * This is a dimensions store which stores data corresponding to one {@link DimensionalSchema} into an HDHT bucket.
  * This operator requires an upstream dimensions computation operator, to produce {@link Aggregate}s with the same
  * link {@link DimensionalSchema} and schemaID.
+ * <p>
+ * By default all the data is stored in one bucket. When a {@link #setTimeRangeMillis(long) time range} or a number of
+ * {@link #setKeyPartitions(int) key partitions} is set, the data is stored in a bucket for each time range and
+ * key partition instead. The low {@link #KEY_PARTITION_BITS} bits of the bucketID hold the key partition, the next
+ * {@link #TIME_RANGE_BITS} bits the index of the time range and the remaining bits the configured bucketID. Queries
+ * then only read the buckets of the queried times, and time ranges which are older than the
+ * {@link #setRetentionMillis(long) retention} are dropped by deleting their buckets.
+ * </p>
  *
  * @displayName Simple App Data Dimensions Store
  * @category DT View Integration
@@ -39,6 +56,22 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
    * This is the id of the default bucket that data is stored into.
    */
   public static final long DEFAULT_BUCKET_ID = 0;
+  /**
+   * The number of bits of a bucketID which hold the key partition.
+   */
+  public static final int KEY_PARTITION_BITS = 8;
+  /**
+   * The number of bits of a bucketID which hold the index of the time range.
+   */
+  public static final int TIME_RANGE_BITS = 40;
+  /**
+   * The maximum number of key partitions.
+   */
+  public static final int MAX_KEY_PARTITIONS = 1 << KEY_PARTITION_BITS;
+  /**
+   * The mask for the index of the time range.
+   */
+  private static final long TIME_RANGE_MASK = (1L << TIME_RANGE_BITS) - 1;
   /**
    * This is the JSON which defines this operator's {@link DimensionalConfigurationSchema}.
    */
@@ -65,6 +98,31 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
    * The ID of the HDHT bucket that this operator stores data in.
    */
   private long bucketID = DEFAULT_BUCKET_ID;
+  /**
+   * The length of the time range which is stored in one bucket in milliseconds. 0 stores all times in one bucket.
+   */
+  @Min(0)
+  private long timeRangeMillis = 0;
+  /**
+   * The number of partitions that the keys of a time range are hashed into.
+   */
+  @Min(1)
+  private int keyPartitions = 1;
+  /**
+   * The time for which data is retained in milliseconds, relative to the latest timestamp received by this
+   * operator. 0 retains all data.
+   */
+  @Min(0)
+  private long retentionMillis = 0;
+  /**
+   * The latest timestamp received by this operator.
+   */
+  private long latestTimestamp = Long.MIN_VALUE;
+  /**
+   * The buckets of expired time ranges which are deleted once the window in which they expired is committed.
+   * The key in this map is the bucketID. The value in this map is the windowID in which the bucket expired.
+   */
+  protected Map<Long, Long> expiredBuckets = Maps.newHashMap();
   /**
    * This flag determines whether or not the lists of all possible values for the keys in this operators {@link DimensionalSchema}
    * are updated based on the key values seen in {@link Aggregate}s received by this operator.
@@ -85,6 +143,11 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
   public void processEvent(Aggregate gae) {
     super.processEvent(gae);
 
+    if(retentionMillis > 0 &&
+       !isExpired(gae.getEventKey())) {
+      latestTimestamp = Math.max(latestTimestamp, getTimestamp(gae.getEventKey()));
+    }
+
     if(!dimensionalSchema.isPredefinedFromTo() &&
        gae.getKeys().getFieldDescriptor().getFields().getFields().contains(DimensionsDescriptor.DIMENSION_TIME)) {
 
@@ -119,7 +182,133 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
   @Override
   protected long getBucketKey(Aggregate event)
   {
-    return bucketID;
+    return getBucketForSchema(event.getEventKey());
+  }
+
+  @Override
+  protected long getBucketForSchema(EventKey eventKey)
+  {
+    if(!isTimePartitioned()) {
+      return bucketID;
+    }
+
+    long timeRange = timeRangeMillis == 0 ? 0 : getTimestamp(eventKey) / timeRangeMillis;
+
+    return (bucketID << (TIME_RANGE_BITS + KEY_PARTITION_BITS)) |
+           ((timeRange & TIME_RANGE_MASK) << KEY_PARTITION_BITS) |
+           getKeyPartition(eventKey);
+  }
+
+  /**
+   * Gets the key partition of the given {@link EventKey}.
+   * @param eventKey The {@link EventKey} whose key partition is computed.
+   * @return The key partition of the given {@link EventKey}.
+   */
+  private int getKeyPartition(EventKey eventKey)
+  {
+    if(keyPartitions == 1) {
+      return 0;
+    }
+
+    return (GPOUtils.hashcode(eventKey.getKey()) & Integer.MAX_VALUE) % keyPartitions;
+  }
+
+  /**
+   * Gets the index of the time range which is stored in the given bucket.
+   * @param bucket The bucketID.
+   * @return The index of the time range which is stored in the given bucket.
+   */
+  private static long getTimeRange(long bucket)
+  {
+    return (bucket >>> KEY_PARTITION_BITS) & TIME_RANGE_MASK;
+  }
+
+  /**
+   * Determines whether the given time range is older than the retained data. The first time range also holds
+   * the keys without a time, so it never expires.
+   * @param timeRange The index of the time range.
+   * @return True if the given time range is expired, false otherwise.
+   */
+  private boolean isExpiredTimeRange(long timeRange)
+  {
+    return retentionMillis > 0 &&
+           timeRangeMillis > 0 &&
+           timeRange > 0 &&
+           latestTimestamp != Long.MIN_VALUE &&
+           (timeRange + 1) * timeRangeMillis <= latestTimestamp - retentionMillis;
+  }
+
+  @Override
+  protected boolean isExpired(EventKey eventKey)
+  {
+    return isExpiredTimeRange(getTimeRange(getBucketForSchema(eventKey)));
+  }
+
+  /**
+   * When key partitions are used, {@link Aggregate}s are partitioned by their key partition, so that all the
+   * {@link Aggregate}s of a bucket are received by the same partition of this operator.
+   */
+  @Override
+  public int getPartitionGAE(Aggregate inputEvent)
+  {
+    if(keyPartitions > 1) {
+      return getKeyPartition(inputEvent.getEventKey());
+    }
+
+    return super.getPartitionGAE(inputEvent);
+  }
+
+  /**
+   * Returns true if data is stored in a bucket for each time range and key partition.
+   * @return True if data is stored in a bucket for each time range and key partition.
+   */
+  public boolean isTimePartitioned()
+  {
+    return timeRangeMillis > 0 || keyPartitions > 1;
+  }
+
+  @Override
+  public void endWindow()
+  {
+    //The buckets of expired time ranges are not written to anymore.
+    for(Iterator<Long> bucketIterator = buckets.iterator();
+        bucketIterator.hasNext();) {
+      long bucket = bucketIterator.next();
+
+      if(isExpiredTimeRange(getTimeRange(bucket))) {
+        LOG.debug("Bucket {} expired", bucket);
+        bucketIterator.remove();
+        futureBuckets.remove(bucket);
+        expiredBuckets.put(bucket, currentWindowID);
+      }
+    }
+
+    super.endWindow();
+  }
+
+  @Override
+  public void committed(long windowId)
+  {
+    super.committed(windowId);
+
+    //Expired buckets are deleted when they can't be recovered anymore.
+    for(Iterator<Map.Entry<Long, Long>> expiredIterator = expiredBuckets.entrySet().iterator();
+        expiredIterator.hasNext();) {
+      Map.Entry<Long, Long> expired = expiredIterator.next();
+
+      if(expired.getValue() > windowId) {
+        continue;
+      }
+
+      try {
+        deleteBucket(expired.getKey());
+      }
+      catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+
+      expiredIterator.remove();
+    }
   }
 
   @Override
@@ -127,7 +316,19 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
   {
     super.setup(context);
 
-    this.buckets = Sets.newHashSet(bucketID);
+    if(isTimePartitioned()) {
+      Preconditions.checkArgument(keyPartitions <= MAX_KEY_PARTITIONS,
+                                  "keyPartitions " + keyPartitions + " exceeds " + MAX_KEY_PARTITIONS);
+      Preconditions.checkArgument(timeRangeMillis == 0 || retentionMillis > 0,
+                                  "a retention is required when a time range is set");
+      Preconditions.checkArgument(bucketID >= 0 &&
+                                  bucketID < (1L << (Long.SIZE - 1 - TIME_RANGE_BITS - KEY_PARTITION_BITS)),
+                                  "bucketID " + bucketID + " is out of range for the time partitioned layout");
+      //The buckets are added when data is first stored in them.
+    }
+    else {
+      this.buckets = Sets.newHashSet(bucketID);
+    }
 
     if(!dimensionalSchema.isPredefinedFromTo()) {
       if(minTimestamp != null) {
@@ -189,6 +390,66 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
     return bucketID;
   }
 
+  /**
+   * Gets the length of the time range which is stored in one bucket in milliseconds.
+   * @return The length of the time range which is stored in one bucket in milliseconds.
+   */
+  public long getTimeRangeMillis()
+  {
+    return timeRangeMillis;
+  }
+
+  /**
+   * Sets the length of the time range which is stored in one bucket in milliseconds. A
+   * {@link #setRetentionMillis(long) retention} needs to be set as well, so that the buckets of old time ranges are
+   * dropped. The default is 0, which stores all times in one bucket.
+   * @param timeRangeMillis The length of the time range which is stored in one bucket in milliseconds.
+   */
+  public void setTimeRangeMillis(long timeRangeMillis)
+  {
+    this.timeRangeMillis = timeRangeMillis;
+  }
+
+  /**
+   * Gets the number of partitions that the keys of a time range are hashed into.
+   * @return The number of partitions that the keys of a time range are hashed into.
+   */
+  public int getKeyPartitions()
+  {
+    return keyPartitions;
+  }
+
+  /**
+   * Sets the number of partitions that the keys of a time range are hashed into. Each key partition is stored in
+   * its own bucket, and the input of the operator is partitioned by key partition. The default is 1.
+   * @param keyPartitions The number of partitions that the keys of a time range are hashed into.
+   */
+  public void setKeyPartitions(int keyPartitions)
+  {
+    this.keyPartitions = keyPartitions;
+  }
+
+  /**
+   * Gets the time for which data is retained in milliseconds.
+   * @return The time for which data is retained in milliseconds.
+   */
+  public long getRetentionMillis()
+  {
+    return retentionMillis;
+  }
+
+  /**
+   * Sets the time for which data is retained in milliseconds. The buckets of time ranges which end before the
+   * latest received timestamp minus the retention are deleted, and late data for these time ranges is dropped.
+   * The retention should be longer than the largest {@link TimeBucket} of the schema. This requires a
+   * time range to be set. The default is 0, which retains all data.
+   * @param retentionMillis The time for which data is retained in milliseconds.
+   */
+  public void setRetentionMillis(long retentionMillis)
+  {
+    this.retentionMillis = retentionMillis;
+  }
+
   /**
    * Sets the JSON representing the {@link DimensionalConfigurationSchema} for this operator.
    * @param configurationSchemaJSON The JSON representing the {@link DimensionalConfigurationSchema} for this operator.
@@ -280,4 +541,6 @@ public class AppDataSingleSchemaDimensionStoreHDHT extends AbstractAppDataDimens
   {
     this.bucketID = bucketID;
   }
+
+  private static final Logger LOG = LoggerFactory.getLogger(AppDataSingleSchemaDimensionStoreHDHT.class);
 }
@@ -4,6 +4,8 @@
  */
 package com.datatorrent.contrib.dimensions;
 
+import java.io.IOException;
+
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,7 +32,9 @@ import com.datatorrent.lib.appdata.schemas.Fields;
 import com.datatorrent.lib.appdata.schemas.Result;
 import com.datatorrent.lib.appdata.schemas.SchemaRegistry;
 import com.datatorrent.lib.dimensions.DimensionsEvent;
+import com.datatorrent.lib.dimensions.DimensionsEvent.Aggregate;
 import com.datatorrent.lib.dimensions.DimensionsEvent.EventKey;
+import com.datatorrent.lib.dimensions.aggregator.IncrementalAggregator;
 import com.datatorrent.lib.dimensions.aggregator.OTFAggregator;
 
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
@@ -72,6 +76,11 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
     DimensionalConfigurationSchema configurationSchema = schemaDimensional.getDimensionalConfigurationSchema();
     LOG.debug("Processing query {} with countdown {}", query.getId(), query.getCountdown());
 
+    if(qm.getRollupEventKeys() != null) {
+      //The time buckets of the query are rolled up from a finer time bucket
+      return executeRollupQuery(query, qm, queueContext, configurationSchema);
+    }
+
     //The lists two lists below are parallel lists. elements at the same indices correspond to each other.
     //Each index corresponds to a time bucket
     //Each map is a map from aggregator name to the value for that aggregator
@@ -90,6 +99,21 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
     //list of event keys
     List<Map<String, EventKey>> eventKeys = qm.getEventKeys();
 
+    //read the missing results of all the time buckets at once
+    List<HDSQuery> allQueries = Lists.newArrayList();
+    List<EventKey> allEventKeys = Lists.newArrayList();
+
+    for(int index = 0; index < queries.size(); index++) {
+      Map<String, EventKey> aggregatorToEventKey = eventKeys.get(index);
+
+      for(Map.Entry<String, HDSQuery> entry: queries.get(index).entrySet()) {
+        allQueries.add(entry.getValue());
+        allEventKeys.add(aggregatorToEventKey.get(entry.getKey()));
+      }
+    }
+
+    fetchResults(allQueries, allEventKeys);
+
     boolean allSatisfied = true;
 
     //loops through all of the issues HDSQueries
@@ -127,7 +151,7 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
           //TODO this is inefficient
           //Check if the uncommitted HDHT cache has the data
           Slice keySlice = new Slice(operator.getEventKeyBytesGAE(eventKey));
-          byte[] value = operator.getUncommitted(operator.getBucketForSchema(schemaDimensional.getSchemaID()), keySlice);
+          byte[] value = operator.getUncommitted(operator.getBucketForSchema(eventKey), keySlice);
 
           if(value != null) {
             LOG.debug("Retrieved from uncommited");
@@ -179,6 +203,210 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
     return pruneResults(keys, results, query, configurationSchema, queueContext);
   }
 
+  /**
+   * This method executes a query whose time buckets are rolled up from a finer time bucket. The {@link Aggregate} of
+   * each time bucket of the query is the aggregation of the {@link Aggregate}s of its finer time buckets. Complete
+   * rollups are cached by the operator, so repeated queries don't need to read the finer time buckets again.
+   * @param query The query to execute.
+   * @param qm The query meta of the query.
+   * @param queueContext The countdown for the query.
+   * @param configurationSchema The dimensional configuration schema.
+   * @return The result of the query, or null if the result is not complete yet.
+   */
+  private Result executeRollupQuery(DataQueryDimensional query,
+                                    QueryMeta qm,
+                                    MutableLong queueContext,
+                                    DimensionalConfigurationSchema configurationSchema)
+  {
+    //the version has to be read before any of the finer time buckets, so that stale rollups are not cached
+    long version = operator.getRollupCacheVersion();
+
+    List<Map<String, EventKey>> eventKeys = qm.getEventKeys();
+    List<Map<String, List<EventKey>>> rollupEventKeys = qm.getRollupEventKeys();
+    List<Map<String, List<HDSQuery>>> rollupQueries = qm.getRollupHdsQueries();
+
+    //read the finer time buckets of all the rollups which are not cached
+    List<HDSQuery> allQueries = Lists.newArrayList();
+    List<EventKey> allEventKeys = Lists.newArrayList();
+
+    for(int index = 0; index < eventKeys.size(); index++) {
+      for(Map.Entry<String, EventKey> entry: eventKeys.get(index).entrySet()) {
+        if(operator.getRollup(entry.getValue()) != null) {
+          continue;
+        }
+
+        allQueries.addAll(rollupQueries.get(index).get(entry.getKey()));
+        allEventKeys.addAll(rollupEventKeys.get(index).get(entry.getKey()));
+      }
+    }
+
+    fetchResults(allQueries, allEventKeys);
+
+    List<Map<String, GPOMutable>> keys = Lists.newArrayList();
+    List<Map<String, GPOMutable>> results = Lists.newArrayList();
+    boolean allSatisfied = true;
+
+    //loop through each time bucket
+    for(int index = 0; index < eventKeys.size(); index++) {
+      Map<String, GPOMutable> aggregatorKeys = Maps.newHashMap();
+      Map<String, GPOMutable> aggregatorResults = Maps.newHashMap();
+
+      //loop over aggregators
+      for(Map.Entry<String, EventKey> entry: eventKeys.get(index).entrySet()) {
+        String aggregatorName = entry.getKey();
+        EventKey eventKey = entry.getValue();
+        Aggregate rollup = operator.getRollup(eventKey);
+
+        if(rollup == null) {
+          List<EventKey> fineEventKeys = rollupEventKeys.get(index).get(aggregatorName);
+          List<HDSQuery> fineQueries = rollupQueries.get(index).get(aggregatorName);
+          IncrementalAggregator aggregator = operator.getAggregator(eventKey.getAggregatorID());
+          boolean complete = true;
+
+          //aggregate the finer time buckets in time order
+          for(int fineIndex = 0; fineIndex < fineEventKeys.size(); fineIndex++) {
+            HDSQuery hdsQuery = fineQueries.get(fineIndex);
+            Aggregate gae = getAggregate(fineEventKeys.get(fineIndex), hdsQuery);
+
+            if(gae == null) {
+              if(!hdsQuery.processed) {
+                //The finer time bucket may have data which wasn't read yet
+                complete = false;
+              }
+            }
+            else if(rollup == null) {
+              rollup = new Aggregate(new EventKey(eventKey), new GPOMutable(gae.getAggregates()));
+            }
+            else {
+              aggregator.aggregate(rollup, gae);
+            }
+
+            if(hdsQuery.processed) {
+              //Refresh the result of the HDSQuery if it's processed.
+              hdsQuery.processed = false;
+            }
+          }
+
+          if(!complete) {
+            allSatisfied = false;
+          }
+          else if(rollup != null) {
+            operator.putRollup(eventKey, rollup, version);
+          }
+        }
+        else {
+          LOG.debug("Retrieved rollup from cache.");
+        }
+
+        if(rollup != null) {
+          aggregatorKeys.put(aggregatorName, rollup.getKeys());
+          aggregatorResults.put(aggregatorName, rollup.getAggregates());
+        }
+      }
+
+      if(!aggregatorResults.isEmpty()) {
+        //Add results to the result lists
+        keys.add(aggregatorKeys);
+        results.add(aggregatorResults);
+      }
+    }
+
+    if(!query.getIncompleteResultOK() && !allSatisfied && queueContext.longValue() > 1L) {
+      //Same as for queries which are not rolled up, wait for the missing results while the query has time
+      //in its countdown.
+      return null;
+    }
+
+    return pruneResults(keys, results, query, configurationSchema, queueContext);
+  }
+
+  /**
+   * This is a helper method which gets the {@link Aggregate} for the given {@link EventKey} from the operator's cache,
+   * the uncommitted HDHT cache or the result of the given {@link HDSQuery}.
+   * @param eventKey The {@link EventKey} whose {@link Aggregate} needs to be found.
+   * @param hdsQuery The {@link HDSQuery} issued for the given {@link EventKey}.
+   * @return The {@link Aggregate} for the given {@link EventKey}, or null if it could not be found.
+   */
+  private Aggregate getAggregate(EventKey eventKey, HDSQuery hdsQuery)
+  {
+    Aggregate gae = operator.cache.get(eventKey);
+
+    if(gae != null) {
+      return gae;
+    }
+
+    byte[] value = operator.getUncommitted(operator.getBucketForSchema(eventKey), hdsQuery.key);
+
+    if(value == null) {
+      value = hdsQuery.result;
+    }
+
+    if(value == null) {
+      return null;
+    }
+
+    return operator.fromKeyValueGAE(hdsQuery.key, value);
+  }
+
+  /**
+   * This method reads the results of all the {@link HDSQuery}s which don't have a result yet, with one multi-get
+   * per HDHT bucket. This way the results of all the time buckets of a query are available when the query is executed,
+   * instead of being filled in by separately processed {@link HDSQuery}s over several windows. The read
+   * {@link HDSQuery}s are marked as processed, so a missing result means that there is no data for the key.
+   * @param queries The {@link HDSQuery}s to read.
+   * @param eventKeys The {@link EventKey}s of the given {@link HDSQuery}s.
+   */
+  private void fetchResults(List<HDSQuery> queries,
+                            List<EventKey> eventKeys)
+  {
+    //The HDSQueries without a result, grouped by bucket
+    Map<Long, List<HDSQuery>> bucketToQueries = Maps.newHashMap();
+
+    for(int index = 0; index < queries.size(); index++) {
+      HDSQuery hdsQuery = queries.get(index);
+
+      if(hdsQuery.result != null ||
+         operator.cache.containsKey(eventKeys.get(index))) {
+        continue;
+      }
+
+      List<HDSQuery> bucketQueries = bucketToQueries.get(hdsQuery.bucketKey);
+
+      if(bucketQueries == null) {
+        bucketQueries = Lists.newArrayList();
+        bucketToQueries.put(hdsQuery.bucketKey, bucketQueries);
+      }
+
+      bucketQueries.add(hdsQuery);
+    }
+
+    for(Map.Entry<Long, List<HDSQuery>> entry: bucketToQueries.entrySet()) {
+      List<HDSQuery> bucketQueries = entry.getValue();
+      List<Slice> keys = Lists.newArrayListWithCapacity(bucketQueries.size());
+
+      for(HDSQuery hdsQuery: bucketQueries) {
+        keys.add(hdsQuery.key);
+      }
+
+      List<byte[]> values;
+
+      try {
+        values = operator.getAll(entry.getKey(), keys);
+      }
+      catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+
+      LOG.debug("Fetched {} keys from bucket {}", keys.size(), entry.getKey());
+
+      for(int index = 0; index < bucketQueries.size(); index++) {
+        HDSQuery hdsQuery = bucketQueries.get(index);
+        hdsQuery.result = values.get(index);
+        hdsQuery.processed = true;
+      }
+    }
+  }
+
   /**
    * This method is responsible for pruning result lists. Pruning result lists is necessary
    * because we only want to return results that the user requested. Why would we have results
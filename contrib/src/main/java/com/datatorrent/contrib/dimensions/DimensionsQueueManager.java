@@ -27,6 +27,7 @@ import com.datatorrent.lib.appdata.schemas.DimensionalConfigurationSchema;
 import com.datatorrent.lib.appdata.schemas.DimensionalSchema;
 import com.datatorrent.lib.appdata.schemas.FieldsDescriptor;
 import com.datatorrent.lib.appdata.schemas.SchemaRegistry;
+import com.datatorrent.lib.appdata.schemas.TimeBucket;
 import com.datatorrent.lib.dimensions.DimensionsDescriptor;
 import com.datatorrent.lib.dimensions.DimensionsEvent.EventKey;
 
@@ -73,6 +74,19 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
     DimensionalSchema schemaDimensional = (DimensionalSchema) schemaRegistry.getSchema(query.getSchemaKeys());
     DimensionalConfigurationSchema configurationSchema = schemaDimensional.getDimensionalConfigurationSchema();
     Integer dimensionsDescriptorID = configurationSchema.getDimensionsDescriptorToID().get(query.getDimensionsDescriptor());
+    //The finer time bucket which is rolled up to answer the query, if the query's time bucket is not stored
+    TimeBucket rollupTimeBucket = null;
+
+    if(dimensionsDescriptorID == null &&
+       operator.isRollupTimeBuckets() &&
+       query.isHasTime()) {
+      dimensionsDescriptorID = getRollupDimensionsDescriptorID(configurationSchema, query.getDimensionsDescriptor());
+
+      if(dimensionsDescriptorID != null) {
+        rollupTimeBucket = configurationSchema.getDimensionsDescriptorIDToDimensionsDescriptor().get(dimensionsDescriptorID).getTimeBucket();
+        LOG.debug("Rolling up {} to {}", rollupTimeBucket, query.getTimeBucket());
+      }
+    }
 
     if(dimensionsDescriptorID == null) {
       //Dimension combination not found
@@ -111,12 +125,19 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
       //build the event key for each aggregator
       LOG.debug("querying for aggregator {}", aggregatorName);
       Integer aggregatorID = configurationSchema.getAggregatorRegistry().getIncrementalAggregatorNameToID().get(aggregatorName);
+
+      if(rollupTimeBucket != null &&
+         operator.getAggregator(aggregatorID).getMetaDataDescriptor() != null) {
+        //The meta data of aggregations can't be rolled up.
+        LOG.debug("Aggregator {} can't be rolled up.", aggregatorName);
+        return false;
+      }
+
       EventKey eventKey = new EventKey(schemaDimensional.getSchemaID(), dimensionsDescriptorID, aggregatorID, gpoKey);
       //add the event key for each aggregator
       aggregatorToEventKey.put(aggregatorName, eventKey);
     }
 
-    long bucketKey = operator.getBucketForSchema(schemaDimensional.getSchemaID());
     List<Map<String, EventKey>> eventKeys = Lists.newArrayList();
     List<Map<String, HDSQuery>> hdsQueries = Lists.newArrayList();
 
@@ -133,7 +154,6 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
         String aggregatorName = entry.getKey();
         EventKey eventKey = entry.getValue();
         issueHDSQuery(eventKey,
-                      bucketKey,
                       query,
                       aggregatorToEventKeyMap,
                       aggregatorToQueryMap,
@@ -167,6 +187,10 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
 
       gpoKey.setField(DimensionsDescriptor.DIMENSION_TIME_BUCKET, query.getTimeBucket().ordinal());
 
+      if(rollupTimeBucket != null) {
+        return enqueueRollup(query, gpoKey, aggregatorToEventKey, rollupTimeBucket, startTime, endTime);
+      }
+
       //loop through each time to query
       for(long timestamp = startTime; timestamp <= endTime; timestamp += query.getTimeBucket().getTimeUnit().toMillis(1)) {
         Map<String, HDSQuery> aggregatorToQueryMap = Maps.newHashMap();
@@ -182,7 +206,6 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
           EventKey queryEventKey = new EventKey(eventKey);
 
           issueHDSQuery(queryEventKey,
-                        bucketKey,
                         query,
                         aggregatorToEventKeyMap,
                         aggregatorToQueryMap,
@@ -201,21 +224,151 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
     return super.enqueue(query, qm, null);
   }
 
+  /**
+   * This is a helper method which enqueues a query whose time buckets are rolled up from a finer time bucket. An
+   * {@link HDSQuery} is issued for each finer time bucket of each time bucket of the query.
+   * @param query The query to enqueue.
+   * @param gpoKey The key of the query, which is shared by the given {@link EventKey}s.
+   * @param aggregatorToEventKey A map from aggregators to the {@link EventKey}s to query.
+   * @param rollupTimeBucket The finer time bucket which is rolled up.
+   * @param startTime The first time bucket of the query.
+   * @param endTime The last time bucket of the query.
+   * @return True if the query was enqueued, false otherwise.
+   */
+  private boolean enqueueRollup(DataQueryDimensional query,
+                                GPOMutable gpoKey,
+                                Map<String, EventKey> aggregatorToEventKey,
+                                TimeBucket rollupTimeBucket,
+                                long startTime,
+                                long endTime)
+  {
+    long timeBucketMillis = query.getTimeBucket().getTimeUnit().toMillis(1);
+    long rollupTimeBucketMillis = rollupTimeBucket.getTimeUnit().toMillis(1);
+
+    List<Map<String, EventKey>> eventKeys = Lists.newArrayList();
+    List<Map<String, List<EventKey>>> rollupEventKeys = Lists.newArrayList();
+    List<Map<String, List<HDSQuery>>> rollupHdsQueries = Lists.newArrayList();
+
+    //loop through each time to query
+    for(long timestamp = startTime; timestamp <= endTime; timestamp += timeBucketMillis) {
+      Map<String, EventKey> aggregatorToEventKeyMap = Maps.newHashMap();
+      Map<String, List<EventKey>> aggregatorToRollupEventKeys = Maps.newHashMap();
+      Map<String, List<HDSQuery>> aggregatorToRollupQueries = Maps.newHashMap();
+
+      //loop over aggregators
+      for(Map.Entry<String, EventKey> entry: aggregatorToEventKey.entrySet()) {
+        String aggregatorName = entry.getKey();
+        EventKey eventKey = entry.getValue();
+
+        //the event key of the rolled up time bucket
+        gpoKey.setField(DimensionsDescriptor.DIMENSION_TIME, timestamp);
+        gpoKey.setField(DimensionsDescriptor.DIMENSION_TIME_BUCKET, query.getTimeBucket().ordinal());
+        aggregatorToEventKeyMap.put(aggregatorName, new EventKey(eventKey));
+
+        //the event keys of the finer time buckets
+        List<EventKey> rollupKeys = Lists.newArrayList();
+        List<HDSQuery> rollupQueries = Lists.newArrayList();
+
+        for(long rollupTimestamp = timestamp;
+            rollupTimestamp < timestamp + timeBucketMillis;
+            rollupTimestamp += rollupTimeBucketMillis) {
+          gpoKey.setField(DimensionsDescriptor.DIMENSION_TIME, rollupTimestamp);
+          gpoKey.setField(DimensionsDescriptor.DIMENSION_TIME_BUCKET, rollupTimeBucket.ordinal());
+          EventKey rollupEventKey = new EventKey(eventKey);
+
+          rollupKeys.add(rollupEventKey);
+          rollupQueries.add(getHDSQuery(rollupEventKey, query));
+        }
+
+        aggregatorToRollupEventKeys.put(aggregatorName, rollupKeys);
+        aggregatorToRollupQueries.put(aggregatorName, rollupQueries);
+      }
+
+      eventKeys.add(aggregatorToEventKeyMap);
+      rollupEventKeys.add(aggregatorToRollupEventKeys);
+      rollupHdsQueries.add(aggregatorToRollupQueries);
+    }
+
+    //Create the query meta for the query
+    QueryMeta qm = new QueryMeta();
+    qm.setEventKeys(eventKeys);
+    qm.setRollupEventKeys(rollupEventKeys);
+    qm.setRollupHdsQueries(rollupHdsQueries);
+    return super.enqueue(query, qm, null);
+  }
+
+  /**
+   * This is a helper method which finds the dimension combination whose time buckets can be rolled up to answer
+   * queries for the given dimension combination. This is the dimension combination with the same keys and the coarsest
+   * time bucket which evenly divides the time bucket of the given dimension combination.
+   * @param configurationSchema The configuration schema to search.
+   * @param dimensionsDescriptor The queried dimension combination.
+   * @return The id of the dimension combination to roll up, or null if there is none.
+   */
+  private Integer getRollupDimensionsDescriptorID(DimensionalConfigurationSchema configurationSchema,
+                                                  DimensionsDescriptor dimensionsDescriptor)
+  {
+    if(dimensionsDescriptor.getTimeBucket() == null ||
+       dimensionsDescriptor.getTimeBucket().getTimeUnit() == null) {
+      return null;
+    }
+
+    long timeBucketMillis = dimensionsDescriptor.getTimeBucket().getTimeUnit().toMillis(1);
+    Integer rollupID = null;
+    long rollupTimeBucketMillis = 0;
+
+    for(Map.Entry<DimensionsDescriptor, Integer> entry: configurationSchema.getDimensionsDescriptorToID().entrySet()) {
+      DimensionsDescriptor candidate = entry.getKey();
+
+      if(!candidate.getFields().equals(dimensionsDescriptor.getFields()) ||
+         candidate.getTimeBucket() == null ||
+         candidate.getTimeBucket().getTimeUnit() == null) {
+        continue;
+      }
+
+      long candidateMillis = candidate.getTimeBucket().getTimeUnit().toMillis(1);
+
+      if(candidateMillis < timeBucketMillis &&
+         timeBucketMillis % candidateMillis == 0 &&
+         candidateMillis > rollupTimeBucketMillis) {
+        rollupID = entry.getValue();
+        rollupTimeBucketMillis = candidateMillis;
+      }
+    }
+
+    return rollupID;
+  }
+
   /**
    * This is a helper method for issuing {@link HDSQuery}s for app data {@link DataQueryDimensional} queries.
-   * @param eventKey The {@link EventKey} whose value needs to be found.
-   * @param bucketKey The HDHT bucket to issue {@link HDSQuery}s against.
+   * @param eventKey The {@link EventKey} whose value needs to be found. The {@link HDSQuery} is issued against
+   * the HDHT bucket which stores the {@link EventKey}.
    * @param query The original {@link DataQueryDimensional} query.
    * @param aggregatorToEventKeyMap A map from aggregators to their corresponding {@link EventKey}s for this time bucket.
    * @param aggregatorToQueryMap A map from aggregators to their corresponding {@link HDSQuery} for this time bucket.
    * @param aggregatorName The name of the aggregator to issue queries for.
    */
   private void issueHDSQuery(EventKey eventKey,
-                             long bucketKey,
                              DataQueryDimensional query,
                              Map<String, EventKey> aggregatorToEventKeyMap,
                              Map<String, HDSQuery> aggregatorToQueryMap,
                              String aggregatorName)
+  {
+    HDSQuery hdsQuery = getHDSQuery(eventKey, query);
+
+    aggregatorToEventKeyMap.put(aggregatorName, eventKey);
+    aggregatorToQueryMap.put(aggregatorName, hdsQuery);
+  }
+
+  /**
+   * This is a helper method which gets the {@link HDSQuery} for the given {@link EventKey}. The {@link HDSQuery}
+   * is issued if it doesn't exist yet, and it is kept alive for the countdown of the given query.
+   * @param eventKey The {@link EventKey} whose value needs to be found.
+   * @param query The original {@link DataQueryDimensional} query.
+   * @return The {@link HDSQuery} for the given {@link EventKey}.
+   */
+  private HDSQuery getHDSQuery(EventKey eventKey,
+                               DataQueryDimensional query)
   {
     Slice key = new Slice(operator.getEventKeyBytesGAE(eventKey));
     //reuse the existing HDSQuery for the given key if it exists
@@ -224,7 +377,7 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
     if(hdsQuery == null) {
       //no prexisting query, so create a new one
       hdsQuery = new HDSQuery();
-      hdsQuery.bucketKey = bucketKey;
+      hdsQuery.bucketKey = operator.getBucketForSchema(eventKey);
       hdsQuery.key = key;
       operator.addQuery(hdsQuery);
     }
@@ -243,8 +396,7 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
       hdsQuery.keepAliveCount = countDown;
     }
 
-    aggregatorToEventKeyMap.put(aggregatorName, eventKey);
-    aggregatorToQueryMap.put(aggregatorName, hdsQuery);
+    return hdsQuery;
   }
 
   private static final Logger LOG = LoggerFactory.getLogger(DimensionsQueueManager.class);
@@ -6,9 +6,11 @@ package com.datatorrent.contrib.dimensions;
 
 import java.io.IOException;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 
 import javax.validation.constraints.Min;
@@ -28,7 +30,7 @@ import com.datatorrent.lib.appdata.gpo.GPOByteArrayList;
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
 import com.datatorrent.lib.appdata.gpo.GPOUtils;
 import com.datatorrent.lib.appdata.schemas.FieldsDescriptor;
-import com.datatorrent.lib.appdata.schemas.Type;
+import com.datatorrent.lib.appdata.schemas.TimeBucket;
 import com.datatorrent.lib.codec.KryoSerializableStreamCodec;
 import com.datatorrent.lib.dimensions.DimensionsDescriptor;
 import com.datatorrent.lib.dimensions.DimensionsEvent.Aggregate;
@@ -84,6 +86,18 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    */
   @Min(1)
   private int cacheWindowDuration = DEFAULT_CACHE_WINDOW_DURATION;
+  /**
+   * The maximum number of {@link Aggregate}s held in the operator's cache. When this is set, the least
+   * recently used {@link Aggregate}s are evicted from the cache instead of clearing the cache every
+   * {@link #cacheWindowDuration} windows.
+   */
+  @Min(0)
+  private int maxCacheSize = 0;
+  /**
+   * This flag determines whether queries for a {@link TimeBucket} which is not stored for a dimension combination
+   * are answered by rolling up the aggregates of a finer {@link TimeBucket} which is stored.
+   */
+  private boolean rollupTimeBuckets = false;
   /**
    * This keeps track of the number of windows seen since the last time the operator's cache
    * was cleared.
@@ -99,7 +113,29 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    * The keys of this map are {@link EventKey}s for this aggregate. The values in this
    * map are the corresponding {@link Aggregate}s.
    */
-  protected transient Map<EventKey, Aggregate> cache = new ConcurrentHashMap<EventKey, Aggregate>();
+  protected transient Map<EventKey, Aggregate> cache = Collections.synchronizedMap(new AggregateCache());
+  /**
+   * The {@link Aggregate}s which were modified since they were last put into HDHT. The keys of this map are
+   * the {@link EventKey}s of the {@link Aggregate}s.
+   */
+  protected transient Map<EventKey, Aggregate> dirtyAggregates = Maps.newHashMap();
+  /**
+   * The {@link Aggregate}s of coarse time buckets which were rolled up from finer time buckets by queries. The keys
+   * of this map are the {@link EventKey}s of the coarse time buckets.
+   */
+  private transient final Map<EventKey, Aggregate> rollupCache = Maps.newHashMap();
+  /**
+   * The version of the rollup cache, which is incremented when rolled up {@link Aggregate}s are invalidated.
+   */
+  private transient long rollupCacheVersion;
+  /**
+   * The smallest timestamp of the {@link Aggregate}s written in the current window.
+   */
+  private transient long minWindowTimestamp = Long.MAX_VALUE;
+  /**
+   * The largest timestamp of the {@link Aggregate}s written in the current window.
+   */
+  private transient long maxWindowTimestamp = Long.MIN_VALUE;
   /**
    * The IDs of the HDHT buckets that this operator writes to.
    */
@@ -117,9 +153,26 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    */
   @VisibleForTesting
   protected transient final Map<Long, Long> futureBuckets = Maps.newHashMap();
+  /**
+   * The IDs of the HDHT buckets that received data in the current window. Only these buckets get the current
+   * window ID, which is enough for recovery because the window ID stored in a bucket is the last window that
+   * wrote to it.
+   */
+  @VisibleForTesting
+  protected transient final Set<Long> windowBuckets = Sets.newHashSet();
 
-  private transient final GPOByteArrayList bal = new GPOByteArrayList();
-  private transient final GPOByteArrayList tempBal = new GPOByteArrayList();
+  /**
+   * The scratch buffer used by each thread to serialize {@link GPOMutable}s, so that keys and values can be
+   * serialized concurrently by the operator and query threads.
+   */
+  private transient final ThreadLocal<GPOByteArrayList> tempBal = new ThreadLocal<GPOByteArrayList>()
+  {
+    @Override
+    protected GPOByteArrayList initialValue()
+    {
+      return new GPOByteArrayList();
+    }
+  };
 
   /**
    * Constructor to create operator.
@@ -177,6 +230,17 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     return getBucketForSchema(eventKey.getSchemaID());
   }
 
+  /**
+   * This is a helper method which determines whether the given {@link EventKey} is older than the data retained by
+   * this operator. {@link Aggregate}s with expired {@link EventKey}s are not stored.
+   * @param eventKey The {@link EventKey} to check.
+   * @return True if the given {@link EventKey} is expired, false otherwise.
+   */
+  protected boolean isExpired(EventKey eventKey)
+  {
+    return false;
+  }
+
   /**
    * This is a convenience helper method which serializes the key of the given {@link Aggregate}.
    * @param gae The {@link Aggregate} to serialize.
@@ -188,36 +252,23 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
   }
 
   /**
-   * Method serializes the given {@link EventKey}.
+   * Method serializes the given {@link EventKey}. The serialized key starts with the timestamp, the schemaID,
+   * the dimensionDescriptorID and the aggregatorID, which are written directly into the returned array.
    * @param eventKey The {@link EventKey} to serialize.
    * @return The serialized {@link EventKey}.
    */
-  public synchronized byte[] getEventKeyBytesGAE(EventKey eventKey)
+  public byte[] getEventKeyBytesGAE(EventKey eventKey)
   {
-    long timestamp = 0;
-
-    if(eventKey.getKey().
-            getFieldDescriptor().getFieldList().
-            contains(DimensionsDescriptor.DIMENSION_TIME)) {
-      //If key includes a time stamp retrieve it.
-      timestamp = eventKey.getKey().getFieldLong(DimensionsDescriptor.DIMENSION_TIME);
-    }
+    long timestamp = getTimestamp(eventKey);
+    byte[] gpoBytes = GPOUtils.serialize(eventKey.getKey(), tempBal.get());
+    byte[] serializedBytes = new byte[KEY_PREFIX_LENGTH + gpoBytes.length];
 
     //Time is a special case for HDHT all keys should be prefixed by a timestamp.
-    byte[] timeBytes = Longs.toByteArray(timestamp);
-    byte[] schemaIDBytes = Ints.toByteArray(eventKey.getSchemaID());
-    byte[] dimensionDescriptorIDBytes = Ints.toByteArray(eventKey.getDimensionDescriptorID());
-    byte[] aggregatorIDBytes = Ints.toByteArray(eventKey.getAggregatorID());
-    byte[] gpoBytes = GPOUtils.serialize(eventKey.getKey(), tempBal);
-
-    bal.add(timeBytes);
-    bal.add(schemaIDBytes);
-    bal.add(dimensionDescriptorIDBytes);
-    bal.add(aggregatorIDBytes);
-    bal.add(gpoBytes);
-
-    byte[] serializedBytes = bal.toByteArray();
-    bal.clear();
+    int offset = writeLong(serializedBytes, 0, timestamp);
+    offset = writeInt(serializedBytes, offset, eventKey.getSchemaID());
+    offset = writeInt(serializedBytes, offset, eventKey.getDimensionDescriptorID());
+    offset = writeInt(serializedBytes, offset, eventKey.getAggregatorID());
+    System.arraycopy(gpoBytes, 0, serializedBytes, offset, gpoBytes.length);
 
     return serializedBytes;
   }
@@ -227,22 +278,96 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    * @param event The {@link Aggregate} whose aggregate payload needs to be serialized.
    * @return The serialized aggregate payload of the given {@link Aggregate}.
    */
-  public synchronized byte[] getValueBytesGAE(Aggregate event)
+  public byte[] getValueBytesGAE(Aggregate event)
   {
     FieldsDescriptor metaDataDescriptor =
     getAggregator(event.getEventKey().getAggregatorID()).getMetaDataDescriptor();
 
-    if(metaDataDescriptor != null) {
-      bal.add(GPOUtils.serialize(event.getMetaData(), tempBal));
+    GPOByteArrayList bal = tempBal.get();
+    byte[] aggregateBytes = GPOUtils.serialize(event.getAggregates(), bal);
+
+    if(metaDataDescriptor == null) {
+      //The serialized aggregates are the value, they are not copied.
+      return aggregateBytes;
     }
 
-    bal.add(GPOUtils.serialize(event.getAggregates(), tempBal));
-    byte[] serializedBytes = bal.toByteArray();
-    bal.clear();
+    byte[] metaDataBytes = GPOUtils.serialize(event.getMetaData(), bal);
+    byte[] serializedBytes = new byte[metaDataBytes.length + aggregateBytes.length];
+    System.arraycopy(metaDataBytes, 0, serializedBytes, 0, metaDataBytes.length);
+    System.arraycopy(aggregateBytes, 0, serializedBytes, metaDataBytes.length, aggregateBytes.length);
 
     return serializedBytes;
   }
 
+  /**
+   * Writes the given long in big endian order, as {@link Longs#toByteArray(long)} does.
+   * @return The offset after the written long.
+   */
+  private static int writeLong(byte[] bytes, int offset, long value)
+  {
+    for(int index = Longs.BYTES - 1;
+        index >= 0;
+        index--) {
+      bytes[offset + index] = (byte) value;
+      value >>>= 8;
+    }
+
+    return offset + Longs.BYTES;
+  }
+
+  /**
+   * Writes the given int in big endian order, as {@link Ints#toByteArray(int)} does.
+   * @return The offset after the written int.
+   */
+  private static int writeInt(byte[] bytes, int offset, int value)
+  {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+
+    return offset + Ints.BYTES;
+  }
+
+  /**
+   * Gets the timestamp of the given {@link EventKey}.
+   * @param eventKey The {@link EventKey} whose timestamp is retrieved.
+   * @return The timestamp of the given {@link EventKey}, 0 if the key has no time.
+   */
+  protected static long getTimestamp(EventKey eventKey)
+  {
+    if(eventKey.getKey().
+            getFieldDescriptor().getFieldList().
+            contains(DimensionsDescriptor.DIMENSION_TIME)) {
+      //If key includes a time stamp retrieve it.
+      return eventKey.getKey().getFieldLong(DimensionsDescriptor.DIMENSION_TIME);
+    }
+
+    return 0;
+  }
+
+  /**
+   * Reads the timestamp of a serialized {@link EventKey} without deserializing the key.
+   * @param key A serialized {@link EventKey}.
+   * @return The timestamp of the serialized {@link EventKey}, 0 if the key has no time.
+   */
+  public static long getTimestamp(Slice key)
+  {
+    byte[] b = key.buffer;
+    int o = key.offset;
+    return Longs.fromBytes(b[o], b[o + 1], b[o + 2], b[o + 3], b[o + 4], b[o + 5], b[o + 6], b[o + 7]);
+  }
+
+  /**
+   * Reads an int from the prefix of a serialized {@link EventKey}.
+   */
+  private static int readInt(Slice key, int position)
+  {
+    byte[] b = key.buffer;
+    int o = key.offset + position;
+    return Ints.fromBytes(b[o], b[o + 1], b[o + 2], b[o + 3]);
+  }
+
   /**
    * Creates an {@link Aggregate} from a serialized {@link EventKey} and a
    * serialize {@link GPOMutable} object.
@@ -252,13 +377,10 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    */
   public Aggregate fromKeyValueGAE(Slice key, byte[] aggregate)
   {
-    MutableInt offset = new MutableInt(Type.LONG.getByteSize());
-    int schemaID = GPOUtils.deserializeInt(key.buffer,
-                                           offset);
-    int dimensionDescriptorID = GPOUtils.deserializeInt(key.buffer,
-                                                        offset);
-    int aggregatorID = GPOUtils.deserializeInt(key.buffer,
-                                               offset);
+    int schemaID = readInt(key, Longs.BYTES);
+    int dimensionDescriptorID = readInt(key, Longs.BYTES + Ints.BYTES);
+    int aggregatorID = readInt(key, Longs.BYTES + 2 * Ints.BYTES);
+    MutableInt offset = new MutableInt(key.offset + KEY_PREFIX_LENGTH);
 
     FieldsDescriptor keysDescriptor = getKeyDescriptor(schemaID, dimensionDescriptorID);
     FieldsDescriptor aggDescriptor = getValueDescriptor(schemaID, dimensionDescriptorID, aggregatorID);
@@ -348,7 +470,7 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
   public void putGAE(Aggregate gae)
   {
     try {
-      put(getBucketForSchema(gae.getSchemaID()),
+      put(getBucketForSchema(gae.getEventKey()),
           new Slice(codec.getKeyBytes(gae)),
           codec.getValueBytes(gae));
     }
@@ -367,6 +489,29 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     put(bucket, STORE_FORMAT_KEY, STORE_FORMAT_VERSION_BYTES);
   }
 
+  /**
+   * This is a helper method which adds the given bucket to the buckets this operator writes to. The committed
+   * windowID of a bucket which is added is read, so that data which was already written to the bucket is skipped
+   * when the operator recovers.
+   * @param bucket The bucketID of the bucket to add.
+   * @throws IOException
+   */
+  protected void addBucket(long bucket) throws IOException
+  {
+    if(!buckets.add(bucket)) {
+      return;
+    }
+
+    byte[] windowIDValueBytes = load(bucket, WINDOW_ID_KEY);
+
+    if(windowIDValueBytes != null) {
+      futureBuckets.put(bucket, GPOUtils.deserializeLong(windowIDValueBytes, new MutableInt(0)));
+    }
+
+    LOG.debug("Writing out store format version to bucket {}", bucket);
+    putStoreFormatVersion(bucket);
+  }
+
   @Override
   public void beginWindow(long windowId)
   {
@@ -415,9 +560,28 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     int ddID = gae.getDimensionDescriptorID();
     int aggregatorID = gae.getAggregatorID();
 
+    FieldsDescriptor keyFieldsDescriptor = getKeyDescriptor(schemaID, ddID);
+    FieldsDescriptor valueFieldsDescriptor = getValueDescriptor(schemaID, ddID, aggregatorID);
+
+    gae.getKeys().setFieldDescriptor(keyFieldsDescriptor);
+    gae.getAggregates().setFieldDescriptor(valueFieldsDescriptor);
+
+    if(isExpired(gae.getEventKey())) {
+      LOG.debug("Skipping expired");
+      return;
+    }
+
+    long bucket = getBucketForSchema(gae.getEventKey());
+
+    try {
+      addBucket(bucket);
+    }
+    catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+
     //Skip data for buckets with greater committed window Ids
     if(!futureBuckets.isEmpty()) {
-      long bucket = getBucketForSchema(schemaID);
       Long committedWindowID = futureBuckets.get(bucket);
 
       if(committedWindowID != null &&
@@ -427,11 +591,7 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
       }
     }
 
-    FieldsDescriptor keyFieldsDescriptor = getKeyDescriptor(schemaID, ddID);
-    FieldsDescriptor valueFieldsDescriptor = getValueDescriptor(schemaID, ddID, aggregatorID);
-
-    gae.getKeys().setFieldDescriptor(keyFieldsDescriptor);
-    gae.getAggregates().setFieldDescriptor(valueFieldsDescriptor);
+    windowBuckets.add(bucket);
 
     GPOMutable metaData = gae.getMetaData();
 
@@ -453,51 +613,157 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     }
 
     if(aggregate == null) {
+      aggregate = gae;
       cache.put(gae.getEventKey(), gae);
     }
     else {
       aggregator.aggregate(aggregate, gae);
     }
+
+    dirtyAggregates.put(aggregate.getEventKey(), aggregate);
+
+    if(rollupTimeBuckets) {
+      long timestamp = getTimestamp(aggregate.getEventKey());
+      minWindowTimestamp = Math.min(minWindowTimestamp, timestamp);
+      maxWindowTimestamp = Math.max(maxWindowTimestamp, timestamp);
+    }
   }
 
   @Override
   public void endWindow()
   {
-    //Write out the last committed window ID for each bucket.
+    //Write out the last committed window ID for each bucket which received data in this window.
     byte[] currentWindowIDBytes = GPOUtils.serializeLong(currentWindowID);
 
-    for(Long bucket: buckets) {
-      Long committedWindowID = futureBuckets.get(bucket);
+    for(Long bucket: windowBuckets) {
+      if(!buckets.contains(bucket)) {
+        //the bucket expired in this window
+        continue;
+      }
 
-      if(committedWindowID == null ||
-         committedWindowID <= currentWindowID) {
-        futureBuckets.remove(bucket);
+      try {
+        put(bucket, WINDOW_ID_KEY, currentWindowIDBytes);
+      }
+      catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
 
-        try {
-          put(bucket, WINDOW_ID_KEY, currentWindowIDBytes);
-        }
-        catch(IOException ex) {
-          throw new RuntimeException(ex);
-        }
+    windowBuckets.clear();
+
+    //Data for buckets whose committed window is reached is not skipped anymore.
+    for(Iterator<Long> committedIterator = futureBuckets.values().iterator();
+        committedIterator.hasNext();) {
+      if(committedIterator.next() <= currentWindowID) {
+        committedIterator.remove();
       }
     }
 
     cacheWindowCount++;
 
-    //Write out the contents of the cache.
-    for(Map.Entry<EventKey, Aggregate> entry: cache.entrySet()) {
-      putGAE(entry.getValue());
+    if(rollupTimeBuckets) {
+      invalidateRollups();
+    }
+
+    //Write out the aggregates which changed in this window.
+    for(Aggregate aggregate: dirtyAggregates.values()) {
+      putGAE(aggregate);
     }
 
-    if(cacheWindowCount == cacheWindowDuration) {
+    dirtyAggregates.clear();
+
+    if(maxCacheSize == 0 &&
+       cacheWindowCount == cacheWindowDuration) {
       //clear the cache if the cache window duration is reached.
       cache.clear();
+
+      synchronized(rollupCache) {
+        rollupCache.clear();
+        rollupCacheVersion++;
+      }
       cacheWindowCount = 0;
     }
 
     super.endWindow();
   }
 
+  /**
+   * This is a helper method which removes the rolled up {@link Aggregate}s whose time buckets overlap with the
+   * timestamps of the {@link Aggregate}s written in the current window.
+   */
+  private void invalidateRollups()
+  {
+    if(minWindowTimestamp > maxWindowTimestamp) {
+      //Nothing was written
+      return;
+    }
+
+    synchronized(rollupCache) {
+      for(Iterator<EventKey> keyIterator = rollupCache.keySet().iterator();
+          keyIterator.hasNext();) {
+        GPOMutable key = keyIterator.next().getKey();
+        long startTimestamp = key.getFieldLong(DimensionsDescriptor.DIMENSION_TIME);
+        TimeBucket timeBucket = TimeBucket.values()[key.getFieldInt(DimensionsDescriptor.DIMENSION_TIME_BUCKET)];
+        long endTimestamp = startTimestamp + timeBucket.getTimeUnit().toMillis(1);
+
+        if(startTimestamp <= maxWindowTimestamp &&
+           minWindowTimestamp < endTimestamp) {
+          keyIterator.remove();
+        }
+      }
+
+      if(maxCacheSize > 0 &&
+         rollupCache.size() > maxCacheSize) {
+        rollupCache.clear();
+      }
+
+      rollupCacheVersion++;
+    }
+
+    minWindowTimestamp = Long.MAX_VALUE;
+    maxWindowTimestamp = Long.MIN_VALUE;
+  }
+
+  /**
+   * Gets the rolled up {@link Aggregate} of the given coarse time bucket.
+   * @param eventKey The {@link EventKey} of the coarse time bucket.
+   * @return The rolled up {@link Aggregate} of the given coarse time bucket, or null if it is not cached.
+   */
+  public Aggregate getRollup(EventKey eventKey)
+  {
+    synchronized(rollupCache) {
+      return rollupCache.get(eventKey);
+    }
+  }
+
+  /**
+   * Gets the current version of the rollup cache. {@link Aggregate}s which were rolled up when the version was
+   * different may be stale.
+   * @return The current version of the rollup cache.
+   */
+  public long getRollupCacheVersion()
+  {
+    synchronized(rollupCache) {
+      return rollupCacheVersion;
+    }
+  }
+
+  /**
+   * Caches the rolled up {@link Aggregate} of the given coarse time bucket, unless rolled up {@link Aggregate}s were
+   * invalidated since the rollup was started.
+   * @param eventKey The {@link EventKey} of the coarse time bucket.
+   * @param rollup The rolled up {@link Aggregate}.
+   * @param version The version of the rollup cache when the rollup was started.
+   */
+  public void putRollup(EventKey eventKey, Aggregate rollup, long version)
+  {
+    synchronized(rollupCache) {
+      if(version == rollupCacheVersion) {
+        rollupCache.put(eventKey, rollup);
+      }
+    }
+  }
+
   @Override
   public HDHTCodec<Aggregate> getCodec()
   {
@@ -515,7 +781,8 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
 
   /**
    * Sets the cacheWindowDuration which determines the number of windows for which
-   * data is held in this operator's cache.
+   * data is held in this operator's cache. This is not used when a {@link #setMaxCacheSize(int) maximum cache size}
+   * is set.
    * @param cacheWindowDuration The number of windows for which data is held in this operator's cache.
    */
   public void setCacheWindowDuration(int cacheWindowDuration)
@@ -523,6 +790,85 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     this.cacheWindowDuration = cacheWindowDuration;
   }
 
+  /**
+   * Returns the maximum number of {@link Aggregate}s held in the operator's cache.
+   * @return The maximum number of {@link Aggregate}s held in the operator's cache.
+   */
+  public int getMaxCacheSize()
+  {
+    return maxCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of {@link Aggregate}s held in the operator's cache. When the cache is full, the
+   * least recently used {@link Aggregate} is evicted, and the cacheWindowDuration is not used anymore.
+   * The default is 0, which does not limit the size of the cache and clears it every cacheWindowDuration windows.
+   * @param maxCacheSize The maximum number of {@link Aggregate}s held in the operator's cache.
+   */
+  public void setMaxCacheSize(int maxCacheSize)
+  {
+    this.maxCacheSize = maxCacheSize;
+  }
+
+  /**
+   * Returns true if queries for time buckets which are not stored are answered by rolling up finer time buckets.
+   * @return True if queries for time buckets which are not stored are answered by rolling up finer time buckets.
+   */
+  public boolean isRollupTimeBuckets()
+  {
+    return rollupTimeBuckets;
+  }
+
+  /**
+   * Sets whether queries for a {@link TimeBucket} which is not stored for a dimension combination are answered by
+   * rolling up the aggregates of the coarsest finer {@link TimeBucket} which is stored, for example minutes to hours
+   * or hours to days. This way coarse time buckets don't need to be configured in the schema. Rolled up
+   * aggregates are cached until data is written to their time bucket. Aggregators which store meta data
+   * are not rolled up. The default is false.
+   * @param rollupTimeBuckets True if queries for time buckets which are not stored are answered by rolling up
+   * finer time buckets.
+   */
+  public void setRollupTimeBuckets(boolean rollupTimeBuckets)
+  {
+    this.rollupTimeBuckets = rollupTimeBuckets;
+  }
+
+  /**
+   * This is the {@link Aggregate} cache of the operator, which orders the {@link Aggregate}s by their last access.
+   * When the cache exceeds the {@link #maxCacheSize}, the least recently used {@link Aggregate} is evicted, after it
+   * was put into HDHT if it was modified.
+   */
+  class AggregateCache extends LinkedHashMap<EventKey, Aggregate>
+  {
+    private static final long serialVersionUID = 201507201130L;
+
+    /**
+     * Creates the cache.
+     */
+    public AggregateCache()
+    {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<EventKey, Aggregate> eldest)
+    {
+      if(maxCacheSize == 0 ||
+         size() <= maxCacheSize) {
+        return false;
+      }
+
+      Aggregate dirtyAggregate = dirtyAggregates.remove(eldest.getKey());
+
+      if(dirtyAggregate != null) {
+        //Write back the aggregate, so that it is loaded when it is accessed again.
+        putGAE(dirtyAggregate);
+      }
+
+      return true;
+    }
+  }
+
   /**
    * This is a codec which defines how data is serialized to HDHT. This codec is effectively
    * a proxy which call's on the operator's overridable {@link #getKeyBytesGAE}, {@link #getValueBytesGAE},
@@ -581,5 +927,9 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     return this.queries;
   }
 
+  /**
+   * The length of the timestamp, schemaID, dimensionDescriptorID and aggregatorID prefix of serialized keys.
+   */
+  private static final int KEY_PREFIX_LENGTH = Longs.BYTES + 3 * Ints.BYTES;
   private static final Logger LOG = LoggerFactory.getLogger(DimensionsStoreHDHT.class);
 }
@@ -30,6 +30,20 @@ public class QueryMeta
    * the {@link HDSQuery} for that {@link IncrementalAggregator}.
    */
   private List<Map<String, EventKey>> eventKeys;
+  /**
+   * This list is set when the time buckets of a query are rolled up from finer time buckets. Each entry in this list
+   * represents the {@link HDSQuery}s issued for the finer time buckets of a particular time bucket of the query. Each
+   * {@link Map} is a map from an {@link IncrementalAggregator} name to the {@link HDSQuery}s issued for that
+   * {@link IncrementalAggregator}, ordered by time.
+   */
+  private List<Map<String, List<HDSQuery>>> rollupHdsQueries;
+  /**
+   * This list is set when the time buckets of a query are rolled up from finer time buckets. Each entry in this list
+   * represents the {@link EventKey}s of the finer time buckets of a particular time bucket of the query. Each
+   * {@link Map} is a map from an {@link IncrementalAggregator} name to the {@link EventKey}s used to issue the
+   * rollupHdsQueries for that {@link IncrementalAggregator}.
+   */
+  private List<Map<String, List<EventKey>>> rollupEventKeys;
 
   /**
    * Creates a {@link QueryMeta} object.
@@ -74,4 +88,42 @@ public class QueryMeta
     this.eventKeys = eventKeys;
   }
 
+  /**
+   * Returns the hdsQueries issued for the finer time buckets of a query which is rolled up.
+   * @return The hdsQueries issued for the finer time buckets of a query which is rolled up, or null if the
+   * query is not rolled up.
+   */
+  public List<Map<String, List<HDSQuery>>> getRollupHdsQueries()
+  {
+    return rollupHdsQueries;
+  }
+
+  /**
+   * Sets the hdsQueries issued for the finer time buckets of a query which is rolled up.
+   * @param rollupHdsQueries The hdsQueries issued for the finer time buckets of a query which is rolled up.
+   */
+  public void setRollupHdsQueries(List<Map<String, List<HDSQuery>>> rollupHdsQueries)
+  {
+    this.rollupHdsQueries = rollupHdsQueries;
+  }
+
+  /**
+   * Returns the event keys of the finer time buckets of a query which is rolled up.
+   * @return The event keys of the finer time buckets of a query which is rolled up, or null if the
+   * query is not rolled up.
+   */
+  public List<Map<String, List<EventKey>>> getRollupEventKeys()
+  {
+    return rollupEventKeys;
+  }
+
+  /**
+   * Sets the event keys of the finer time buckets of a query which is rolled up.
+   * @param rollupEventKeys The event keys of the finer time buckets of a query which is rolled up.
+   */
+  public void setRollupEventKeys(List<Map<String, List<EventKey>>> rollupEventKeys)
+  {
+    this.rollupEventKeys = rollupEventKeys;
+  }
+
 }
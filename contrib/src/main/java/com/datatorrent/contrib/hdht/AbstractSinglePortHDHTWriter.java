@@ -19,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -31,6 +32,7 @@ import com.datatorrent.api.Context.OperatorContext;
 import com.datatorrent.api.DefaultInputPort;
 import com.datatorrent.api.DefaultPartition;
 import com.datatorrent.api.Partitioner;
+import com.datatorrent.api.StatsListener;
 import com.datatorrent.api.StreamCodec;
 import com.datatorrent.api.annotation.InputPortFieldAnnotation;
 import com.datatorrent.netlet.util.Slice;
@@ -43,11 +45,15 @@ import com.google.common.collect.Lists;
  * Operator that receives data on port and writes it to the data store.
  * Implements partitioning, maps partition key to the store bucket.
  * The derived class supplies the codec for partitioning and key-value serialization.
+ * <p>
+ * With {@link #setMaxPartitionCount(int)} set, the operator scales the number of partitions based on the processed
+ * tuple rate. Buckets are then fixed by the maximum partition count, each bucket is owned by exactly one partition
+ * and is handed over with its WAL position when the partitioning changes.
  * @param <EVENT>
  *
  * @since 2.0.0
  */
-public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter implements Partitioner<AbstractSinglePortHDHTWriter<EVENT>>
+public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter implements Partitioner<AbstractSinglePortHDHTWriter<EVENT>>, StatsListener
 {
   public interface HDHTCodec<EVENT> extends StreamCodec<EVENT>
   {
@@ -67,6 +73,15 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
   @Min(1)
   private int partitionCount = 1;
 
+  @Min(0)
+  private int maxPartitionCount = 0;
+  private long minEventsPerSecond = 0;
+  private long maxEventsPerSecond = 0;
+  private long repartitionIntervalMillis = 2 * 60 * 1000L;
+
+  private transient int bucketMask;
+  private transient long nextRepartitionMillis;
+
   @InputPortFieldAnnotation(optional=true)
   public final transient DefaultInputPort<EVENT> input = new DefaultInputPort<EVENT>()
   {
@@ -97,18 +112,93 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     return partitionCount;
   }
 
+  /**
+   * Upper bound for the number of partitions with dynamic partitioning. The number of storage buckets is derived from
+   * it and cannot change after data was written. 0 (default) disables dynamic partitioning and maps each partition to
+   * its own bucket.
+   *
+   * @param maxPartitionCount
+   */
+  public void setMaxPartitionCount(int maxPartitionCount)
+  {
+    this.maxPartitionCount = maxPartitionCount;
+  }
+
+  public int getMaxPartitionCount()
+  {
+    return maxPartitionCount;
+  }
+
+  /**
+   * Partitions are merged when the processed tuple rate of all partitions falls below this threshold. 0 disables
+   * scale-in.
+   *
+   * @param minEventsPerSecond
+   */
+  public void setMinEventsPerSecond(long minEventsPerSecond)
+  {
+    this.minEventsPerSecond = minEventsPerSecond;
+  }
+
+  public long getMinEventsPerSecond()
+  {
+    return minEventsPerSecond;
+  }
+
+  /**
+   * Partitions are split when the processed tuple rate of any partition exceeds this threshold. 0 disables scale-out.
+   *
+   * @param maxEventsPerSecond
+   */
+  public void setMaxEventsPerSecond(long maxEventsPerSecond)
+  {
+    this.maxEventsPerSecond = maxEventsPerSecond;
+  }
+
+  public long getMaxEventsPerSecond()
+  {
+    return maxEventsPerSecond;
+  }
+
+  /**
+   * Minimum time between repartitioning requests.
+   *
+   * @param repartitionIntervalMillis
+   */
+  public void setRepartitionIntervalMillis(long repartitionIntervalMillis)
+  {
+    this.repartitionIntervalMillis = repartitionIntervalMillis;
+  }
+
+  public long getRepartitionIntervalMillis()
+  {
+    return repartitionIntervalMillis;
+  }
+
   /**
    * Storage bucket for the given event. Only one partition can write to a storage bucket and by default it is
-   * identified by the partition id.
+   * identified by the partition id. With dynamic partitioning the bucket is identified by the partition id for the
+   * maximum partition count, which is stable across repartitioning.
    *
    * @param event
    * @return The bucket key.
    */
   protected long getBucketKey(EVENT event)
   {
+    if (maxPartitionCount > 0) {
+      return (codec.getPartition(event) & bucketMask);
+    }
     return (codec.getPartition(event) & partitionMask);
   }
 
+  /**
+   * Mask for the partition keys when the given number of partitions is assigned.
+   */
+  static int getPartitionMask(int partitionCount)
+  {
+    return partitionCount > 1 ? Integer.highestOneBit(partitionCount - 1) * 2 - 1 : 0;
+  }
+
   protected void processEvent(EVENT event) throws IOException
   {
     byte[] key = codec.getKeyBytes(event);
@@ -123,6 +213,8 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
   {
     LOG.debug("Store {} with partitions {} {}", super.getFileStore(), new PartitionKeys(this.partitionMask, this.partitions));
     super.setup(arg0);
+    this.bucketMask = getPartitionMask(maxPartitionCount);
+    this.nextRepartitionMillis = System.currentTimeMillis() + repartitionIntervalMillis;
     try {
       this.codec = getCodec();
       // inject the operator reference, if such field exists
@@ -148,12 +240,24 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     boolean isInitialPartition = partitions.iterator().next().getStats() == null;
 
     if (!isInitialPartition) {
-      // support for dynamic partitioning requires lineage tracking
-      LOG.warn("Dynamic partitioning not implemented");
-      return partitions;
+      if (maxPartitionCount == 0) {
+        // without stable buckets ownership cannot be transferred
+        LOG.warn("Dynamic partitioning requires maxPartitionCount");
+        return partitions;
+      }
+      return repartition(partitions);
     }
 
-    final int newPartitionCount = DefaultPartition.getRequiredPartitionCount(context, this.partitionCount);
+    int newPartitionCount = DefaultPartition.getRequiredPartitionCount(context, this.partitionCount);
+    if (maxPartitionCount > 0 && newPartitionCount > maxPartitionCount) {
+      LOG.warn("Limiting partition count {} to maxPartitionCount {}", newPartitionCount, maxPartitionCount);
+      newPartitionCount = maxPartitionCount;
+    }
+    return createPartitions(newPartitionCount);
+  }
+
+  private Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> createPartitions(int newPartitionCount)
+  {
     Kryo lKryo = new Kryo();
     Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> newPartitions = Lists.newArrayListWithExpectedSize(newPartitionCount);
     for (int i = 0; i < newPartitionCount; i++) {
@@ -180,6 +284,80 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     return newPartitions;
   }
 
+  /**
+   * Split or merge partitions based on the processed tuple rate and transfer the buckets to their new owners. As the
+   * partition mask never exceeds the bucket mask, all events of a bucket are routed to exactly one partition.
+   */
+  private Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> repartition(Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> partitions)
+  {
+    boolean scaleOut = false;
+    boolean scaleIn = minEventsPerSecond > 0;
+    for (Partition<AbstractSinglePortHDHTWriter<EVENT>> p : partitions) {
+      long rate = p.getStats().getTuplesProcessedPSMA();
+      if (maxEventsPerSecond > 0 && rate > maxEventsPerSecond) {
+        scaleOut = true;
+      }
+      if (rate >= minEventsPerSecond) {
+        scaleIn = false;
+      }
+    }
+
+    int currentCount = partitions.size();
+    int newPartitionCount = currentCount;
+    if (scaleOut) {
+      newPartitionCount = Math.min(currentCount * 2, maxPartitionCount);
+    } else if (scaleIn) {
+      newPartitionCount = Math.max(currentCount / 2, 1);
+    }
+    if (newPartitionCount == currentCount) {
+      return partitions;
+    }
+
+    LOG.info("Repartitioning from {} to {} partitions", currentCount, newPartitionCount);
+    Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> newPartitions = createPartitions(newPartitionCount);
+    List<AbstractSinglePortHDHTWriter<EVENT>> owners = Lists.newArrayListWithExpectedSize(newPartitionCount);
+    for (Partition<AbstractSinglePortHDHTWriter<EVENT>> p : newPartitions) {
+      owners.add(p.getPartitionedInstance());
+    }
+    for (Partition<AbstractSinglePortHDHTWriter<EVENT>> p : partitions) {
+      AbstractSinglePortHDHTWriter<EVENT> oper = p.getPartitionedInstance();
+      for (Long bucketKey : oper.getBucketKeys()) {
+        oper.transferBucket(bucketKey, getBucketOwner(owners, bucketKey));
+      }
+    }
+    return newPartitions;
+  }
+
+  private static <EVENT> AbstractSinglePortHDHTWriter<EVENT> getBucketOwner(List<AbstractSinglePortHDHTWriter<EVENT>> owners, long bucketKey)
+  {
+    for (AbstractSinglePortHDHTWriter<EVENT> owner : owners) {
+      if (owner.partitions.contains((int)bucketKey & owner.partitionMask)) {
+        return owner;
+      }
+    }
+    throw new IllegalStateException("No partition for bucket " + bucketKey);
+  }
+
+  @Override
+  public Response processStats(BatchedOperatorStats stats)
+  {
+    Response response = new Response();
+    if (maxPartitionCount == 0 || System.currentTimeMillis() < nextRepartitionMillis) {
+      return response;
+    }
+    long rate = stats.getTuplesProcessedPSMA();
+    int currentCount = partitions == null ? 1 : (partitionMask + 1) / Math.max(1, partitions.size());
+    if (maxEventsPerSecond > 0 && rate > maxEventsPerSecond && currentCount < maxPartitionCount) {
+      response.repartitionRequired = true;
+    } else if (minEventsPerSecond > 0 && rate < minEventsPerSecond && currentCount > 1) {
+      response.repartitionRequired = true;
+    }
+    if (response.repartitionRequired) {
+      nextRepartitionMillis = System.currentTimeMillis() + repartitionIntervalMillis;
+    }
+    return response;
+  }
+
   @Override
   public void partitioned(Map<Integer, Partition<AbstractSinglePortHDHTWriter<EVENT>>> arg0)
   {
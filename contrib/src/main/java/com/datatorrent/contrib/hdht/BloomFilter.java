@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * Bloom filter over the keys of a data file. Used to skip the file seek for keys that were never written to the file.
+ * <p>
+ * Keys are hashed once into a 64 bit value, from which the probe positions are derived (double hashing). Lookups
+ * don't allocate.
+ *
+ * @since 2.2.0
+ */
+public class BloomFilter
+{
+  private final long[] bits;
+  private final int numBits;
+  private final int numHashes;
+
+  /**
+   * Create filter for the given number of keys.
+   * @param numKeys expected number of keys
+   * @param bitsPerKey bits per key, determines the false positive rate (10 bits yield about 1%)
+   */
+  public BloomFilter(int numKeys, int bitsPerKey)
+  {
+    long size = Math.max(64, (long)numKeys * bitsPerKey);
+    int numWords = (int)Math.min(Integer.MAX_VALUE / 64, (size + 63) / 64);
+    this.bits = new long[numWords];
+    this.numBits = numWords * 64;
+    this.numHashes = Math.max(1, (int)Math.round(bitsPerKey * Math.log(2)));
+  }
+
+  private BloomFilter(long[] bits, int numHashes)
+  {
+    this.bits = bits;
+    this.numBits = bits.length * 64;
+    this.numHashes = numHashes;
+  }
+
+  public void add(long hash)
+  {
+    int h1 = (int)(hash >>> 32);
+    int h2 = (int)hash;
+    for (int i = 0; i < numHashes; i++) {
+      int bit = position(h1 + i * h2);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  public void add(Slice key)
+  {
+    add(hash(key));
+  }
+
+  /**
+   * @param key
+   * @return false if the key was definitely not added, true if it may have been added.
+   */
+  public boolean mightContain(Slice key)
+  {
+    long hash = hash(key);
+    int h1 = (int)(hash >>> 32);
+    int h2 = (int)hash;
+    for (int i = 0; i < numHashes; i++) {
+      int bit = position(h1 + i * h2);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int position(int combinedHash)
+  {
+    if (combinedHash < 0) {
+      combinedHash = ~combinedHash;
+    }
+    return combinedHash % numBits;
+  }
+
+  public void write(DataOutput out) throws IOException
+  {
+    out.writeInt(numHashes);
+    out.writeInt(bits.length);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  public static BloomFilter read(DataInput in) throws IOException
+  {
+    int numHashes = in.readInt();
+    long[] bits = new long[in.readInt()];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(bits, numHashes);
+  }
+
+  /**
+   * 64 bit hash of the key bytes, composed of two 32 bit murmur3 hashes.
+   * @param key
+   * @return The hash value.
+   */
+  public static long hash(Slice key)
+  {
+    int h1 = murmur3(key.buffer, key.offset, key.length, 0);
+    int h2 = murmur3(key.buffer, key.offset, key.length, h1);
+    return ((long)h1 << 32) | (h2 & 0xffffffffL);
+  }
+
+  private static int murmur3(byte[] data, int offset, int length, int seed)
+  {
+    int h = seed;
+    int end = offset + (length & ~3);
+    for (int i = offset; i < end; i += 4) {
+      int k = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | (data[i + 3] << 24);
+      h ^= mixK(k);
+      h = Integer.rotateLeft(h, 13);
+      h = h * 5 + 0xe6546b64;
+    }
+
+    int k = 0;
+    switch (length & 3) {
+      case 3:
+        k ^= (data[end + 2] & 0xff) << 16;
+      case 2:
+        k ^= (data[end + 1] & 0xff) << 8;
+      case 1:
+        k ^= (data[end] & 0xff);
+        h ^= mixK(k);
+      default:
+    }
+
+    h ^= length;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static int mixK(int k)
+  {
+    k *= 0xcc9e2d51;
+    k = Integer.rotateLeft(k, 15);
+    k *= 0x1b873593;
+    return k;
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.datatorrent.api.Context;
+import com.datatorrent.api.Operator;
+import com.datatorrent.lib.bucket.AbstractBucket;
+import com.datatorrent.lib.bucket.Bucketable;
+import com.datatorrent.lib.bucket.Event;
+import com.datatorrent.lib.bucket.NonOperationalBucketStore;
+import com.datatorrent.lib.dedup.AbstractDeduper;
+
+/**
+ * Deduper that keeps the events of the buckets in HDHT with a {@link HDHTBucketStore}.&nbsp;
+ * The state of the HDHT buckets is handed over to the new owners when the deduper is repartitioned.
+ * <p>
+ * With {@link #setPointLookups(boolean) point lookups} an event of a bucket that is not loaded is checked against the
+ * store by its event key, instead of waiting for the whole bucket to be loaded.
+ * </p>
+ * @displayName HDHT Deduper
+ * @category Deduplication
+ * @tags hdht
+ *
+ * @since 2.2.0
+ */
+public abstract class DeduperWithHDHTStore<INPUT extends Bucketable & Event, OUTPUT> extends AbstractDeduper<INPUT, OUTPUT> implements Operator.CheckpointListener
+{
+  private boolean pointLookups;
+  private transient HDHTBucketStore<INPUT> store;
+
+  /**
+   * Sets whether events of buckets that are not loaded are looked up in the store by their event key. Lookups are
+   * synchronous, which suits inputs with few events per bucket and window. false (default) loads the bucket.
+   *
+   * @param pointLookups
+   */
+  public void setPointLookups(boolean pointLookups)
+  {
+    this.pointLookups = pointLookups;
+  }
+
+  public boolean isPointLookups()
+  {
+    return pointLookups;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void setup(Context.OperatorContext context)
+  {
+    boolean stateless = context.getValue(Context.OperatorContext.STATELESS);
+    if (stateless) {
+      bucketManager.setBucketStore(new NonOperationalBucketStore<INPUT>());
+    }
+    else {
+      store = (HDHTBucketStore<INPUT>) bucketManager.getBucketStore();
+      store.setConfiguration(partitionKeys, partitionMask);
+    }
+    super.setup(context);
+  }
+
+  @Override
+  protected void processTuple(INPUT tuple)
+  {
+    if (!pointLookups || store == null) {
+      super.processTuple(tuple);
+      return;
+    }
+    long bucketKey = bucketManager.getBucketKeyFor(tuple);
+    if (bucketKey < 0) {
+      return;
+    } //ignore event
+
+    List<INPUT> waitingList = waitingEvents.get(bucketKey);
+    if (waitingList != null) {
+      //the bucket is being loaded
+      waitingList.add(tuple);
+      bucketManager.updateWaitingEvents(bucketKey, waitingList.size());
+      return;
+    }
+
+    AbstractBucket<INPUT> bucket = bucketManager.getBucket(bucketKey);
+    boolean duplicate;
+    if (bucket != null && bucket.containsEvent(tuple)) {
+      duplicate = true;
+    }
+    else if (bucket != null && bucket.isDataOnDiskLoaded()) {
+      duplicate = false;
+    }
+    else {
+      //the event key is looked up instead of loading the bucket
+      try {
+        duplicate = store.containsEventKey(bucketKey, getEventKey(tuple));
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    if (duplicate) {
+      counters.getCounter(CounterKeys.DUPLICATE_EVENTS).increment();
+      duplicates.emit(tuple);
+    }
+    else {
+      bucketManager.newEvent(bucketKey, tuple);
+      output.emit(convert(tuple));
+    }
+  }
+
+  @Override
+  public void checkpointed(long windowId)
+  {
+    if (store != null) {
+      store.checkpointed(windowId);
+    }
+  }
+
+  @Override
+  public void committed(long windowId)
+  {
+    if (store != null) {
+      try {
+        store.committed(windowId);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Collection<Partition<AbstractDeduper<INPUT, OUTPUT>>> definePartitions(Collection<Partition<AbstractDeduper<INPUT, OUTPUT>>> partitions, PartitioningContext context)
+  {
+    List<DeduperWithHDHTStore<INPUT, OUTPUT>> oldDedupers = Lists.newArrayList();
+    for (Partition<AbstractDeduper<INPUT, OUTPUT>> partition : partitions) {
+      oldDedupers.add((DeduperWithHDHTStore<INPUT, OUTPUT>) partition.getPartitionedInstance());
+    }
+
+    Collection<Partition<AbstractDeduper<INPUT, OUTPUT>>> newPartitions = super.definePartitions(partitions, context);
+
+    List<HDHTBucketStore<INPUT>> owners = Lists.newArrayList();
+    for (Partition<AbstractDeduper<INPUT, OUTPUT>> partition : newPartitions) {
+      DeduperWithHDHTStore<INPUT, OUTPUT> deduper = (DeduperWithHDHTStore<INPUT, OUTPUT>) partition.getPartitionedInstance();
+      HDHTBucketStore<INPUT> owner = (HDHTBucketStore<INPUT>) deduper.bucketManager.getBucketStore();
+      owner.setConfiguration(deduper.partitionKeys, deduper.partitionMask);
+      owners.add(owner);
+    }
+    for (DeduperWithHDHTStore<INPUT, OUTPUT> deduper : oldDedupers) {
+      if (deduper.partitionKeys != null) {
+        HDHTBucketStore<INPUT> oldStore = (HDHTBucketStore<INPUT>) deduper.bucketManager.getBucketStore();
+        oldStore.setConfiguration(deduper.partitionKeys, deduper.partitionMask);
+        oldStore.transferBuckets(owners);
+      }
+    }
+    return newPartitions;
+  }
+
+  @Override
+  protected Object getEventKey(INPUT event)
+  {
+    return event.getEventKey();
+  }
+}
@@ -15,12 +15,25 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * HDFSWalReader
+ * <p>
+ * Reads the plain record and the block format written by {@link HDFSWalWriter}, the format is detected from the start
+ * of the file. In the block format, reading ends at the first incomplete block or block with checksum mismatch, which
+ * is what a torn write at the end of the file leaves behind.
  *
  * @since 2.0.0
  */
@@ -31,10 +44,38 @@ public class HDFSWalReader implements HDHT.WALReader
   MutableKeyValue pair = null;
   String name;
 
+  private boolean blockFormat;
+  private DataInputStream block;
+  private Checksum checksum;
+  private Inflater inflater;
+
   public HDFSWalReader(HDHTFileAccess bfs, long bucketKey, String name) throws IOException
   {
     this.name = name;
     in = bfs.getInputStream(bucketKey, name);
+
+    int magic = 0;
+    try {
+      magic = in.readInt();
+    } catch (EOFException ex) {
+      // empty file
+    }
+    if (magic == HDFSWalWriter.BLOCK_FORMAT_MAGIC) {
+      blockFormat = true;
+      checksum = new PureJavaCrc32C();
+      try {
+        int version = in.readInt();
+        if (version != HDFSWalWriter.BLOCK_FORMAT_VERSION) {
+          throw new IOException("Unsupported WAL version " + version + " " + name);
+        }
+      } catch (EOFException ex) {
+        eof = true;
+      }
+    } else {
+      // plain records, read from start
+      in.close();
+      in = bfs.getInputStream(bucketKey, name);
+    }
   }
 
   @Override public void close() throws IOException
@@ -42,10 +83,20 @@ public class HDFSWalReader implements HDHT.WALReader
     if (in != null) {
       in.close();
     }
+    if (inflater != null) {
+      inflater.end();
+    }
   }
 
   @Override public void seek(long offset) throws IOException
   {
+    if (blockFormat) {
+      // offsets are relative to start of file and point to a block
+      if (offset > HDFSWalWriter.BLOCK_FORMAT_HEADER_SIZE) {
+        IOUtils.skipFully(in, offset - HDFSWalWriter.BLOCK_FORMAT_HEADER_SIZE);
+      }
+      return;
+    }
     in.skipBytes((int) offset);
   }
 
@@ -54,27 +105,20 @@ public class HDFSWalReader implements HDHT.WALReader
     if (eof)
       return false;
 
-    try {
-      boolean isDelete = false;
-      int keyLen = in.readInt();
-      if (keyLen < 0) {
-        keyLen = -keyLen;
-        isDelete = true;
-      }
-
-      byte[] key = new byte[keyLen];
-      in.readFully(key);
-
-      byte[] value;
-      if (!isDelete) {
-        int valLen = in.readInt();
-        value = new byte[valLen];
-        in.readFully(value);
-      } else {
-        value = DELETED;
+    if (blockFormat) {
+      while (block == null || block.available() == 0) {
+        if (!readBlock()) {
+          eof = true;
+          pair = null;
+          return false;
+        }
       }
+      pair = readRecord(block);
+      return true;
+    }
 
-      pair =  new MutableKeyValue(key, value);
+    try {
+      pair = readRecord(in);
       return true;
     } catch (EOFException ex) {
       eof = true;
@@ -83,8 +127,98 @@ public class HDFSWalReader implements HDHT.WALReader
     }
   }
 
+  private MutableKeyValue readRecord(DataInputStream input) throws IOException
+  {
+    boolean isDelete = false;
+    int keyLen = input.readInt();
+    if (keyLen < 0) {
+      keyLen = -keyLen;
+      isDelete = true;
+    }
+
+    byte[] key = new byte[keyLen];
+    input.readFully(key);
+
+    byte[] value;
+    if (!isDelete) {
+      int valLen = input.readInt();
+      value = new byte[valLen];
+      input.readFully(value);
+    } else {
+      value = DELETED;
+    }
+
+    return new MutableKeyValue(key, value);
+  }
+
+  /**
+   * Read and verify the next block.
+   * @return false at end of file or when the block is incomplete or corrupt
+   */
+  private boolean readBlock() throws IOException
+  {
+    byte codec;
+    int storedLength;
+    int rawLength;
+    int expectedChecksum;
+    try {
+      codec = in.readByte();
+    } catch (EOFException ex) {
+      return false;
+    }
+
+    byte[] payload;
+    try {
+      storedLength = in.readInt();
+      rawLength = in.readInt();
+      expectedChecksum = in.readInt();
+      if (storedLength < 0 || rawLength < 0 || (codec != HDFSWalWriter.CODEC_NONE && codec != HDFSWalWriter.CODEC_DEFLATE)) {
+        LOG.warn("Invalid block header in WAL {}, ignoring remainder of file", name);
+        return false;
+      }
+      payload = new byte[storedLength];
+      in.readFully(payload);
+    } catch (EOFException ex) {
+      LOG.warn("Incomplete block at end of WAL {}", name);
+      return false;
+    }
+
+    checksum.reset();
+    checksum.update(payload, 0, storedLength);
+    if ((int)checksum.getValue() != expectedChecksum) {
+      LOG.warn("Checksum mismatch in WAL {}, ignoring remainder of file", name);
+      return false;
+    }
+
+    byte[] data = payload;
+    if (codec == HDFSWalWriter.CODEC_DEFLATE) {
+      if (inflater == null) {
+        inflater = new Inflater();
+      }
+      inflater.reset();
+      inflater.setInput(payload);
+      data = new byte[rawLength];
+      try {
+        int length = 0;
+        while (length < rawLength && !inflater.finished()) {
+          int n = inflater.inflate(data, length, rawLength - length);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Truncated compressed block in WAL " + name);
+          }
+          length += n;
+        }
+      } catch (DataFormatException ex) {
+        throw new IOException("Failed to decompress block in WAL " + name, ex);
+      }
+    }
+    block = new DataInputStream(new ByteArrayInputStream(data, 0, rawLength));
+    return true;
+  }
+
   @Override public MutableKeyValue get() {
     return pair;
   }
 
+  private static final Logger LOG = LoggerFactory.getLogger(HDFSWalReader.class);
+
 }
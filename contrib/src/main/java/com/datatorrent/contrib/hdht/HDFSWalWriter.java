@@ -15,61 +15,157 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.util.PureJavaCrc32C;
 
 import com.datatorrent.netlet.util.Slice;
 import com.datatorrent.contrib.hdht.HDHT.WALReader;
 
 /**
  * HDFSWalWriter
+ * <p>
+ * Writes either plain records <code>[int keyLen][key][int valLen][value]</code> (negative keyLen for deletes) or, when
+ * a block size is set, groups the records into blocks. The block format starts with {@link #BLOCK_FORMAT_MAGIC} and
+ * version, followed by blocks <code>[byte codec][int storedLen][int rawLen][int crc32c][payload]</code>. The checksum
+ * covers the stored payload, which is optionally deflate compressed. A block is completed when it reaches the block
+ * size and on every flush, hence flushed offsets are always block boundaries.
  *
  * @since 2.0.0 
  */
 public class HDFSWalWriter implements HDHT.WALWriter
 {
+  /**
+   * Marker at start of block format files. Can't occur in the record format, where the smallest key length is
+   * -Integer.MAX_VALUE.
+   */
+  public static final int BLOCK_FORMAT_MAGIC = Integer.MIN_VALUE;
+  public static final int BLOCK_FORMAT_VERSION = 1;
+  public static final int BLOCK_FORMAT_HEADER_SIZE = 8;
+  public static final byte CODEC_NONE = 0;
+  public static final byte CODEC_DEFLATE = 1;
+
   transient DataOutputStream out;
   long committedOffset;
   long unflushed;
   long bucketKey;
   String name;
 
+  private final int blockSize;
+  private BlockBuffer block;
+  private DataOutputStream blockOut;
+  private Deflater deflater;
+  private byte[] compressed;
+  private Checksum checksum;
+
   public HDFSWalWriter(HDHTFileAccess bfs, long bucketKey, String name) throws IOException
+  {
+    this(bfs, bucketKey, name, 0, false);
+  }
+
+  /**
+   * @param blockSize size of the uncompressed blocks, 0 to write plain records
+   * @param compress compress blocks
+   */
+  public HDFSWalWriter(HDHTFileAccess bfs, long bucketKey, String name, int blockSize, boolean compress) throws IOException
   {
     this.bucketKey = bucketKey;
     this.name = name;
+    this.blockSize = blockSize;
     out = bfs.getOutputStream(bucketKey, name);
     unflushed = 0;
     committedOffset = 0;
+    if (blockSize > 0) {
+      block = new BlockBuffer(blockSize);
+      blockOut = new DataOutputStream(block);
+      checksum = new PureJavaCrc32C();
+      if (compress) {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+      }
+      out.writeInt(BLOCK_FORMAT_MAGIC);
+      out.writeInt(BLOCK_FORMAT_VERSION);
+    }
   }
 
   @Override public void close() throws IOException
   {
     if (out != null)
     {
+      writeBlock();
       out.flush();
       out.close();
     }
+    if (deflater != null) {
+      deflater.end();
+    }
   }
 
   @Override
   public void append(Slice key, byte[] value) throws IOException
   {
+    DataOutputStream recordOut = blockSize > 0 ? blockOut : out;
     if (value == WALReader.DELETED) {
-      out.writeInt(-key.length);
-      out.write(key.buffer, key.offset, key.length);
+      recordOut.writeInt(-key.length);
+      recordOut.write(key.buffer, key.offset, key.length);
     } else {
-      out.writeInt(key.length);
-      out.write(key.buffer, key.offset, key.length);
-      out.writeInt(value.length);
-      out.write(value);
+      recordOut.writeInt(key.length);
+      recordOut.write(key.buffer, key.offset, key.length);
+      recordOut.writeInt(value.length);
+      recordOut.write(value);
+    }
+    if (blockSize > 0 && block.size() >= blockSize) {
+      writeBlock();
     }
   }
 
+  private void writeBlock() throws IOException
+  {
+    if (block == null || block.size() == 0) {
+      return;
+    }
+    byte codec = CODEC_NONE;
+    byte[] payload = block.buffer();
+    int rawLength = block.size();
+    int storedLength = rawLength;
+    if (deflater != null) {
+      deflater.reset();
+      deflater.setInput(payload, 0, rawLength);
+      deflater.finish();
+      if (compressed == null || compressed.length < rawLength) {
+        compressed = new byte[rawLength];
+      }
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == compressed.length) {
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      if (length < rawLength) {
+        codec = CODEC_DEFLATE;
+        payload = compressed;
+        storedLength = length;
+      }
+    }
+    checksum.reset();
+    checksum.update(payload, 0, storedLength);
+    out.writeByte(codec);
+    out.writeInt(storedLength);
+    out.writeInt(rawLength);
+    out.writeInt((int)checksum.getValue());
+    out.write(payload, 0, storedLength);
+    block.reset();
+  }
+
   @Override public void flush() throws IOException
   {
+    writeBlock();
     out.flush();
     if (out instanceof FSDataOutputStream) {
       ((FSDataOutputStream) out).hflush();
@@ -84,6 +180,9 @@ public class HDFSWalWriter implements HDHT.WALWriter
     return unflushed;
   }
 
+  /**
+   * Size of the file. Records of an incomplete block are not included.
+   */
   @Override public long logSize()
   {
     return out.size();
@@ -99,4 +198,17 @@ public class HDFSWalWriter implements HDHT.WALWriter
     return "HDFSWalWritter Bucket " + bucketKey + " fileId " + name ;
   }
 
+  private static class BlockBuffer extends ByteArrayOutputStream
+  {
+    BlockBuffer(int size)
+    {
+      super(size);
+    }
+
+    byte[] buffer()
+    {
+      return buf;
+    }
+  }
+
 }
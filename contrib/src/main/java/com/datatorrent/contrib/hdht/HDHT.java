@@ -17,6 +17,9 @@ package com.datatorrent.contrib.hdht;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import com.datatorrent.netlet.util.Slice;
 
@@ -30,6 +33,37 @@ public interface HDHT
   public interface Reader
   {
     byte[] get(long bucketKey, Slice key) throws IOException;
+
+    /**
+     * Look up multiple keys of a bucket. The keys are resolved in key order, each data file is read in one pass for
+     * all the keys it may contain.
+     *
+     * @param bucketKey
+     * @param keys
+     * @return The values in the order of the keys, null for keys that don't exist.
+     * @throws IOException
+     */
+    List<byte[]> getAll(long bucketKey, List<Slice> keys) throws IOException;
+
+    /**
+     * Iterate the entries of a bucket in key order, starting at fromKey (inclusive) and ending before toKey
+     * (exclusive). Null bounds leave the range open. Data files are read sequentially, the iterator should be consumed
+     * promptly as files replaced by a subsequent flush become unavailable.
+     *
+     * @param bucketKey
+     * @param fromKey lower bound (inclusive) or null
+     * @param toKey upper bound (exclusive) or null
+     * @return Iterator over the entries, to be closed after use.
+     * @throws IOException
+     */
+    ScanIterator scan(long bucketKey, Slice fromKey, Slice toKey) throws IOException;
+  }
+
+  /**
+   * Iterator returned by range scan. Failures to read data files are reported as runtime exceptions.
+   */
+  public interface ScanIterator extends Iterator<Map.Entry<Slice, byte[]>>, Closeable
+  {
   }
 
   public interface Writer
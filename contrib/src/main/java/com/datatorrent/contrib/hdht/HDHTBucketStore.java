@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datatorrent.lib.bucket.BucketStore;
+import com.datatorrent.lib.bucket.PrimitiveKeyMap;
+import com.datatorrent.netlet.util.Slice;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * {@link BucketStore} that keeps the events of the buckets in HDHT.
+ * <p>
+ * Every bucket index is split into HDHT buckets by the hash code of the event keys, with the same mask based scheme
+ * as {@link AbstractSinglePortHDHTWriter}: the number of HDHT buckets per index is derived from
+ * {@link #setMaxPartitionCount(int) maxPartitionCount} and a partition of the deduper owns the HDHT buckets that its
+ * partition keys map to. The HDHT buckets are shared by all partitions, hence the base path of the file store is not
+ * specific to an operator. Each HDHT bucket has its own WAL, so the number of buckets times the maximum partition count
+ * should stay moderate.
+ * <p>
+ * Event keys are stored as the key of the HDHT entry, which allows to look up a single event key with
+ * {@link #containsEventKey(long, Object)} instead of fetching the whole bucket. Keys and events are serialized with
+ * Kryo, the serialized form of equal event keys needs to be equal.
+ * <p>
+ * Deleting a bucket moves the bucket index to new HDHT buckets right away, the old HDHT buckets are deleted as a whole
+ * once the window of the deletion is committed, so that recovery from an earlier checkpoint still finds them. The
+ * checkpoint notifications need to be passed to {@link #checkpointed(long)} and {@link #committed(long)}, see
+ * {@link DeduperWithHDHTStore}.
+ *
+ * @param <T> type of bucket events
+ * @since 2.2.0
+ */
+public class HDHTBucketStore<T> implements BucketStore.ExpirableBucketStore<T>
+{
+  //Check-pointed
+  @NotNull
+  private HDHTWriter writer;
+  @Min(1)
+  private int maxPartitionCount;
+  @Min(1)
+  protected int noOfBuckets;
+  private boolean writeEventKeysOnly;
+  private boolean primitiveEventKeys;
+  protected Class<?> eventKeyClass;
+  //latest timestamp of the events stored in a bucket by bucket index
+  protected Map<Integer, Long> bucketTimestamps;
+  //number of deletions by HDHT bucket of the first generation, a deleted bucket index continues in new HDHT buckets
+  protected Map<Long, Long> generations;
+  //HDHT buckets that were deleted after the last checkpoint
+  protected List<Long> deletedBuckets;
+  //HDHT buckets that are deleted when the window is committed
+  protected TreeMap<Long, List<Long>> checkpointedDeletes;
+
+  //Non check-pointed
+  protected transient Kryo writeSerde;
+  protected transient ClassLoader classLoader;
+  protected transient Set<Integer> partitionKeys;
+  protected transient int partitionMask;
+
+  public HDHTBucketStore()
+  {
+    writer = new HDHTWriter();
+    maxPartitionCount = 1;
+    bucketTimestamps = Maps.newConcurrentMap();
+    generations = Maps.newConcurrentMap();
+    deletedBuckets = Lists.newArrayList();
+    checkpointedDeletes = Maps.newTreeMap();
+  }
+
+  @Override
+  public void setNoOfBuckets(int noOfBuckets)
+  {
+    this.noOfBuckets = noOfBuckets;
+  }
+
+  @Override
+  public void setWriteEventKeysOnly(boolean writeEventKeysOnly)
+  {
+    this.writeEventKeysOnly = writeEventKeysOnly;
+  }
+
+  @Override
+  public void setPrimitiveEventKeys(boolean primitiveEventKeys)
+  {
+    this.primitiveEventKeys = primitiveEventKeys;
+  }
+
+  /**
+   * The HDHT writer that stores the events. The file store needs a base path that is shared by all partitions.
+   *
+   * @param writer
+   */
+  public void setWriter(@Nonnull HDHTWriter writer)
+  {
+    this.writer = writer;
+  }
+
+  public HDHTWriter getWriter()
+  {
+    return writer;
+  }
+
+  /**
+   * Upper bound for the number of partitions of the deduper. The number of HDHT buckets per bucket index is derived
+   * from it and cannot change after data was written.
+   *
+   * @param maxPartitionCount
+   */
+  public void setMaxPartitionCount(int maxPartitionCount)
+  {
+    this.maxPartitionCount = maxPartitionCount;
+  }
+
+  public int getMaxPartitionCount()
+  {
+    return maxPartitionCount;
+  }
+
+  public void setConfiguration(Set<Integer> partitionKeys, int partitionMask)
+  {
+    this.partitionKeys = Preconditions.checkNotNull(partitionKeys, "partition keys");
+    this.partitionMask = partitionMask;
+    Preconditions.checkArgument((partitionMask & ~getKeyMask()) == 0, "partition mask %s exceeds the mask of maxPartitionCount %s", partitionMask, maxPartitionCount);
+    logger.debug("partition keys {}, {}", partitionKeys, partitionMask);
+  }
+
+  @Override
+  public void setup()
+  {
+    Preconditions.checkNotNull(partitionKeys, "partition keys");
+    this.writeSerde = new Kryo();
+    classLoader = Thread.currentThread().getContextClassLoader();
+    this.writeSerde.setClassLoader(classLoader);
+    writer.setup(null);
+  }
+
+  @Override
+  public void teardown()
+  {
+    writer.teardown();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized void storeBucketData(long window, long timestamp, Map<Integer, Map<Object, T>> data) throws IOException
+  {
+    writer.beginWindow(window);
+    for (Map.Entry<Integer, Map<Object, T>> bucketEntry : data.entrySet()) {
+      int bucketIdx = bucketEntry.getKey();
+      for (Map.Entry<Object, T> eventEntry : bucketEntry.getValue().entrySet()) {
+        Object eventKey = eventEntry.getKey();
+        if (eventKeyClass == null) {
+          eventKeyClass = eventKey.getClass();
+        }
+        byte[] value = writeEventKeysOnly ? KEY_ONLY_VALUE : serialize(eventEntry.getValue());
+        writer.put(getHDHTBucketKey(bucketIdx, eventKey), new Slice(serialize(eventKey)), value);
+      }
+      Long lastTimestamp = bucketTimestamps.get(bucketIdx);
+      if (lastTimestamp == null || lastTimestamp < timestamp) {
+        bucketTimestamps.put(bucketIdx, timestamp);
+      }
+    }
+    writer.endWindow();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized void deleteBucket(int bucketIdx) throws IOException
+  {
+    if (bucketTimestamps.remove(bucketIdx) == null) {
+      return;
+    }
+    int keyMask = getKeyMask();
+    for (int hashKey = 0; hashKey <= keyMask; hashKey++) {
+      if (isOwner(hashKey)) {
+        long firstKey = getHDHTBucketKey(0, bucketIdx, hashKey);
+        Long generation = generations.get(firstKey);
+        deletedBuckets.add(getHDHTBucketKey(generation == null ? 0 : generation, bucketIdx, hashKey));
+        generations.put(firstKey, generation == null ? 1 : generation + 1);
+      }
+    }
+    logger.debug("deleted bucket {}", bucketIdx);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized void deleteExpiredBuckets(long time) throws IOException
+  {
+    for (Map.Entry<Integer, Long> entry : Lists.newArrayList(bucketTimestamps.entrySet())) {
+      if (entry.getValue() < time) {
+        deleteBucket(entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Nonnull
+  @Override
+  @SuppressWarnings("unchecked")
+  public Map<Object, T> fetchBucket(int bucketIdx) throws Exception
+  {
+    Map<Object, T> bucketData = newBucketData();
+    if (!bucketTimestamps.containsKey(bucketIdx)) {
+      return bucketData;
+    }
+    logger.debug("start fetch bucket {}", bucketIdx);
+    long startTime = System.currentTimeMillis();
+
+    //buckets are fetched concurrently by the loaders of the manager
+    Kryo readSerde = new Kryo();
+    readSerde.setClassLoader(classLoader);
+    int keyMask = getKeyMask();
+    for (int hashKey = 0; hashKey <= keyMask; hashKey++) {
+      if (!isOwner(hashKey)) {
+        continue;
+      }
+      HDHT.ScanIterator iterator;
+      synchronized (this) {
+        //the scan copies the write cache
+        iterator = writer.scan(getHDHTBucketKey(bucketIdx, hashKey), null, null);
+      }
+      try {
+        while (iterator.hasNext()) {
+          Map.Entry<Slice, byte[]> entry = iterator.next();
+          Slice key = entry.getKey();
+          Object eventKey = readSerde.readClassAndObject(new Input(key.buffer, key.offset, key.length));
+          bucketData.put(eventKey, writeEventKeysOnly ? null : (T)readSerde.readClassAndObject(new Input(entry.getValue())));
+        }
+      }
+      finally {
+        iterator.close();
+      }
+    }
+    logger.debug("end fetch bucket {} num {} took {}", bucketIdx, bucketData.size(), System.currentTimeMillis() - startTime);
+    return bucketData;
+  }
+
+  /**
+   * Looks up a single event key without fetching the bucket.
+   *
+   * @param bucketKey key of the bucket.
+   * @param eventKey  event key.
+   * @return true if the event key is stored in the bucket; false otherwise.
+   * @throws IOException
+   */
+  public boolean containsEventKey(long bucketKey, Object eventKey) throws IOException
+  {
+    int bucketIdx = (int) (bucketKey % noOfBuckets);
+    if (!bucketTimestamps.containsKey(bucketIdx)) {
+      return false;
+    }
+    long hdhtBucketKey;
+    Slice key;
+    synchronized (this) {
+      hdhtBucketKey = getHDHTBucketKey(bucketIdx, eventKey);
+      key = new Slice(serialize(eventKey));
+      if (writer.getUncommitted(hdhtBucketKey, key) != null) {
+        return true;
+      }
+    }
+    return writer.get(hdhtBucketKey, key) != null;
+  }
+
+  public synchronized void checkpointed(long windowId)
+  {
+    writer.checkpointed(windowId);
+    if (!deletedBuckets.isEmpty()) {
+      checkpointedDeletes.put(windowId, deletedBuckets);
+      deletedBuckets = Lists.newArrayList();
+    }
+  }
+
+  public synchronized void committed(long windowId) throws IOException
+  {
+    Map<Long, List<Long>> committedDeletes = checkpointedDeletes.headMap(windowId, true);
+    for (List<Long> hdhtBucketKeys : committedDeletes.values()) {
+      for (long hdhtBucketKey : hdhtBucketKeys) {
+        writer.deleteBucket(hdhtBucketKey);
+      }
+    }
+    committedDeletes.clear();
+    writer.committed(windowId);
+  }
+
+  /**
+   * Hands over the state of the HDHT buckets to the stores that own them after repartitioning. The partition keys of
+   * this store and the new stores need to be configured.
+   *
+   * @param owners stores of the new partitions.
+   */
+  void transferBuckets(List<HDHTBucketStore<T>> owners)
+  {
+    for (Long hdhtBucketKey : writer.getBucketKeys()) {
+      if (isOwner(hashKeyOf(hdhtBucketKey))) {
+        writer.transferBucket(hdhtBucketKey, getOwner(owners, hdhtBucketKey).writer);
+      }
+    }
+    for (Map.Entry<Long, Long> entry : generations.entrySet()) {
+      if (isOwner(hashKeyOf(entry.getKey()))) {
+        getOwner(owners, entry.getKey()).generations.put(entry.getKey(), entry.getValue());
+      }
+    }
+    List<Long> pendingDeletes = Lists.newArrayList(deletedBuckets);
+    for (List<Long> hdhtBucketKeys : checkpointedDeletes.values()) {
+      pendingDeletes.addAll(hdhtBucketKeys);
+    }
+    for (long hdhtBucketKey : pendingDeletes) {
+      if (isOwner(hashKeyOf(hdhtBucketKey))) {
+        getOwner(owners, hdhtBucketKey).deletedBuckets.add(hdhtBucketKey);
+      }
+    }
+    for (HDHTBucketStore<T> owner : owners) {
+      for (Map.Entry<Integer, Long> entry : bucketTimestamps.entrySet()) {
+        Long timestamp = owner.bucketTimestamps.get(entry.getKey());
+        if (timestamp == null || timestamp < entry.getValue()) {
+          owner.bucketTimestamps.put(entry.getKey(), entry.getValue());
+        }
+      }
+      if (owner.eventKeyClass == null) {
+        owner.eventKeyClass = eventKeyClass;
+      }
+    }
+  }
+
+  private HDHTBucketStore<T> getOwner(List<HDHTBucketStore<T>> owners, long hdhtBucketKey)
+  {
+    for (HDHTBucketStore<T> owner : owners) {
+      if (owner.isOwner(hashKeyOf(hdhtBucketKey))) {
+        return owner;
+      }
+    }
+    throw new IllegalStateException("No partition for bucket " + hdhtBucketKey);
+  }
+
+  private boolean isOwner(int hashKey)
+  {
+    return partitionKeys.contains(hashKey & partitionMask);
+  }
+
+  private int getKeyMask()
+  {
+    return AbstractSinglePortHDHTWriter.getPartitionMask(maxPartitionCount);
+  }
+
+  private int hashKeyOf(long hdhtBucketKey)
+  {
+    return (int) (hdhtBucketKey & getKeyMask());
+  }
+
+  private long getHDHTBucketKey(int bucketIdx, Object eventKey)
+  {
+    return getHDHTBucketKey(bucketIdx, eventKey.hashCode() & getKeyMask());
+  }
+
+  private long getHDHTBucketKey(int bucketIdx, int hashKey)
+  {
+    Long generation = generations.get(getHDHTBucketKey(0, bucketIdx, hashKey));
+    return getHDHTBucketKey(generation == null ? 0 : generation, bucketIdx, hashKey);
+  }
+
+  private long getHDHTBucketKey(long generation, int bucketIdx, int hashKey)
+  {
+    return ((generation * noOfBuckets + bucketIdx) << Integer.bitCount(getKeyMask())) | hashKey;
+  }
+
+  private byte[] serialize(Object object)
+  {
+    Output output = new Output(64, -1);
+    writeSerde.writeClassAndObject(output, object);
+    return output.toBytes();
+  }
+
+  protected Map<Object, T> newBucketData()
+  {
+    if (primitiveEventKeys && PrimitiveKeyMap.supports(eventKeyClass)) {
+      return new PrimitiveKeyMap<T>();
+    }
+    return Maps.newHashMap();
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof HDHTBucketStore)) {
+      return false;
+    }
+
+    HDHTBucketStore<?> that = (HDHTBucketStore<?>) o;
+    return noOfBuckets == that.noOfBuckets && writeEventKeysOnly == that.writeEventKeysOnly && maxPartitionCount == that.maxPartitionCount && bucketTimestamps.equals(that.bucketTimestamps);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int result = (writeEventKeysOnly ? 1 : 0);
+    result = 31 * result + noOfBuckets;
+    result = 31 * result + maxPartitionCount;
+    result = 31 * result + bucketTimestamps.hashCode();
+    return result;
+  }
+
+  /**
+   * The clone has the configuration of this store, the state of the buckets is handed over with
+   * {@link #transferBuckets(List)}.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public HDHTBucketStore<T> clone() throws CloneNotSupportedException
+  {
+    HDHTBucketStore<T> clone = (HDHTBucketStore<T>) super.clone();
+    Kryo kryo = new Kryo();
+    // copy through serialization like the partitions of the writer operator
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Output output = new Output(bos);
+    kryo.writeObject(output, writer);
+    output.close();
+    clone.writer = kryo.readObject(new Input(bos.toByteArray()), writer.getClass());
+    for (Long hdhtBucketKey : clone.writer.getBucketKeys()) {
+      clone.writer.discardBucket(hdhtBucketKey);
+    }
+    clone.bucketTimestamps = Maps.newConcurrentMap();
+    clone.generations = Maps.newConcurrentMap();
+    clone.deletedBuckets = Lists.newArrayList();
+    clone.checkpointedDeletes = Maps.newTreeMap();
+    return clone;
+  }
+
+  private static final byte[] KEY_ONLY_VALUE = new byte[] {0};
+  private static final transient Logger logger = LoggerFactory.getLogger(HDHTBucketStore.class);
+}
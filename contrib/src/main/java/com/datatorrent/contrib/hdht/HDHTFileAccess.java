@@ -45,6 +45,13 @@ public interface HDHTFileAccess extends Closeable
   void rename(long bucketKey, String oldName, String newName) throws IOException;
   void delete(long bucketKey, String fileName) throws IOException;
 
+  /**
+   * Delete the bucket with all its files.
+   * @param bucketKey
+   * @throws IOException
+   */
+  void deleteBucket(long bucketKey) throws IOException;
+
   long getFileSize(long bucketKey, String s) throws IOException;
 
   /**
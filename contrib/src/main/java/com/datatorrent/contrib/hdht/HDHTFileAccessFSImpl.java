@@ -93,6 +93,12 @@ abstract public class HDHTFileAccessFSImpl implements HDHTFileAccess
     fs.delete(getFilePath(bucketKey, fileName), true);
   }
 
+  @Override
+  public void deleteBucket(long bucketKey) throws IOException
+  {
+    fs.delete(getBucketPath(bucketKey), true);
+  }
+
   @Override
   public FSDataOutputStream getOutputStream(long bucketKey, String fileName) throws IOException
   {
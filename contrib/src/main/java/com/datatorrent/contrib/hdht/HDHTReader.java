@@ -15,20 +15,29 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import org.apache.commons.io.IOUtils;
@@ -42,8 +51,12 @@ import com.datatorrent.common.util.NameableThreadFactory;
 import com.datatorrent.contrib.hdht.tfile.TFileImpl;
 import com.datatorrent.netlet.util.Slice;
 import com.datatorrent.contrib.hdht.HDHTFileAccess.HDSFileReader;
+import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
 import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 
@@ -62,6 +75,12 @@ public class HDHTReader implements Operator, HDHT.Reader
 {
   public static final String FNAME_WAL = "_WAL";
   public static final String FNAME_META = "_META";
+  public static final String FNAME_SUFFIX_BLOOM_FILTER = ".bloom";
+  /**
+   * Version of the meta data format, written as first byte of the meta data file. Meta data written before versioning
+   * starts with the class name of the Kryo serialized object, which is never this byte.
+   */
+  static final int META_VERSION = 2;
 
   public static class HDSQuery
   {
@@ -96,8 +115,19 @@ public class HDHTReader implements Operator, HDHT.Reader
   {
     BucketMeta bucketMeta = null;
     try {
-      InputStream is = store.getInputStream(bucketKey, FNAME_META);
-      bucketMeta = (BucketMeta)kryo.readClassAndObject(new Input(is));
+      InputStream is = new BufferedInputStream(store.getInputStream(bucketKey, FNAME_META));
+      is.mark(1);
+      if (is.read() == META_VERSION) {
+        synchronized (kryo) {
+          // called from reader threads
+          bucketMeta = (BucketMeta)kryo.readClassAndObject(new Input(is));
+        }
+      } else {
+        // written before versioning, read with the field layout of that format
+        is.reset();
+        LOG.debug("Reading unversioned {} of bucket {}", FNAME_META, bucketKey);
+        bucketMeta = (BucketMeta)newUnversionedMetaKryo().readClassAndObject(new Input(is));
+      }
       is.close();
     } catch (IOException e) {
       bucketMeta = new BucketMeta(keyComparator);
@@ -105,15 +135,35 @@ public class HDHTReader implements Operator, HDHT.Reader
     return bucketMeta;
   }
 
+  /**
+   * Kryo for meta data written before {@link #META_VERSION}. That format was written with the default field serializer
+   * and lacks the fields added since, which are left at the defaults of the serialization constructors.
+   */
+  @VisibleForTesting
+  static Kryo newUnversionedMetaKryo()
+  {
+    Kryo kryo = new Kryo();
+    FieldSerializer<BucketMeta> metaSerializer = new FieldSerializer<BucketMeta>(kryo, BucketMeta.class);
+    metaSerializer.removeField("runs");
+    FieldSerializer<BucketFileMeta> fileMetaSerializer = new FieldSerializer<BucketFileMeta>(kryo, BucketFileMeta.class);
+    fileMetaSerializer.removeField("bloomFilter");
+    // classes were written by name
+    kryo.register(new Registration(BucketMeta.class, metaSerializer, Kryo.NAME));
+    kryo.register(new Registration(BucketFileMeta.class, fileMetaSerializer, Kryo.NAME));
+    return kryo;
+  }
+
   /**
    * Map containing all current queries. Accessed by operator and reader threads.
    */
   protected final ConcurrentMap<Slice, HDSQuery> queries = Maps.newConcurrentMap();
-  private final transient Map<Long, BucketReader> buckets = Maps.newHashMap();
+  private final transient ConcurrentMap<Long, BucketReader> buckets = Maps.newConcurrentMap();
 
   @VisibleForTesting
   protected transient ExecutorService queryExecutor;
   private volatile transient Exception executorError;
+  @Min(1)
+  private int numReaderThreads = 1;
 
   public HDHTReader()
   {
@@ -135,6 +185,22 @@ public class HDHTReader implements Operator, HDHT.Reader
   }
 
 
+  /**
+   * Number of threads that process queries. Point lookups don't block each other, hence query throughput scales with
+   * the number of threads up to the number of cores or the throughput of the file system.
+   *
+   * @return The number of reader threads.
+   */
+  public int getNumReaderThreads()
+  {
+    return numReaderThreads;
+  }
+
+  public void setNumReaderThreads(int numReaderThreads)
+  {
+    this.numReaderThreads = numReaderThreads;
+  }
+
   public HDHTFileAccess getFileStore()
   {
     return store;
@@ -150,7 +216,7 @@ public class HDHTReader implements Operator, HDHT.Reader
   {
     this.store.init();
     if (queryExecutor == null) {
-      queryExecutor = Executors.newSingleThreadScheduledExecutor(new NameableThreadFactory(this.getClass().getSimpleName()+"-Reader"));
+      queryExecutor = Executors.newFixedThreadPool(numReaderThreads, new NameableThreadFactory(this.getClass().getSimpleName()+"-Reader"));
     }
   }
 
@@ -172,12 +238,24 @@ public class HDHTReader implements Operator, HDHT.Reader
   @Override
   public void endWindow()
   {
+    // pending queries are processed in one batch per bucket
+    Map<Long, List<HDSQuery>> bucketQueries = Maps.newHashMap();
+    for (HDSQuery query : this.queries.values()) {
+      if (!query.processed) {
+        List<HDSQuery> pending = bucketQueries.get(query.bucketKey);
+        if (pending == null) {
+          bucketQueries.put(query.bucketKey, pending = new ArrayList<HDSQuery>());
+        }
+        pending.add(query);
+      }
+    }
+    for (Map.Entry<Long, List<HDSQuery>> entry : bucketQueries.entrySet()) {
+      processQueries(entry.getKey(), entry.getValue());
+    }
+
     Iterator<Map.Entry<Slice, HDSQuery>> it = this.queries.entrySet().iterator();
     while (it.hasNext()) {
       HDSQuery query = it.next().getValue();
-      if (!query.processed) {
-        processQuery(query);
-      }
       // could be processed directly
       if (query.processed) {
         emitQueryResult(query);
@@ -193,19 +271,38 @@ public class HDHTReader implements Operator, HDHT.Reader
   }
 
   /**
-   * Fetch result for the given query from persistent storage
-   * Subclass can override this to serve from write cache.
+   * Fetch result for the given query from persistent storage.
+   *
+   * @deprecated pending queries are processed per bucket, override {@link #processQueries(long, List)} instead.
    */
+  @Deprecated
   protected void processQuery(final HDSQuery query)
+  {
+    processQueries(query.bucketKey, Collections.singletonList(query));
+  }
+
+  /**
+   * Fetch results for the given queries of a bucket from persistent storage with a single multi-get.
+   * Subclass can override this to serve from write cache.
+   */
+  protected void processQueries(final long bucketKey, final List<HDSQuery> bucketQueries)
   {
     Runnable readerRunnable = new Runnable() {
       @Override
       public void run()
       {
         try {
-          LOG.debug("Processing {}", query);
-          query.result = get(query.bucketKey, query.key);
-          query.processed = true;
+          LOG.debug("Processing {} queries for bucket {}", bucketQueries.size(), bucketKey);
+          List<Slice> keys = new ArrayList<Slice>(bucketQueries.size());
+          for (HDSQuery query : bucketQueries) {
+            keys.add(query.key);
+          }
+          List<byte[]> results = getAll(bucketKey, keys);
+          for (int i = 0; i < bucketQueries.size(); i++) {
+            HDSQuery query = bucketQueries.get(i);
+            query.result = results.get(i);
+            query.processed = true;
+          }
         } catch (Exception e) {
           executorError = e;
         }
@@ -218,83 +315,346 @@ public class HDHTReader implements Operator, HDHT.Reader
   {
     BucketReader br = this.buckets.get(bucketKey);
     if (br == null) {
-      this.buckets.put(bucketKey, br = new BucketReader());
+      BucketReader existing = this.buckets.putIfAbsent(bucketKey, br = new BucketReader());
+      if (existing != null) {
+        br = existing;
+      }
     }
     // meta data can be invalidated on write without removing unaffected readers
-    if (br.bucketMeta == null) {
+    if (br.bucketMeta.get() == null) {
       LOG.debug("Reading {} {}", bucketKey, FNAME_META);
-      br.bucketMeta = loadBucketMeta(bucketKey);
+      // meta data published by the writer meanwhile is more recent
+      br.bucketMeta.compareAndSet(null, loadBucketMeta(bucketKey));
     }
     return br;
   }
 
-  protected synchronized void invalidateReader(long bucketKey, Set<String> fileNames)
+  /**
+   * Close the readers of a bucket that was deleted.
+   */
+  protected void closeReader(long bucketKey)
+  {
+    BucketReader bucket = this.buckets.remove(bucketKey);
+    if (bucket != null) {
+      IOUtils.closeQuietly(bucket);
+    }
+  }
+
+  /**
+   * Force reload of the meta data and close readers for the given files.
+   */
+  protected void invalidateReader(long bucketKey, Set<String> fileNames)
+  {
+    updateReader(bucketKey, null, fileNames);
+  }
+
+  /**
+   * Replace the meta data of the bucket with a new version and close readers for files that are no longer referenced.
+   * The meta data must not be modified after it was passed in, as it is read concurrently.
+   */
+  protected void updateReader(long bucketKey, BucketMeta bucketMeta, Set<String> fileNames)
   {
-    // synchronized with get for access to bucket and readers
     BucketReader bucket = this.buckets.get(bucketKey);
     if (bucket != null) {
-      bucket.bucketMeta = null; // force index reload
+      bucket.bucketMeta.set(bucketMeta);
       for (String name : fileNames) {
-        LOG.debug("Closing reader {}", name);
-        IOUtils.closeQuietly(bucket.readers.remove(name));
+        bucket.keyFilters.remove(name);
+        Queue<HDSFileReader> readers = bucket.readers.remove(name);
+        if (readers != null) {
+          LOG.debug("Closing readers {}", name);
+          for (HDSFileReader reader : readers) {
+            IOUtils.closeQuietly(reader);
+          }
+        }
       }
     }
   }
 
-  private static Slice GET_KEY = new Slice(null, 0, 0);
-
   @Override
-  public synchronized byte[] get(long bucketKey, Slice key) throws IOException
+  public byte[] get(long bucketKey, Slice key) throws IOException
   {
-    // this method is synchronized to support asynchronous reads outside operator thread
+    // reads don't lock, meta data is replaced as a whole and file readers are not shared between threads
     for (int i=0; i<10; i++) {
       BucketReader bucket = getReader(bucketKey);
-      BucketMeta bucketMeta = bucket.bucketMeta;
+      BucketMeta bucketMeta = bucket.bucketMeta.get();
       if (bucketMeta == null) {
         // meta data invalidated
         continue;
       }
 
-      Map.Entry<Slice, BucketFileMeta> floorEntry = bucket.bucketMeta.files.floorEntry(key);
-      if (floorEntry == null) {
-        // no file for this key
-        return null;
-      }
-
+      BucketFileMeta fileMeta = null;
       try {
-        HDSFileReader reader = bucket.readers.get(floorEntry.getValue().name);
-        if (reader == null) {
-          LOG.debug("Opening file {} {}", bucketKey, floorEntry.getValue().name);
-          bucket.readers.put(floorEntry.getValue().name, reader = store.getReader(bucketKey, floorEntry.getValue().name));
-        }
-        Slice value = new Slice(null, 0,0);
-        if (reader.seek(key)) {
-          reader.next(GET_KEY, value);
+        // sorted runs shadow the data files, consult newest first
+        for (int r = bucketMeta.runs.size() - 1; r >= 0; r--) {
+          Map.Entry<Slice, BucketFileMeta> runEntry = bucketMeta.runs.get(r).files.floorEntry(key);
+          if (runEntry == null) {
+            continue;
+          }
+          fileMeta = runEntry.getValue();
+          Slice value = getValue(bucketKey, bucket, fileMeta, key);
+          if (value.buffer != null) {
+            // empty value in a run is a delete marker
+            return value.length == 0 ? null : toByteArray(value);
+          }
         }
-        if (value.offset == 0) {
-          return value.buffer;
-        } else {
-          // this is inefficient, should return Slice
-          return Arrays.copyOfRange(value.buffer, value.offset, value.offset + value.length);
+
+        Map.Entry<Slice, BucketFileMeta> floorEntry = bucketMeta.files.floorEntry(key);
+        if (floorEntry == null) {
+          // no file for this key
+          return null;
         }
+        fileMeta = floorEntry.getValue();
+        return toByteArray(getValue(bucketKey, bucket, fileMeta, key));
       } catch (IOException e) {
         // check for meta file update
-        this.buckets.remove(bucketKey);
-        bucket.close();
-        bucket = getReader(bucketKey);
-        Map.Entry<Slice, BucketFileMeta> newEntry = bucket.bucketMeta.files.floorEntry(key);
-        if (newEntry != null && newEntry.getValue().name.compareTo(floorEntry.getValue().name) == 0) {
+        BucketMeta newMeta = loadBucketMeta(bucketKey);
+        if (newMeta.containsFile(fileMeta.name)) {
           // file still the same - error unrelated to rewrite
           throw e;
         }
+        bucket.bucketMeta.compareAndSet(bucketMeta, newMeta);
         // retry
-        LOG.debug("Retry after meta data change bucket {} from {} to {}", bucketKey, floorEntry, newEntry);
+        LOG.debug("Retry after meta data change bucket {} file {}", bucketKey, fileMeta);
         continue;
       }
     }
     return null;
   }
 
+  @Override
+  public List<byte[]> getAll(long bucketKey, final List<Slice> keys) throws IOException
+  {
+    // keys are resolved in key order, so that each data file is read in one forward pass
+    Integer[] order = new Integer[keys.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer o1, Integer o2)
+      {
+        return keyComparator.compare(keys.get(o1), keys.get(o2));
+      }
+    });
+
+    byte[][] values = new byte[keys.size()][];
+    boolean[] resolved = new boolean[keys.size()];
+    for (int i=0; i<10; i++) {
+      BucketReader bucket = getReader(bucketKey);
+      BucketMeta bucketMeta = bucket.bucketMeta.get();
+      if (bucketMeta == null) {
+        // meta data invalidated
+        continue;
+      }
+
+      Arrays.fill(values, null);
+      Arrays.fill(resolved, false);
+      BucketFileMeta fileMeta = null;
+      try {
+        // sorted runs shadow the data files, consult newest first and the data files last (r == -1)
+        for (int r = bucketMeta.runs.size() - 1; r >= -1; r--) {
+          boolean run = r >= 0;
+          TreeMap<Slice, BucketFileMeta> files = run ? bucketMeta.runs.get(r).files : bucketMeta.files;
+          int k = 0;
+          while (k < order.length) {
+            int index = order[k];
+            if (resolved[index]) {
+              k++;
+              continue;
+            }
+            Map.Entry<Slice, BucketFileMeta> floorEntry = files.floorEntry(keys.get(index));
+            if (floorEntry == null) {
+              // no file for this key
+              resolved[index] = !run;
+              k++;
+              continue;
+            }
+            fileMeta = floorEntry.getValue();
+            k = getValues(bucketKey, bucket, fileMeta, files.higherKey(floorEntry.getKey()), run, keys, order, k, values, resolved);
+          }
+        }
+        return Arrays.asList(values);
+      } catch (IOException e) {
+        // check for meta file update
+        BucketMeta newMeta = loadBucketMeta(bucketKey);
+        if (newMeta.containsFile(fileMeta.name)) {
+          // file still the same - error unrelated to rewrite
+          throw e;
+        }
+        bucket.bucketMeta.compareAndSet(bucketMeta, newMeta);
+        // retry
+        LOG.debug("Retry after meta data change bucket {} file {}", bucketKey, fileMeta);
+        continue;
+      }
+    }
+    return Arrays.asList(new byte[keys.size()][]);
+  }
+
+  @Override
+  public HDHT.ScanIterator scan(long bucketKey, Slice fromKey, Slice toKey) throws IOException
+  {
+    ArrayList<HDHTScanIterator.Source> sources = new ArrayList<HDHTScanIterator.Source>();
+    addScanSources(bucketKey, fromKey, toKey, sources);
+    return new HDHTScanIterator(sources, getKeyComparator());
+  }
+
+  /**
+   * Add the sources of the bucket to scan, ordered from newest to oldest.
+   */
+  void addScanSources(long bucketKey, Slice fromKey, Slice toKey, List<HDHTScanIterator.Source> sources) throws IOException
+  {
+    BucketMeta bucketMeta = getReader(bucketKey).bucketMeta.get();
+    if (bucketMeta == null) {
+      // meta data invalidated
+      bucketMeta = loadBucketMeta(bucketKey);
+    }
+    for (int r = bucketMeta.runs.size() - 1; r >= 0; r--) {
+      sources.add(new HDHTScanIterator.FileSource(store, bucketKey, bucketMeta.runs.get(r).files, getKeyComparator(), fromKey, toKey, true));
+    }
+    sources.add(new HDHTScanIterator.FileSource(store, bucketKey, bucketMeta.files, getKeyComparator(), fromKey, toKey, false));
+  }
+
+  private Slice getValue(long bucketKey, BucketReader bucket, BucketFileMeta fileMeta, Slice key) throws IOException
+  {
+    if (!mightContain(bucketKey, bucket, fileMeta, key)) {
+      return new Slice(null, 0, 0);
+    }
+
+    Queue<HDSFileReader> readers = getReaders(bucket, fileMeta);
+    HDSFileReader reader = pollReader(bucketKey, fileMeta, readers);
+
+    Slice value = new Slice(null, 0,0);
+    try {
+      if (reader.seek(key)) {
+        reader.next(new Slice(null, 0, 0), value);
+      }
+    } catch (IOException e) {
+      IOUtils.closeQuietly(reader);
+      throw e;
+    }
+    releaseReader(bucket, fileMeta, readers, reader);
+    return value;
+  }
+
+  /**
+   * Read the values of the keys starting at the given position of the key order from one file, until the next file
+   * starts. Keys found in a run (or any key in the data files) are marked resolved.
+   *
+   * @return The position of the first key in the key order that belongs to the next file.
+   */
+  private int getValues(long bucketKey, BucketReader bucket, BucketFileMeta fileMeta, Slice nextStartKey, boolean run,
+      List<Slice> keys, Integer[] order, int k, byte[][] values, boolean[] resolved) throws IOException
+  {
+    Queue<HDSFileReader> readers = null;
+    HDSFileReader reader = null;
+    try {
+      for (; k < order.length; k++) {
+        int index = order[k];
+        Slice key = keys.get(index);
+        if (nextStartKey != null && keyComparator.compare(key, nextStartKey) >= 0) {
+          break;
+        }
+        if (resolved[index]) {
+          continue;
+        }
+
+        Slice value = new Slice(null, 0, 0);
+        if (mightContain(bucketKey, bucket, fileMeta, key)) {
+          if (reader == null) {
+            readers = getReaders(bucket, fileMeta);
+            reader = pollReader(bucketKey, fileMeta, readers);
+          }
+          if (reader.seek(key)) {
+            reader.next(new Slice(null, 0, 0), value);
+          }
+        }
+
+        if (!run) {
+          resolved[index] = true;
+          values[index] = toByteArray(value);
+        } else if (value.buffer != null) {
+          // empty value in a run is a delete marker
+          resolved[index] = true;
+          values[index] = value.length == 0 ? null : toByteArray(value);
+        }
+      }
+    } catch (IOException e) {
+      IOUtils.closeQuietly(reader);
+      throw e;
+    }
+    if (reader != null) {
+      releaseReader(bucket, fileMeta, readers, reader);
+    }
+    return k;
+  }
+
+  private boolean mightContain(long bucketKey, BucketReader bucket, BucketFileMeta fileMeta, Slice key) throws IOException
+  {
+    if (fileMeta.bloomFilter) {
+      BloomFilter filter = bucket.keyFilters.get(fileMeta.name);
+      if (filter == null) {
+        filter = loadBloomFilter(bucketKey, fileMeta.name);
+        bucket.keyFilters.putIfAbsent(fileMeta.name, filter);
+      }
+      return filter.mightContain(key);
+    }
+    return true;
+  }
+
+  private static Queue<HDSFileReader> getReaders(BucketReader bucket, BucketFileMeta fileMeta)
+  {
+    Queue<HDSFileReader> readers = bucket.readers.get(fileMeta.name);
+    if (readers == null) {
+      Queue<HDSFileReader> existing = bucket.readers.putIfAbsent(fileMeta.name, readers = new ConcurrentLinkedQueue<HDSFileReader>());
+      if (existing != null) {
+        readers = existing;
+      }
+    }
+    return readers;
+  }
+
+  private HDSFileReader pollReader(long bucketKey, BucketFileMeta fileMeta, Queue<HDSFileReader> readers) throws IOException
+  {
+    HDSFileReader reader = readers.poll();
+    if (reader == null) {
+      LOG.debug("Opening file {} {}", bucketKey, fileMeta.name);
+      reader = store.getReader(bucketKey, fileMeta.name);
+    }
+    return reader;
+  }
+
+  private static void releaseReader(BucketReader bucket, BucketFileMeta fileMeta, Queue<HDSFileReader> readers, HDSFileReader reader)
+  {
+    // return reader to the pool unless the file was retired meanwhile
+    if (bucket.readers.get(fileMeta.name) == readers) {
+      readers.offer(reader);
+    } else {
+      IOUtils.closeQuietly(reader);
+    }
+  }
+
+  private BloomFilter loadBloomFilter(long bucketKey, String fileName) throws IOException
+  {
+    LOG.debug("Reading bloom filter {} {}", bucketKey, fileName);
+    DataInputStream is = store.getInputStream(bucketKey, fileName + FNAME_SUFFIX_BLOOM_FILTER);
+    try {
+      return BloomFilter.read(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static byte[] toByteArray(Slice value)
+  {
+    if (value.offset == 0) {
+      return value.buffer;
+    } else {
+      // this is inefficient, should return Slice
+      return Arrays.copyOfRange(value.buffer, value.offset, value.offset + value.length);
+    }
+  }
+
   protected void addQuery(HDSQuery query)
   {
     HDSQuery existingQuery = this.queries.get(query.key);
@@ -320,6 +680,7 @@ public class HDHTReader implements Operator, HDHT.Reader
     }
   }
 
+  @DefaultSerializer(CompatibleFieldSerializer.class)
   public static class BucketFileMeta
   {
     /**
@@ -330,23 +691,60 @@ public class HDHTReader implements Operator, HDHT.Reader
      * Lower bound sequence key
      */
     public Slice startKey;
+    /**
+     * Bloom filter of the file keys was written next to the file. False for files written before bloom filters, which
+     * are looked up without a filter.
+     */
+    public boolean bloomFilter;
+
+    @Override
+    public String toString()
+    {
+      return "BucketFileMeta [name=" + name + ", startKey=" + startKey + ", bloomFilter=" + bloomFilter + "]";
+    }
+  }
+
+  /**
+   * Sorted run of data files, written by a flush or by merging the runs of the next lower level.
+   * Files within a run don't overlap, runs of the same bucket can overlap and newer runs shadow older ones.
+   */
+  @DefaultSerializer(CompatibleFieldSerializer.class)
+  public static class BucketRunMeta
+  {
+    protected BucketRunMeta(Comparator<Slice> cmp, int level)
+    {
+      files = new TreeMap<Slice, BucketFileMeta>(cmp);
+      this.level = level;
+    }
+
+    @SuppressWarnings("unused")
+    private BucketRunMeta()
+    {
+      // for serialization only
+      files = null;
+    }
 
     @Override
     public String toString()
     {
-      return "BucketFileMeta [name=" + name + ", startKey=" + startKey + "]";
+      return "BucketRunMeta [level=" + level + ", files=" + files.values() + "]";
     }
+
+    int level;
+    final TreeMap<Slice, BucketFileMeta> files;
   }
 
   /**
    * Meta data about bucket, persisted in store
    * Flushed on compaction
    */
+  @DefaultSerializer(CompatibleFieldSerializer.class)
   public static class BucketMeta
   {
     protected BucketMeta(Comparator<Slice> cmp)
     {
       files = new TreeMap<Slice, BucketFileMeta>(cmp);
+      runs = new ArrayList<BucketRunMeta>();
       recoveryStartWalPosition = new HDHTWalManager.WalPosition(0,0);
     }
 
@@ -355,9 +753,16 @@ public class HDHTReader implements Operator, HDHT.Reader
     {
       // for serialization only
       files = null;
+      // absent in meta data written before runs
+      runs = new ArrayList<BucketRunMeta>();
     }
 
     protected BucketFileMeta addFile(long bucketKey, Slice startKey)
+    {
+      return addFile(bucketKey, files, startKey);
+    }
+
+    protected BucketFileMeta addFile(long bucketKey, TreeMap<Slice, BucketFileMeta> target, Slice startKey)
     {
       BucketFileMeta bfm = new BucketFileMeta();
       bfm.name = Long.toString(bucketKey) + '-' + this.fileSeq++;
@@ -366,26 +771,52 @@ public class HDHTReader implements Operator, HDHT.Reader
         startKey = new Slice(startKey.toByteArray());
       }
       bfm.startKey = startKey;
-      files.put(startKey, bfm);
+      target.put(startKey, bfm);
       return bfm;
     }
 
+    protected boolean containsFile(String name)
+    {
+      for (BucketRunMeta run : runs) {
+        for (BucketFileMeta bfm : run.files.values()) {
+          if (name.equals(bfm.name)) {
+            return true;
+          }
+        }
+      }
+      for (BucketFileMeta bfm : files.values()) {
+        if (name.equals(bfm.name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
     int fileSeq;
     long committedWid;
     final TreeMap<Slice, BucketFileMeta> files;
+    /**
+     * Runs not merged into the data files yet, ordered from oldest to newest.
+     */
+    final ArrayList<BucketRunMeta> runs;
     HDHTWalManager.WalPosition recoveryStartWalPosition;
   }
 
   private static class BucketReader implements Closeable
   {
-    BucketMeta bucketMeta;
-    final ConcurrentMap<String, HDSFileReader> readers = Maps.newConcurrentMap();
+    final AtomicReference<BucketMeta> bucketMeta = new AtomicReference<BucketMeta>();
+    // idle readers by file name, a reader is used by one thread at a time
+    final ConcurrentMap<String, Queue<HDSFileReader>> readers = Maps.newConcurrentMap();
+    // key filters by file name, loaded on first access
+    final ConcurrentMap<String, BloomFilter> keyFilters = Maps.newConcurrentMap();
 
     @Override
     public void close() throws IOException
     {
-      for (HDSFileReader reader : readers.values()) {
-        reader.close();
+      for (Queue<HDSFileReader> fileReaders : readers.values()) {
+        for (HDSFileReader reader : fileReaders) {
+          reader.close();
+        }
       }
     }
   }
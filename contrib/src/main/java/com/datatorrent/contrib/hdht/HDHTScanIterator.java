@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+
+import com.datatorrent.contrib.hdht.HDHTFileAccess.HDSFileReader;
+import com.datatorrent.contrib.hdht.HDHTReader.BucketFileMeta;
+import com.datatorrent.netlet.util.Slice;
+import com.google.common.collect.Maps;
+
+/**
+ * Merges the sorted sources of a bucket into a single range scan. Sources are ordered from newest to oldest, for keys
+ * present in multiple sources the value of the newest source is returned.
+ *
+ * @since 2.2.0
+ */
+class HDHTScanIterator implements HDHT.ScanIterator
+{
+  /**
+   * Sorted source of key value pairs within the scan range.
+   */
+  abstract static class Source
+  {
+    Slice key;
+    byte[] value;
+    boolean deleted;
+
+    /**
+     * Move to the next entry, sets key to null when the source is exhausted.
+     */
+    abstract void advance() throws IOException;
+
+    void close()
+    {
+    }
+  }
+
+  /**
+   * Source backed by an in memory snapshot, {@link HDHT.WALReader#DELETED} marks deleted keys.
+   */
+  static class CacheSource extends Source
+  {
+    private final Iterator<Map.Entry<Slice, byte[]>> entries;
+
+    CacheSource(SortedMap<Slice, byte[]> data)
+    {
+      this.entries = data.entrySet().iterator();
+    }
+
+    @Override
+    void advance()
+    {
+      if (entries.hasNext()) {
+        Map.Entry<Slice, byte[]> entry = entries.next();
+        key = entry.getKey();
+        value = entry.getValue();
+        deleted = value == HDHT.WALReader.DELETED;
+      } else {
+        key = null;
+      }
+    }
+  }
+
+  /**
+   * Source that reads the non overlapping files of a run or the data files of a bucket sequentially.
+   */
+  static class FileSource extends Source
+  {
+    private final HDHTFileAccess store;
+    private final long bucketKey;
+    private final Iterator<BucketFileMeta> files;
+    private final Comparator<Slice> cmp;
+    private final Slice fromKey;
+    private final Slice toKey;
+    private final boolean emptyIsDeleted;
+    private HDSFileReader reader;
+
+    /**
+     * @param emptyIsDeleted empty values are delete markers, true for sorted runs
+     */
+    FileSource(HDHTFileAccess store, long bucketKey, TreeMap<Slice, BucketFileMeta> files, Comparator<Slice> cmp, Slice fromKey, Slice toKey, boolean emptyIsDeleted)
+    {
+      this.store = store;
+      this.bucketKey = bucketKey;
+      this.cmp = cmp;
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      this.emptyIsDeleted = emptyIsDeleted;
+      SortedMap<Slice, BucketFileMeta> rangeFiles = files;
+      if (fromKey != null) {
+        Slice floorKey = files.floorKey(fromKey);
+        rangeFiles = files.tailMap(floorKey != null ? floorKey : fromKey);
+      }
+      if (toKey != null) {
+        rangeFiles = rangeFiles.headMap(toKey);
+      }
+      this.files = rangeFiles.values().iterator();
+    }
+
+    @Override
+    void advance() throws IOException
+    {
+      while (true) {
+        if (reader == null) {
+          if (!files.hasNext()) {
+            key = null;
+            return;
+          }
+          BucketFileMeta fileMeta = files.next();
+          if (fileMeta.name == null) {
+            // placeholder without data
+            continue;
+          }
+          reader = store.getReader(bucketKey, fileMeta.name);
+          if (fromKey != null && cmp.compare(fileMeta.startKey, fromKey) < 0) {
+            reader.seek(fromKey);
+          }
+        }
+
+        Slice k = new Slice(null, 0, 0);
+        Slice v = new Slice(null, 0, 0);
+        if (!reader.next(k, v)) {
+          close();
+          continue;
+        }
+        if (fromKey != null && cmp.compare(k, fromKey) < 0) {
+          // reader positioned before the range
+          continue;
+        }
+        if (toKey != null && cmp.compare(k, toKey) >= 0) {
+          close();
+          while (files.hasNext()) {
+            files.next();
+          }
+          key = null;
+          return;
+        }
+        // buffers can be reused by the reader
+        key = new Slice(k.toByteArray());
+        value = new Slice(v.buffer, v.offset, v.length).toByteArray();
+        deleted = emptyIsDeleted && value.length == 0;
+        return;
+      }
+    }
+
+    @Override
+    void close()
+    {
+      IOUtils.closeQuietly(reader);
+      reader = null;
+    }
+  }
+
+  private final List<Source> sources;
+  private final Comparator<Slice> cmp;
+  private Map.Entry<Slice, byte[]> next;
+  private boolean initialized;
+
+  HDHTScanIterator(List<Source> sources, Comparator<Slice> cmp)
+  {
+    this.sources = sources;
+    this.cmp = cmp;
+  }
+
+  private void fetchNext() throws IOException
+  {
+    if (!initialized) {
+      for (Source source : sources) {
+        source.advance();
+      }
+      initialized = true;
+    }
+
+    while (true) {
+      // smallest key, on ties the newest source wins
+      Source current = null;
+      for (Source source : sources) {
+        if (source.key != null && (current == null || cmp.compare(source.key, current.key) < 0)) {
+          current = source;
+        }
+      }
+      if (current == null) {
+        next = null;
+        return;
+      }
+
+      Slice key = current.key;
+      byte[] value = current.value;
+      boolean deleted = current.deleted;
+      // skip the key in older sources
+      for (Source source : sources) {
+        if (source != current && source.key != null && cmp.compare(source.key, key) == 0) {
+          source.advance();
+        }
+      }
+      current.advance();
+      if (!deleted) {
+        next = Maps.immutableEntry(key, value);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if (next == null) {
+      try {
+        fetchNext();
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to read data file", e);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public Map.Entry<Slice, byte[]> next()
+  {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Map.Entry<Slice, byte[]> result = next;
+    next = null;
+    return result;
+  }
+
+  @Override
+  public void remove()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close()
+  {
+    for (Source source : sources) {
+      source.close();
+    }
+  }
+
+}
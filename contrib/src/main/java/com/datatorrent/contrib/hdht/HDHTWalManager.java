@@ -20,7 +20,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -38,6 +43,11 @@ import com.datatorrent.contrib.hdht.HDHT.WALWriter;
  * have grown a beyond maxWalFileSize then current file is closed
  * and new file is created.
  *
+ * In asynchronous mode appends are collected in batches and written by a
+ * background thread, at most one batch per bucket is in flight. The flush
+ * at end of window is issued without waiting, {@link #awaitFlush()} completes
+ * it, which allows the flush of all buckets to proceed as group.
+ *
  * The WAL usage windowId as log sequence number(LSN). When data is
  * written to data files, the committedWid saved in bucket metadata.
  *
@@ -93,6 +103,12 @@ public class HDHTWalManager implements Closeable
    * default is 128M */
   transient long maxWalFileSize = 128 * 1024 * 1024;
 
+  /* Size of checksummed WAL blocks, 0 writes plain records */
+  transient int walBlockSize = 0;
+
+  /* Compress WAL blocks */
+  transient boolean walCompression = false;
+
   /* The class responsible writing WAL entry to file */
   transient WALWriter writer;
 
@@ -100,6 +116,17 @@ public class HDHTWalManager implements Closeable
 
   private boolean dirty;
 
+  /* Executor for asynchronous writes, single threaded and shared by the buckets of the operator. Null for synchronous writes. */
+  private transient ExecutorService asyncExecutor;
+  private transient ArrayList<Slice> pendingKeys = new ArrayList<Slice>();
+  private transient ArrayList<byte[]> pendingValues = new ArrayList<byte[]>();
+  private transient long pendingBytes;
+  /* last batch submitted to the executor */
+  private transient Future<Void> writeFuture;
+  /* flush issued at end of window */
+  private transient Future<Void> flushFuture;
+  private transient long flushWindowId;
+
   /* Last committed LSN on disk */
   private long flushedWid = -1;
 
@@ -174,6 +201,10 @@ public class HDHTWalManager implements Closeable
   {
     if (pos.offset == 0)
       return;
+    if (bfs.getFileSize(bucketKey, WAL_FILE_PREFIX + pos.fileId) <= pos.offset) {
+      // nothing written after the checkpoint, incomplete blocks are detected by the reader
+      return;
+    }
     logger.info("recover wal file {}, data valid till offset {}", pos.fileId, pos.offset);
     DataInputStream in = bfs.getInputStream(bucketKey, WAL_FILE_PREFIX + pos.fileId);
     DataOutputStream out = bfs.getOutputStream(bucketKey, WAL_FILE_PREFIX + pos.fileId + "-truncate");
@@ -186,14 +217,24 @@ public class HDHTWalManager implements Closeable
   public void append(Slice key, byte[] value) throws IOException
   {
     if (writer == null)
-      writer = new HDFSWalWriter(bfs, bucketKey, WAL_FILE_PREFIX + walFileId);
+      writer = new HDFSWalWriter(bfs, bucketKey, WAL_FILE_PREFIX + walFileId, walBlockSize, walCompression);
 
-    writer.append(key, value);
     long bytes = key.length + value.length + 2 * 4;
     stats.totalBytes += bytes;
     stats.totalKeys ++;
     dirty = true;
 
+    if (asyncExecutor != null) {
+      pendingKeys.add(key);
+      pendingValues.add(value);
+      pendingBytes += bytes;
+      if (maxUnflushedBytes > 0 && pendingBytes > maxUnflushedBytes) {
+        submitPending();
+      }
+      return;
+    }
+
+    writer.append(key, value);
     if (maxUnflushedBytes > 0 && writer.getUnflushedCount() > maxUnflushedBytes)
     {
       flushWal();
@@ -211,6 +252,51 @@ public class HDHTWalManager implements Closeable
     stats.flushDuration += System.currentTimeMillis() - startTime;
   }
 
+  /**
+   * Hand the pending appends to the background thread. Waits for the previous batch of the bucket, the wait is
+   * accounted as flush time.
+   */
+  private void submitPending() throws IOException
+  {
+    if (pendingKeys.isEmpty())
+      return;
+
+    waitFor(writeFuture);
+    final WALWriter w = writer;
+    final ArrayList<Slice> keys = pendingKeys;
+    final ArrayList<byte[]> values = pendingValues;
+    pendingKeys = new ArrayList<Slice>();
+    pendingValues = new ArrayList<byte[]>();
+    pendingBytes = 0;
+    writeFuture = asyncExecutor.submit(new Callable<Void>()
+    {
+      @Override
+      public Void call() throws IOException
+      {
+        for (int i = 0; i < keys.size(); i++) {
+          w.append(keys.get(i), values.get(i));
+        }
+        return null;
+      }
+    });
+  }
+
+  private void waitFor(Future<Void> future) throws IOException
+  {
+    if (future == null)
+      return;
+    long startTime = System.currentTimeMillis();
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for WAL write", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to write WAL " + writer, e.getCause());
+    } finally {
+      stats.flushDuration += System.currentTimeMillis() - startTime;
+    }
+  }
+
   /* batch writes, and wait till file is written */
   public void endWindow(long windowId) throws IOException
   {
@@ -218,8 +304,45 @@ public class HDHTWalManager implements Closeable
     if (!dirty)
       return;
 
+    if (asyncExecutor != null) {
+      submitPending();
+      final WALWriter w = writer;
+      flushFuture = asyncExecutor.submit(new Callable<Void>()
+      {
+        @Override
+        public Void call() throws IOException
+        {
+          w.flush();
+          return null;
+        }
+      });
+      flushWindowId = windowId;
+      return;
+    }
+
     flushWal();
+    completeWindow(windowId);
+  }
+
+  /**
+   * Wait for the flush issued by {@link #endWindow(long)} in asynchronous mode. The WAL is durable up to the end of
+   * the window after this call returns. Nothing to do in synchronous mode.
+   */
+  public void awaitFlush() throws IOException
+  {
+    if (flushFuture == null)
+      return;
 
+    waitFor(writeFuture);
+    waitFor(flushFuture);
+    writeFuture = null;
+    flushFuture = null;
+    stats.flushCounts++;
+    completeWindow(flushWindowId);
+  }
+
+  private void completeWindow(long windowId) throws IOException
+  {
     dirty = false;
     flushedWid = windowId;
     walSize = writer.logSize();
@@ -267,6 +390,26 @@ public class HDHTWalManager implements Closeable
     this.maxWalFileSize = maxWalFileSize;
   }
 
+  public int getWalBlockSize()
+  {
+    return walBlockSize;
+  }
+
+  public void setWalBlockSize(int walBlockSize)
+  {
+    this.walBlockSize = walBlockSize;
+  }
+
+  public boolean isWalCompression()
+  {
+    return walCompression;
+  }
+
+  public void setWalCompression(boolean walCompression)
+  {
+    this.walCompression = walCompression;
+  }
+
   public long getMaxUnflushedBytes()
   {
     return maxUnflushedBytes;
@@ -284,10 +427,28 @@ public class HDHTWalManager implements Closeable
   @Override
   public void close() throws IOException
   {
+    if (asyncExecutor != null) {
+      submitPending();
+      waitFor(writeFuture);
+      waitFor(flushFuture);
+      writeFuture = null;
+      flushFuture = null;
+    }
     if (writer != null)
       writer.close();
   }
 
+  /**
+   * Set executor for asynchronous writes. The executor needs to be single threaded, as writes of a bucket are
+   * submitted as separate tasks that need to execute in order.
+   *
+   * @param asyncExecutor executor or null for synchronous writes
+   */
+  public void setAsyncExecutor(ExecutorService asyncExecutor)
+  {
+    this.asyncExecutor = asyncExecutor;
+  }
+
   public long getWalFileId()
   {
     return walFileId;
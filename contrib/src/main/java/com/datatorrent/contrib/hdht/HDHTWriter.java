@@ -15,6 +15,7 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -38,8 +39,11 @@ import com.datatorrent.common.util.NameableThreadFactory;
 import com.datatorrent.netlet.util.Slice;
 import com.datatorrent.contrib.hdht.HDHTFileAccess.HDSFileReader;
 import com.datatorrent.contrib.hdht.HDHTFileAccess.HDSFileWriter;
+import com.datatorrent.contrib.hdht.tfile.BlockCache;
+import com.datatorrent.contrib.hdht.tfile.TFileImpl;
 import com.esotericsoftware.kryo.io.Output;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -62,18 +66,30 @@ import com.google.common.collect.Sets;
 public class HDHTWriter extends HDHTReader implements CheckpointListener, Operator, HDHT.Writer
 {
 
-  private final transient HashMap<Long, BucketMeta> metaCache = Maps.newHashMap();
+  private final transient Map<Long, BucketMeta> metaCache = Maps.newConcurrentMap();
   private long currentWindowId;
   private transient long lastFlushWindowId;
   private final transient HashMap<Long, Bucket> buckets = Maps.newHashMap();
   @VisibleForTesting
   protected transient ExecutorService writeExecutor;
+  private transient ExecutorService walExecutor;
   private volatile transient Throwable writerError;
+  private final transient Object flushMonitor = new Object();
+  private transient int pendingFlushes;
 
   private int maxFileSize = 128 * 1024 * 1024; // 128m
   private int maxWalFileSize = 64 * 1024 * 1024;
   private int flushSize = 1000000;
   private int flushIntervalCount = 120;
+  private int maxRunsPerLevel = 0;
+  private int maxRunLevels = 3;
+  private int bloomFilterBitsPerKey = 0;
+  private boolean asyncWal = false;
+  private int walBlockSize = 0;
+  private boolean walCompression = false;
+  private int flushThreads = 1;
+  private int maxPendingFlushes = 0;
+  private long maxCacheBytes = 0;
 
   private final HashMap<Long, WalMeta> walMeta = Maps.newHashMap();
   private transient OperatorContext context;
@@ -142,15 +158,178 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     this.flushIntervalCount = flushIntervalCount;
   }
 
+  /**
+   * Number of sorted runs that are allowed to accumulate on a level before they are merged into a single run on the
+   * next level. When set, flushes write the frozen write cache as new sorted run instead of rewriting the data files
+   * the changes fall into, and the data files are only rewritten when the runs of the last level are merged. Deletes
+   * are kept as empty values in runs, hence put rejects empty values in this mode. Zero (the default) disables
+   * runs and every flush merges changes into the data files directly.
+   *
+   * @return The number of runs per level.
+   */
+  @Min(value = 0)
+  public int getMaxRunsPerLevel()
+  {
+    return maxRunsPerLevel;
+  }
+
+  public void setMaxRunsPerLevel(int maxRunsPerLevel)
+  {
+    this.maxRunsPerLevel = maxRunsPerLevel;
+  }
+
+  /**
+   * Number of run levels. Runs of the last level are merged into the data files once {@link #maxRunsPerLevel} of
+   * them have accumulated.
+   *
+   * @return The number of run levels.
+   */
+  @Min(value = 1)
+  public int getMaxRunLevels()
+  {
+    return maxRunLevels;
+  }
+
+  public void setMaxRunLevels(int maxRunLevels)
+  {
+    this.maxRunLevels = maxRunLevels;
+  }
+
+  /**
+   * Size of the blocks that WAL records are grouped into. Each block carries a CRC32C checksum, which allows recovery
+   * to detect incomplete or corrupt data at the end of the WAL. Zero (the default) writes plain records without
+   * checksum. Existing WAL files are readable regardless of the setting.
+   *
+   * @return The WAL block size.
+   */
+  @Min(value = 0)
+  public int getWalBlockSize()
+  {
+    return walBlockSize;
+  }
+
+  public void setWalBlockSize(int walBlockSize)
+  {
+    this.walBlockSize = walBlockSize;
+  }
+
+  /**
+   * Compress WAL blocks with deflate. Only applies when {@link #walBlockSize} is set.
+   *
+   * @return Whether WAL blocks are compressed.
+   */
+  public boolean isWalCompression()
+  {
+    return walCompression;
+  }
+
+  public void setWalCompression(boolean walCompression)
+  {
+    this.walCompression = walCompression;
+  }
+
+  /**
+   * Number of threads that write data files. Buckets are flushed concurrently up to this number, the flushes of a
+   * single bucket are always applied in order.
+   *
+   * @return The number of flush threads.
+   */
+  @Min(value = 1)
+  public int getFlushThreads()
+  {
+    return flushThreads;
+  }
+
+  public void setFlushThreads(int flushThreads)
+  {
+    this.flushThreads = flushThreads;
+  }
+
+  /**
+   * Maximum number of buckets with a frozen write cache waiting for or being written to data files. Once reached, the
+   * operator blocks on commit until a flush completes, which limits the memory held by frozen caches when the data
+   * files cannot be written as fast as changes are committed. Zero (the default) does not limit pending flushes.
+   *
+   * @return The maximum number of pending flushes.
+   */
+  @Min(value = 0)
+  public int getMaxPendingFlushes()
+  {
+    return maxPendingFlushes;
+  }
+
+  public void setMaxPendingFlushes(int maxPendingFlushes)
+  {
+    this.maxPendingFlushes = maxPendingFlushes;
+  }
+
+  /**
+   * Memory budget for the changes cached by the operator across all buckets, in bytes. The size of the cached entries
+   * is accounted for each cache generation from the write cache to the frozen cache being written to data files. Once
+   * the budget is exceeded, all committed changes are flushed regardless of {@link #flushSize} and
+   * {@link #flushIntervalCount}. Changes can only be flushed once committed, the budget should therefore leave room for
+   * the changes of the windows between checkpoint and commit. Zero (the default) disables the budget.
+   *
+   * @return The memory budget in bytes.
+   */
+  @Min(value = 0)
+  public long getMaxCacheBytes()
+  {
+    return maxCacheBytes;
+  }
+
+  public void setMaxCacheBytes(long maxCacheBytes)
+  {
+    this.maxCacheBytes = maxCacheBytes;
+  }
+
+  /**
+   * Write the WAL from a background thread. Appends are handed to the thread in batches and the flush of all buckets
+   * at end of window is issued before waiting for any of them, the operator only blocks once per window. The WAL is
+   * durable at the end of every window in both modes.
+   *
+   * @return Whether the WAL is written asynchronously.
+   */
+  public boolean isAsyncWal()
+  {
+    return asyncWal;
+  }
+
+  public void setAsyncWal(boolean asyncWal)
+  {
+    this.asyncWal = asyncWal;
+  }
+
+  /**
+   * Bits per key of the bloom filter written next to each data file. The reader uses the filter to skip files that
+   * don't contain the key, 10 bits per key result in about 1% false positives. The filter hashes the key bytes, hence
+   * it can only be used when keys that are equal according to the key comparator also have equal bytes. Zero (the
+   * default) disables the filters.
+   *
+   * @return The number of bits per key.
+   */
+  @Min(value = 0)
+  public int getBloomFilterBitsPerKey()
+  {
+    return bloomFilterBitsPerKey;
+  }
+
+  public void setBloomFilterBitsPerKey(int bloomFilterBitsPerKey)
+  {
+    this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+  }
+
   /**
    * Write data to size based rolling files
    *
    * @param bucket
    * @param bucketMeta
+   * @param files target for the meta data of the new files
    * @param data
+   * @param keepDeleted write deleted keys with empty value, required for runs to shadow older data
    * @throws IOException
    */
-  private void writeFile(Bucket bucket, BucketMeta bucketMeta, TreeMap<Slice, byte[]> data) throws IOException
+  private void writeFile(Bucket bucket, BucketMeta bucketMeta, TreeMap<Slice, BucketFileMeta> files, TreeMap<Slice, byte[]> data, boolean keepDeleted) throws IOException
   {
     BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
     long startTime = System.currentTimeMillis();
@@ -158,20 +337,28 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     HDSFileWriter fw = null;
     BucketFileMeta fileMeta = null;
     int keysWritten = 0;
+    // key hashes of the current file, the filter is sized once the number of keys is known
+    long[] keyHashes = bloomFilterBitsPerKey > 0 ? new long[Math.min(data.size(), 1024)] : null;
     for (Map.Entry<Slice, byte[]> dataEntry : data.entrySet()) {
       if (fw == null) {
         // next file
-        fileMeta = bucketMeta.addFile(bucket.bucketKey, dataEntry.getKey());
+        fileMeta = bucketMeta.addFile(bucket.bucketKey, files, dataEntry.getKey());
         LOG.debug("writing data file {} {}", bucket.bucketKey, fileMeta.name);
         fw = this.store.getWriter(bucket.bucketKey, fileMeta.name + ".tmp");
         keysWritten = 0;
       }
 
-      if (dataEntry.getValue() == HDHT.WALReader.DELETED) {
+      if (dataEntry.getValue() == HDHT.WALReader.DELETED && !keepDeleted) {
         continue;
       }
 
       fw.append(dataEntry.getKey().toByteArray(), dataEntry.getValue());
+      if (keyHashes != null) {
+        if (keysWritten == keyHashes.length) {
+          keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+        }
+        keyHashes[keysWritten] = BloomFilter.hash(dataEntry.getKey());
+      }
       keysWritten++;
       if (fw.getBytesWritten() > this.maxFileSize) {
         ioStats.dataFilesWritten++;
@@ -179,6 +366,7 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         // roll file
         fw.close();
         ioStats.dataBytesWritten += fw.getBytesWritten();
+        writeBloomFilter(bucket.bucketKey, fileMeta, keyHashes, keysWritten);
         this.store.rename(bucket.bucketKey, fileMeta.name + ".tmp", fileMeta.name);
         LOG.debug("created data file {} {} with {} entries", bucket.bucketKey, fileMeta.name, keysWritten);
         fw = null;
@@ -191,6 +379,7 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       ioStats.filesWroteInCurrentWriteCycle++;
       fw.close();
       ioStats.dataBytesWritten += fw.getBytesWritten();
+      writeBloomFilter(bucket.bucketKey, fileMeta, keyHashes, keysWritten);
       this.store.rename(bucket.bucketKey, fileMeta.name + ".tmp", fileMeta.name);
       LOG.debug("created data file {} {} with {} entries", bucket.bucketKey, fileMeta.name, keysWritten);
     }
@@ -198,6 +387,32 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     ioStats.dataWriteTime += System.currentTimeMillis() - startTime;
   }
 
+  private void writeBloomFilter(long bucketKey, BucketFileMeta fileMeta, long[] keyHashes, int numKeys) throws IOException
+  {
+    if (keyHashes == null) {
+      return;
+    }
+    BloomFilter filter = new BloomFilter(numKeys, bloomFilterBitsPerKey);
+    for (int i = 0; i < numKeys; i++) {
+      filter.add(keyHashes[i]);
+    }
+    DataOutputStream os = store.getOutputStream(bucketKey, fileMeta.name + FNAME_SUFFIX_BLOOM_FILTER);
+    try {
+      filter.write(os);
+    } finally {
+      os.close();
+    }
+    fileMeta.bloomFilter = true;
+  }
+
+  private static void addFileToDelete(BucketFileMeta fileMeta, Set<String> filesToDelete)
+  {
+    filesToDelete.add(fileMeta.name);
+    if (fileMeta.bloomFilter) {
+      filesToDelete.add(fileMeta.name + FNAME_SUFFIX_BLOOM_FILTER);
+    }
+  }
+
   private Bucket getBucket(long bucketKey) throws IOException
   {
     Bucket bucket = this.buckets.get(bucketKey);
@@ -211,6 +426,9 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       WalMeta wmeta = getWalMeta(bucketKey);
       bucket.wal = new HDHTWalManager(this.store, bucketKey, wmeta.cpWalPosition);
       bucket.wal.setMaxWalFileSize(maxWalFileSize);
+      bucket.wal.setAsyncExecutor(walExecutor);
+      bucket.wal.setWalBlockSize(walBlockSize);
+      bucket.wal.setWalCompression(walCompression);
       BucketIOStats ioStats = getOrCretaStats(bucketKey);
       if (ioStats != null) {
         bucket.wal.restoreStats(ioStats);
@@ -224,6 +442,9 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         LOG.debug("Recovery for bucket {}", bucketKey);
         // Add tuples from recovery start till recovery end.
         bucket.wal.runRecovery(bucket.committedWriteCache, bmeta.recoveryStartWalPosition, wmeta.cpWalPosition);
+        for (Map.Entry<Slice, byte[]> entry : bucket.committedWriteCache.entrySet()) {
+          bucket.committedCacheBytes += entrySize(entry.getKey(), entry.getValue());
+        }
         bucket.walPositions.put(wmeta.windowId, wmeta.cpWalPosition);
       }
     }
@@ -266,27 +487,96 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   }
 
   /**
-   * Intercept query processing to incorporate unwritten changes.
+   * Intercept batched query processing to incorporate unwritten changes.
    */
   @Override
-  protected void processQuery(HDSQuery query)
+  protected void processQueries(long bucketKey, List<HDSQuery> bucketQueries)
   {
     // check unwritten changes first
-    byte[] v = getUncommitted(query.bucketKey, query.key);
-    if (v != null) {
-      query.result = v;
-      query.processed = true;
-      return;
+    List<HDSQuery> remaining = new ArrayList<HDSQuery>(bucketQueries.size());
+    for (HDSQuery query : bucketQueries) {
+      byte[] v = getUncommitted(bucketKey, query.key);
+      if (v != null) {
+        query.result = v;
+        query.processed = true;
+      } else {
+        remaining.add(query);
+      }
+    }
+    if (!remaining.isEmpty()) {
+      super.processQueries(bucketKey, remaining);
+    }
+  }
+
+  /**
+   * Scan includes the uncommitted changes. The write cache is copied when the scan is created, changes made while
+   * iterating are not reflected.
+   */
+  @Override
+  void addScanSources(long bucketKey, Slice fromKey, Slice toKey, List<HDHTScanIterator.Source> sources) throws IOException
+  {
+    Bucket bucket = this.buckets.get(bucketKey);
+    if (bucket != null) {
+      // apply from oldest to newest, the frozen cache must be copied before the meta data is read
+      TreeMap<Slice, byte[]> changes = new TreeMap<Slice, byte[]>(getKeyComparator());
+      addScanChanges(bucket.frozenWriteCache, fromKey, toKey, changes);
+      addScanChanges(bucket.committedWriteCache, fromKey, toKey, changes);
+      for (HashMap<Slice, byte[]> cache : bucket.checkpointedWriteCache.values()) {
+        addScanChanges(cache, fromKey, toKey, changes);
+      }
+      addScanChanges(bucket.writeCache, fromKey, toKey, changes);
+      sources.add(new HDHTScanIterator.CacheSource(changes));
+    }
+    super.addScanSources(bucketKey, fromKey, toKey, sources);
+  }
+
+  private void addScanChanges(Map<Slice, byte[]> cache, Slice fromKey, Slice toKey, TreeMap<Slice, byte[]> changes)
+  {
+    Comparator<Slice> cmp = getKeyComparator();
+    for (Map.Entry<Slice, byte[]> entry : cache.entrySet()) {
+      if ((fromKey == null || cmp.compare(entry.getKey(), fromKey) >= 0) && (toKey == null || cmp.compare(entry.getKey(), toKey) < 0)) {
+        changes.put(entry.getKey(), entry.getValue());
+      }
     }
-    super.processQuery(query);
   }
 
   @Override
   public void put(long bucketKey, Slice key, byte[] value) throws IOException
   {
+    if (maxRunsPerLevel > 0 && value.length == 0 && value != HDHT.WALReader.DELETED) {
+      // runs can't tell an empty value from a delete
+      throw new IllegalArgumentException("Empty values are not supported with sorted runs " + key);
+    }
     Bucket bucket = getBucket(bucketKey);
     bucket.wal.append(key, value);
-    bucket.writeCache.put(key, value);
+    byte[] prev = bucket.writeCache.put(key, value);
+    bucket.writeCacheBytes += entrySize(key, value) - (prev == null ? 0 : entrySize(key, prev));
+  }
+
+  /**
+   * Approximate memory used by a cached entry, the key and value bytes plus the fixed cost of the map entry, the slice
+   * and the array headers.
+   */
+  private static long entrySize(Slice key, byte[] value)
+  {
+    return key.length + value.length + CACHE_ENTRY_OVERHEAD;
+  }
+
+  private static final int CACHE_ENTRY_OVERHEAD = 96;
+
+  /**
+   * Memory used by the cached changes of all buckets.
+   *
+   * @return The size in bytes.
+   */
+  @VisibleForTesting
+  protected long getCacheBytes()
+  {
+    long size = 0;
+    for (Bucket bucket : buckets.values()) {
+      size += bucket.getCacheBytes();
+    }
+    return size;
   }
 
   public void delete(long bucketKey, Slice key) throws IOException
@@ -294,6 +584,41 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     put(bucketKey, key, HDHT.WALReader.DELETED);
   }
 
+  /**
+   * Delete the bucket with all its changes and files. Pending flushes are completed before the files are removed, the
+   * bucket can be written again afterwards and starts empty.
+   *
+   * @param bucketKey
+   * @throws IOException
+   */
+  public void deleteBucket(long bucketKey) throws IOException
+  {
+    Bucket bucket = this.buckets.remove(bucketKey);
+    synchronized (flushMonitor) {
+      while (pendingFlushes > 0 && writerError == null) {
+        try {
+          flushMonitor.wait();
+        } catch (InterruptedException e) {
+          throw new RuntimeException("Interrupted while waiting for flush", e);
+        }
+      }
+    }
+    if (writerError != null) {
+      throw new RuntimeException("Error while flushing write cache.", this.writerError);
+    }
+    if (bucket != null) {
+      bucket.wal.close();
+    }
+    walMeta.remove(bucketKey);
+    metaCache.remove(bucketKey);
+    synchronized (bucketStats) {
+      bucketStats.remove(bucketKey);
+    }
+    closeReader(bucketKey);
+    store.deleteBucket(bucketKey);
+    LOG.debug("Deleted bucket {}", bucketKey);
+  }
+
   /**
    * Flush changes from write cache to disk. New data files will be written and meta data replaced atomically. The flush
    * frequency determines availability of changes to external readers.
@@ -305,13 +630,78 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
     LOG.debug("Writing data files in bucket {}", bucket.bucketKey);
     // copy meta data on write
-    BucketMeta bucketMetaCopy = kryo.copy(getMeta(bucket.bucketKey));
+    BucketMeta bucketMetaCopy;
+    synchronized (kryo) {
+      bucketMetaCopy = kryo.copy(getMeta(bucket.bucketKey));
+    }
+    HashSet<String> filesToDelete = Sets.newHashSet();
+
+    if (maxRunsPerLevel > 0) {
+      TreeMap<Slice, byte[]> runData = new TreeMap<Slice, byte[]>(getKeyComparator());
+      runData.putAll(bucket.frozenWriteCache);
+      BucketRunMeta run = new BucketRunMeta(getKeyComparator(), 0);
+      writeFile(bucket, bucketMetaCopy, run.files, runData, true);
+      if (!run.files.isEmpty()) {
+        bucketMetaCopy.runs.add(run);
+        ioStats.runsWritten++;
+      }
+      compactRuns(bucket, bucketMetaCopy, filesToDelete);
+    } else {
+      mergeDataFiles(bucket, bucketMetaCopy, bucket.frozenWriteCache, filesToDelete);
+    }
+
+    LOG.debug("Files written {} files read {}", ioStats.filesWroteInCurrentWriteCycle, ioStats.filesReadInCurrentWriteCycle);
+    // flush meta data for new files
+    try {
+      LOG.debug("Writing {} with {} file entries", FNAME_META, bucketMetaCopy.files.size());
+      OutputStream os = store.getOutputStream(bucket.bucketKey, FNAME_META + ".new");
+      Output output = new Output(os);
+      bucketMetaCopy.committedWid = bucket.committedLSN;
+      bucketMetaCopy.recoveryStartWalPosition = bucket.recoveryStartWalPosition;
+      output.writeByte(META_VERSION);
+      synchronized (kryo) {
+        kryo.writeClassAndObject(output, bucketMetaCopy);
+      }
+      output.close();
+      os.close();
+      store.rename(bucket.bucketKey, FNAME_META + ".new", FNAME_META);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write bucket meta data " + bucket.bucketKey, e);
+    }
+
+    // switch to new version, before the pending changes are cleared so that lookups find the keys in either of them
+    this.metaCache.put(bucket.bucketKey, bucketMetaCopy);
+    updateReader(bucket.bucketKey, bucketMetaCopy, filesToDelete);
+    // clear pending changes
+    ioStats.dataKeysWritten += bucket.frozenWriteCache.size();
+    bucket.frozenWriteCache.clear();
+    bucket.frozenCacheBytes = 0;
+
+    // delete old files
+    for (String fileName : filesToDelete) {
+      store.delete(bucket.bucketKey, fileName);
+    }
+
+    // cleanup WAL files which are not needed anymore.
+    bucket.wal.cleanup(bucketMetaCopy.recoveryStartWalPosition.fileId);
+
+    ioStats.filesReadInCurrentWriteCycle = 0;
+    ioStats.filesWroteInCurrentWriteCycle = 0;
+  }
+
+  /**
+   * Apply changes to the data files they fall into. Affected files are read fully, merged with the changes and written
+   * as new files.
+   */
+  private void mergeDataFiles(Bucket bucket, BucketMeta bucketMetaCopy, Map<Slice, byte[]> changes, Set<String> filesToDelete) throws IOException
+  {
+    BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
 
     // bucket keys by file
     TreeMap<Slice, BucketFileMeta> bucketSeqStarts = bucketMetaCopy.files;
     Map<BucketFileMeta, Map<Slice, byte[]>> modifiedFiles = Maps.newHashMap();
 
-    for (Map.Entry<Slice, byte[]> entry : bucket.frozenWriteCache.entrySet()) {
+    for (Map.Entry<Slice, byte[]> entry : changes.entrySet()) {
       // find file for key
       Map.Entry<Slice, BucketFileMeta> floorEntry = bucketSeqStarts.floorEntry(entry.getKey());
       BucketFileMeta floorFile;
@@ -342,8 +732,6 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       fileUpdates.put(entry.getKey(), entry.getValue());
     }
 
-    HashSet<String> filesToDelete = Sets.newHashSet();
-
     // write modified files
     for (Map.Entry<BucketFileMeta, Map<Slice, byte[]>> fileEntry : modifiedFiles.entrySet()) {
       BucketFileMeta fileMeta = fileEntry.getKey();
@@ -361,55 +749,81 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         ioStats.filesReadInCurrentWriteCycle++;
         ioStats.dataFilesRead++;
         reader.close();
-        filesToDelete.add(fileMeta.name);
+        addFileToDelete(fileMeta, filesToDelete);
       }
 
       // apply updates
       fileData.putAll(fileEntry.getValue());
       // new file
-      writeFile(bucket, bucketMetaCopy, fileData);
-    }
-
-    LOG.debug("Files written {} files read {}", ioStats.filesWroteInCurrentWriteCycle, ioStats.filesReadInCurrentWriteCycle);
-    // flush meta data for new files
-    try {
-      LOG.debug("Writing {} with {} file entries", FNAME_META, bucketMetaCopy.files.size());
-      OutputStream os = store.getOutputStream(bucket.bucketKey, FNAME_META + ".new");
-      Output output = new Output(os);
-      bucketMetaCopy.committedWid = bucket.committedLSN;
-      bucketMetaCopy.recoveryStartWalPosition = bucket.recoveryStartWalPosition;
-      kryo.writeClassAndObject(output, bucketMetaCopy);
-      output.close();
-      os.close();
-      store.rename(bucket.bucketKey, FNAME_META + ".new", FNAME_META);
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to write bucket meta data " + bucket.bucketKey, e);
+      writeFile(bucket, bucketMetaCopy, bucketMetaCopy.files, fileData, false);
     }
+  }
 
-    // clear pending changes
-    ioStats.dataKeysWritten += bucket.frozenWriteCache.size();
-    bucket.frozenWriteCache.clear();
-    // switch to new version
-    this.metaCache.put(bucket.bucketKey, bucketMetaCopy);
+  /**
+   * Merge the runs of every level that reached {@link #maxRunsPerLevel} into a single run on the next level. Runs of
+   * the last level are merged into the data files.
+   */
+  private void compactRuns(Bucket bucket, BucketMeta bucketMetaCopy, Set<String> filesToDelete) throws IOException
+  {
+    BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
+    for (int level = 0; level < maxRunLevels; level++) {
+      List<BucketRunMeta> levelRuns = Lists.newArrayList();
+      for (BucketRunMeta run : bucketMetaCopy.runs) {
+        if (run.level == level) {
+          levelRuns.add(run);
+        }
+      }
+      if (levelRuns.size() < maxRunsPerLevel) {
+        continue;
+      }
 
-    // delete old files
-    for (String fileName : filesToDelete) {
-      store.delete(bucket.bucketKey, fileName);
+      // runs of a level are adjacent, apply from oldest to newest
+      long start = System.currentTimeMillis();
+      TreeMap<Slice, byte[]> mergedData = new TreeMap<Slice, byte[]>(getKeyComparator());
+      for (BucketRunMeta run : levelRuns) {
+        for (BucketFileMeta fileMeta : run.files.values()) {
+          TreeMap<Slice, byte[]> fileData = new TreeMap<Slice, byte[]>(getKeyComparator());
+          HDSFileReader reader = store.getReader(bucket.bucketKey, fileMeta.name);
+          reader.readFully(fileData);
+          reader.close();
+          ioStats.dataBytesRead += store.getFileSize(bucket.bucketKey, fileMeta.name);
+          ioStats.dataFilesRead++;
+          for (Map.Entry<Slice, byte[]> entry : fileData.entrySet()) {
+            mergedData.put(entry.getKey(), entry.getValue().length == 0 ? HDHT.WALReader.DELETED : entry.getValue());
+          }
+          addFileToDelete(fileMeta, filesToDelete);
+        }
+      }
+      ioStats.dataReadTime += System.currentTimeMillis() - start;
+
+      int index = bucketMetaCopy.runs.indexOf(levelRuns.get(0));
+      bucketMetaCopy.runs.removeAll(levelRuns);
+      ioStats.runsCompacted += levelRuns.size();
+      LOG.debug("Merging {} runs of level {} in bucket {}", levelRuns.size(), level, bucket.bucketKey);
+
+      if (level + 1 < maxRunLevels) {
+        BucketRunMeta run = new BucketRunMeta(getKeyComparator(), level + 1);
+        writeFile(bucket, bucketMetaCopy, run.files, mergedData, true);
+        if (!run.files.isEmpty()) {
+          bucketMetaCopy.runs.add(index, run);
+          ioStats.runsWritten++;
+        }
+      } else {
+        // oldest runs, the data files are the only older data
+        mergeDataFiles(bucket, bucketMetaCopy, mergedData, filesToDelete);
+      }
     }
-    invalidateReader(bucket.bucketKey, filesToDelete);
-
-    // cleanup WAL files which are not needed anymore.
-    bucket.wal.cleanup(bucketMetaCopy.recoveryStartWalPosition.fileId);
-
-    ioStats.filesReadInCurrentWriteCycle = 0;
-    ioStats.filesWroteInCurrentWriteCycle = 0;
   }
 
   @Override
   public void setup(OperatorContext context)
   {
     super.setup(context);
-    writeExecutor = Executors.newSingleThreadScheduledExecutor(new NameableThreadFactory(this.getClass().getSimpleName() + "-Writer"));
+    writeExecutor = Executors.newFixedThreadPool(flushThreads, new NameableThreadFactory(this.getClass().getSimpleName() + "-Writer"));
+    pendingFlushes = 0;
+    if (asyncWal) {
+      walExecutor = Executors.newSingleThreadExecutor(new NameableThreadFactory(this.getClass().getSimpleName() + "-WalWriter"));
+    }
     this.context = context;
   }
 
@@ -420,6 +834,9 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       IOUtils.closeQuietly(bucket.wal);
     }
     writeExecutor.shutdown();
+    if (walExecutor != null) {
+      walExecutor.shutdown();
+    }
     super.teardown();
   }
 
@@ -438,6 +855,16 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       try {
         if (bucket.wal != null) {
           bucket.wal.endWindow(currentWindowId);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to flush WAL", e);
+      }
+    }
+    // group commit, flushes of all buckets were issued before waiting for completion
+    for (final Bucket bucket : this.buckets.values()) {
+      try {
+        if (bucket.wal != null) {
+          bucket.wal.awaitFlush();
           WalMeta walMeta = getWalMeta(bucket.bucketKey);
           walMeta.cpWalPosition = bucket.wal.getCurrentPosition();
           walMeta.windowId = currentWindowId;
@@ -468,6 +895,48 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     return meta;
   }
 
+  /**
+   * Buckets for which this writer holds checkpointed state.
+   */
+  Set<Long> getBucketKeys()
+  {
+    Set<Long> bucketKeys = Sets.newHashSet(walMeta.keySet());
+    bucketKeys.addAll(bucketStats.keySet());
+    return bucketKeys;
+  }
+
+  /**
+   * Hand over the checkpointed state of the bucket to another writer when bucket ownership changes on repartitioning.
+   * The WAL position is sufficient for the new owner to recover all changes that were not committed to the data files,
+   * the bucket meta data is loaded from the store.
+   *
+   * @param bucketKey
+   * @param target The new owner of the bucket
+   */
+  void transferBucket(long bucketKey, HDHTWriter target)
+  {
+    WalMeta meta = walMeta.remove(bucketKey);
+    if (meta != null) {
+      target.walMeta.put(bucketKey, meta);
+    }
+    BucketIOStats ioStats = bucketStats.remove(bucketKey);
+    if (ioStats != null) {
+      target.bucketStats.put(bucketKey, ioStats);
+    }
+  }
+
+  /**
+   * Drop the checkpointed state of a bucket that this writer does not own, such as in the copy of a writer that was
+   * made for a new partition.
+   *
+   * @param bucketKey
+   */
+  void discardBucket(long bucketKey)
+  {
+    walMeta.remove(bucketKey);
+    bucketStats.remove(bucketKey);
+  }
+
   @Override
   public void checkpointed(long windowId)
   {
@@ -479,6 +948,8 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
             bucket.wal.getWalSize()
         ));
         bucket.writeCache = Maps.newHashMap();
+        bucket.checkpointedCacheBytes += bucket.writeCacheBytes;
+        bucket.writeCacheBytes = 0;
       }
     }
   }
@@ -502,11 +973,21 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   @Override
   public void committed(long committedWindowId)
   {
+    long cacheBytes = maxCacheBytes > 0 ? getCacheBytes() : 0;
+    boolean overBudget = maxCacheBytes > 0 && cacheBytes > maxCacheBytes;
+    if (overBudget) {
+      LOG.debug("Cache size {} exceeds {}, flushing committed changes", cacheBytes, maxCacheBytes);
+    }
     for (final Bucket bucket : this.buckets.values()) {
       for (Iterator<Map.Entry<Long, HashMap<Slice, byte[]>>> cpIter = bucket.checkpointedWriteCache.entrySet().iterator(); cpIter.hasNext();) {
         Map.Entry<Long, HashMap<Slice, byte[]>> checkpointEntry = cpIter.next();
         if (checkpointEntry.getKey() <= committedWindowId) {
-          bucket.committedWriteCache.putAll(checkpointEntry.getValue());
+          for (Map.Entry<Slice, byte[]> entry : checkpointEntry.getValue().entrySet()) {
+            long size = entrySize(entry.getKey(), entry.getValue());
+            byte[] prev = bucket.committedWriteCache.put(entry.getKey(), entry.getValue());
+            bucket.checkpointedCacheBytes -= size;
+            bucket.committedCacheBytes += size - (prev == null ? 0 : entrySize(entry.getKey(), prev));
+          }
           cpIter.remove();
         }
       }
@@ -519,27 +1000,40 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         }
       }
 
-      if ((bucket.committedWriteCache.size() > this.flushSize || currentWindowId - lastFlushWindowId > flushIntervalCount) && !bucket.committedWriteCache.isEmpty()) {
-        // ensure previous flush completed
+      if ((bucket.committedWriteCache.size() > this.flushSize || currentWindowId - lastFlushWindowId > flushIntervalCount || overBudget) && !bucket.committedWriteCache.isEmpty()) {
+        // ensure previous flush completed, this keeps the flushes of a bucket in order
         if (bucket.frozenWriteCache.isEmpty()) {
+          awaitFlushCapacity(bucket.bucketKey);
           bucket.frozenWriteCache = bucket.committedWriteCache;
           bucket.committedWriteCache = Maps.newHashMap();
+          bucket.frozenCacheBytes = bucket.committedCacheBytes;
+          bucket.committedCacheBytes = 0;
 
           bucket.committedLSN = committedWindowId;
 
           LOG.debug("Flushing data for bucket {} committedWid {} recoveryStartWalPosition {}", bucket.bucketKey, bucket.committedLSN, bucket.recoveryStartWalPosition);
+          final long submitTime = System.currentTimeMillis();
           Runnable flushRunnable = new Runnable() {
             @Override
             public void run()
             {
               try {
                 writeDataFiles(bucket);
+                getOrCretaStats(bucket.bucketKey).flushLatency = System.currentTimeMillis() - submitTime;
               } catch (Throwable e) {
                 LOG.debug("Write error: {}", e.getMessage());
                 writerError = e;
+              } finally {
+                synchronized (flushMonitor) {
+                  pendingFlushes--;
+                  flushMonitor.notifyAll();
+                }
               }
             }
           };
+          synchronized (flushMonitor) {
+            pendingFlushes++;
+          }
           this.writeExecutor.execute(flushRunnable);
           lastFlushWindowId = committedWindowId;
         }
@@ -552,6 +1046,27 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     }
   }
 
+  /**
+   * Block until the number of pending flushes is below {@link #maxPendingFlushes}.
+   */
+  private void awaitFlushCapacity(long bucketKey)
+  {
+    if (maxPendingFlushes == 0) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    synchronized (flushMonitor) {
+      while (pendingFlushes >= maxPendingFlushes && writerError == null) {
+        try {
+          flushMonitor.wait();
+        } catch (InterruptedException e) {
+          throw new RuntimeException("Interrupted while waiting for flush", e);
+        }
+      }
+    }
+    getOrCretaStats(bucketKey).flushBlockedTime += System.currentTimeMillis() - start;
+  }
+
   private static class Bucket
   {
     private long bucketKey;
@@ -565,6 +1080,16 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     private HDHTWalManager wal;
     private long committedLSN;
     public HDHTWalManager.WalPosition recoveryStartWalPosition;
+    // memory used by the cache generations
+    private long writeCacheBytes;
+    private long checkpointedCacheBytes;
+    private long committedCacheBytes;
+    private volatile long frozenCacheBytes;
+
+    private long getCacheBytes()
+    {
+      return writeCacheBytes + checkpointedCacheBytes + committedCacheBytes + frozenCacheBytes;
+    }
   }
 
   @VisibleForTesting
@@ -639,6 +1164,22 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     public long dataReadTime;
     /* Number of bytes read during data read */
     public long dataBytesRead;
+    /* Number of sorted runs written by flush or merge */
+    public long runsWritten;
+    /* Number of sorted runs merged into the next level or into data files */
+    public long runsCompacted;
+    /* Block cache lookups of readers that found the block, missed it and blocks evicted from the cache */
+    public long blockCacheHits;
+    public long blockCacheMisses;
+    public long blockCacheEvictions;
+    /* Memory used by cached changes of all generations in bytes */
+    public long dataBytesInCache;
+    /* Number of flushes queued or in progress in the partition */
+    public int flushQueueDepth;
+    /* Time from scheduling to completion of the last flush in milliseconds */
+    public long flushLatency;
+    /* Time the operator was blocked waiting for pending flushes in milliseconds */
+    public long flushBlockedTime;
 
     @Override public String toString()
     {
@@ -659,12 +1200,27 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
           ", dataFilesRead=" + dataFilesRead +
           ", dataReadTime=" + dataReadTime +
           ", dataBytesRead=" + dataBytesRead +
+          ", runsWritten=" + runsWritten +
+          ", runsCompacted=" + runsCompacted +
+          ", blockCacheHits=" + blockCacheHits +
+          ", blockCacheMisses=" + blockCacheMisses +
+          ", blockCacheEvictions=" + blockCacheEvictions +
+          ", dataBytesInCache=" + dataBytesInCache +
+          ", flushQueueDepth=" + flushQueueDepth +
+          ", flushLatency=" + flushLatency +
+          ", flushBlockedTime=" + flushBlockedTime +
           '}';
     }
   }
 
   private void updateStats()
   {
+    BlockCache blockCache = (store instanceof TFileImpl) ? ((TFileImpl)store).getBlockCache() : null;
+    BlockCache.Counters cacheCounters = new BlockCache.Counters();
+    int flushQueueDepth;
+    synchronized (flushMonitor) {
+      flushQueueDepth = pendingFlushes;
+    }
     for(Bucket bucket : buckets.values())
     {
       BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
@@ -676,6 +1232,14 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       ioStats.walKeysWritten = walStats.totalKeys;
       ioStats.dataInWriteCache = bucket.writeCache.size();
       ioStats.dataInFrozenCache = bucket.frozenWriteCache.size();
+      ioStats.flushQueueDepth = flushQueueDepth;
+      ioStats.dataBytesInCache = bucket.getCacheBytes();
+      if (blockCache != null) {
+        blockCache.getCounters(bucket.bucketKey, cacheCounters);
+        ioStats.blockCacheHits = cacheCounters.hits;
+        ioStats.blockCacheMisses = cacheCounters.misses;
+        ioStats.blockCacheEvictions = cacheCounters.evictions;
+      }
     }
   }
 
@@ -720,6 +1284,15 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
           aggStats.globalStats.dataReadTime += stats.dataReadTime;
           aggStats.globalStats.dataFilesRead += stats.dataFilesRead;
           aggStats.globalStats.dataBytesRead += stats.dataBytesRead;
+          aggStats.globalStats.runsWritten += stats.runsWritten;
+          aggStats.globalStats.runsCompacted += stats.runsCompacted;
+          aggStats.globalStats.blockCacheHits += stats.blockCacheHits;
+          aggStats.globalStats.blockCacheMisses += stats.blockCacheMisses;
+          aggStats.globalStats.blockCacheEvictions += stats.blockCacheEvictions;
+          aggStats.globalStats.dataBytesInCache += stats.dataBytesInCache;
+          aggStats.globalStats.flushQueueDepth = Math.max(aggStats.globalStats.flushQueueDepth, stats.flushQueueDepth);
+          aggStats.globalStats.flushLatency = Math.max(aggStats.globalStats.flushLatency, stats.flushLatency);
+          aggStats.globalStats.flushBlockedTime += stats.flushBlockedTime;
 
           aggStats.aggregatedStats.put(bId, stats);
         }
@@ -733,11 +1306,14 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
 
   private BucketIOStats getOrCretaStats(long bucketKey)
   {
-    BucketIOStats ioStats = bucketStats.get(bucketKey);
-    if (ioStats == null) {
-      ioStats = new BucketIOStats();
-      bucketStats.put(bucketKey, ioStats);
+    // also called from flush threads
+    synchronized (bucketStats) {
+      BucketIOStats ioStats = bucketStats.get(bucketKey);
+      if (ioStats == null) {
+        ioStats = new BucketIOStats();
+        bucketStats.put(bucketKey, ioStats);
+      }
+      return ioStats;
     }
-    return ioStats;
   }
 }
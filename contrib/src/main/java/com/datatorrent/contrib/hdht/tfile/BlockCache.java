@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht.tfile;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Size bounded cache for file blocks, shared by all readers of a store. Blocks are kept in direct buffers outside of
+ * the heap and identified by bucket, file name and block offset.
+ *
+ * @since 2.2.0
+ */
+public class BlockCache
+{
+  public enum EvictionPolicy
+  {
+    /**
+     * Evict the least recently used block.
+     */
+    LRU,
+    /**
+     * Evict blocks in insertion order, blocks accessed since the last pass of the clock hand get a second chance.
+     */
+    CLOCK
+  }
+
+  public static class Counters
+  {
+    public long hits;
+    public long misses;
+    public long evictions;
+  }
+
+  private final long capacity;
+  private final EvictionPolicy evictionPolicy;
+  private final LinkedHashMap<BlockKey, Block> blocks;
+  private final Map<Long, Counters> counters = Maps.newHashMap();
+  private long size;
+
+  public BlockCache(long capacity, EvictionPolicy evictionPolicy)
+  {
+    this.capacity = capacity;
+    this.evictionPolicy = evictionPolicy;
+    this.blocks = new LinkedHashMap<BlockKey, Block>(16, 0.75f, evictionPolicy == EvictionPolicy.LRU);
+  }
+
+  /**
+   * Lookup block.
+   * @return A read only view of the block, or null when the block is not cached.
+   */
+  public synchronized ByteBuffer get(long bucketKey, String fileName, long offset)
+  {
+    Block block = blocks.get(new BlockKey(bucketKey, fileName, offset));
+    Counters c = getCounters(bucketKey);
+    if (block == null) {
+      c.misses++;
+      return null;
+    }
+    c.hits++;
+    block.referenced = true;
+    return block.data.asReadOnlyBuffer();
+  }
+
+  public synchronized void put(long bucketKey, String fileName, long offset, byte[] data, int length)
+  {
+    if (length > capacity) {
+      return;
+    }
+    BlockKey key = new BlockKey(bucketKey, fileName, offset);
+    if (blocks.containsKey(key)) {
+      // loaded by concurrent reader
+      return;
+    }
+    while (size + length > capacity) {
+      evict();
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+    buffer.put(data, 0, length);
+    buffer.flip();
+    blocks.put(key, new Block(buffer));
+    size += length;
+  }
+
+  /**
+   * Remove all blocks of the file.
+   */
+  public synchronized void invalidate(long bucketKey, String fileName)
+  {
+    Iterator<Map.Entry<BlockKey, Block>> it = blocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<BlockKey, Block> entry = it.next();
+      if (entry.getKey().bucketKey == bucketKey && entry.getKey().fileName.equals(fileName)) {
+        size -= entry.getValue().data.capacity();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove all blocks of the bucket.
+   */
+  public synchronized void invalidate(long bucketKey)
+  {
+    Iterator<Map.Entry<BlockKey, Block>> it = blocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<BlockKey, Block> entry = it.next();
+      if (entry.getKey().bucketKey == bucketKey) {
+        size -= entry.getValue().data.capacity();
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized long getSize()
+  {
+    return size;
+  }
+
+  /**
+   * Copy of the counters of the bucket.
+   */
+  public synchronized Counters getCounters(long bucketKey, Counters copy)
+  {
+    Counters c = getCounters(bucketKey);
+    copy.hits = c.hits;
+    copy.misses = c.misses;
+    copy.evictions = c.evictions;
+    return copy;
+  }
+
+  private Counters getCounters(long bucketKey)
+  {
+    Counters c = counters.get(bucketKey);
+    if (c == null) {
+      counters.put(bucketKey, c = new Counters());
+    }
+    return c;
+  }
+
+  private void evict()
+  {
+    while (true) {
+      // head is the least recently used or, for clock, the block under the hand
+      Map.Entry<BlockKey, Block> head = blocks.entrySet().iterator().next();
+      Block block = head.getValue();
+      blocks.remove(head.getKey());
+      if (evictionPolicy == EvictionPolicy.CLOCK && block.referenced) {
+        block.referenced = false;
+        blocks.put(head.getKey(), block);
+        continue;
+      }
+      size -= block.data.capacity();
+      getCounters(head.getKey().bucketKey).evictions++;
+      return;
+    }
+  }
+
+  private static class Block
+  {
+    final ByteBuffer data;
+    boolean referenced;
+
+    Block(ByteBuffer data)
+    {
+      this.data = data;
+    }
+  }
+
+  private static class BlockKey
+  {
+    final long bucketKey;
+    final String fileName;
+    final long offset;
+
+    BlockKey(long bucketKey, String fileName, long offset)
+    {
+      this.bucketKey = bucketKey;
+      this.fileName = fileName;
+      this.offset = offset;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int result = (int)(bucketKey ^ (bucketKey >>> 32));
+      result = 31 * result + fileName.hashCode();
+      result = 31 * result + (int)(offset ^ (offset >>> 32));
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey other = (BlockKey)obj;
+      return bucketKey == other.bucketKey && offset == other.offset && fileName.equals(other.fileName);
+    }
+  }
+
+}
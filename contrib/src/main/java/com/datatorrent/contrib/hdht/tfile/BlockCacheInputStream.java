@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht.tfile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Input stream that reads a file in fixed size blocks through the {@link BlockCache}. Only blocks missing in the cache
+ * are read from the underlying stream.
+ *
+ * @since 2.2.0
+ */
+class BlockCacheInputStream extends InputStream implements Seekable, PositionedReadable
+{
+  private final FSDataInputStream in;
+  private final long fileLength;
+  private final BlockCache cache;
+  private final int blockSize;
+  private final long bucketKey;
+  private final String fileName;
+  private long pos;
+
+  BlockCacheInputStream(FSDataInputStream in, long fileLength, BlockCache cache, int blockSize, long bucketKey, String fileName)
+  {
+    this.in = in;
+    this.fileLength = fileLength;
+    this.cache = cache;
+    this.blockSize = blockSize;
+    this.bucketKey = bucketKey;
+    this.fileName = fileName;
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    int count = read(pos, b, off, len);
+    if (count > 0) {
+      pos += count;
+    }
+    return count;
+  }
+
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException
+  {
+    if (position >= fileLength) {
+      return -1;
+    }
+    length = (int)Math.min(length, fileLength - position);
+    int count = 0;
+    while (count < length) {
+      long blockOffset = (position / blockSize) * blockSize;
+      ByteBuffer block = getBlock(blockOffset);
+      block.position((int)(position - blockOffset));
+      int n = Math.min(block.remaining(), length - count);
+      block.get(buffer, offset + count, n);
+      count += n;
+      position += n;
+    }
+    return count;
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer, int offset, int length) throws IOException
+  {
+    if (position + length > fileLength) {
+      throw new EOFException("Read past end of " + fileName);
+    }
+    read(position, buffer, offset, length);
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer) throws IOException
+  {
+    readFully(position, buffer, 0, buffer.length);
+  }
+
+  private ByteBuffer getBlock(long blockOffset) throws IOException
+  {
+    ByteBuffer block = cache.get(bucketKey, fileName, blockOffset);
+    if (block == null) {
+      int length = (int)Math.min(blockSize, fileLength - blockOffset);
+      byte[] data = new byte[length];
+      in.readFully(blockOffset, data, 0, length);
+      cache.put(bucketKey, fileName, blockOffset, data, length);
+      block = ByteBuffer.wrap(data);
+    }
+    return block;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException
+  {
+    if (pos < 0 || pos > fileLength) {
+      throw new EOFException("Seek to " + pos + " outside of " + fileName);
+    }
+    this.pos = pos;
+  }
+
+  @Override
+  public long getPos() throws IOException
+  {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException
+  {
+    return false;
+  }
+
+  @Override
+  public long skip(long n) throws IOException
+  {
+    long skipped = Math.max(0, Math.min(n, fileLength - pos));
+    pos += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException
+  {
+    return (int)Math.min(Integer.MAX_VALUE, fileLength - pos);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    in.close();
+  }
+
+}
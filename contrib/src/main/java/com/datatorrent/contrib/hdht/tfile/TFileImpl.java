@@ -50,6 +50,13 @@ public abstract class TFileImpl extends HDHTFileAccessFSImpl
   
   private int outputBufferSize = 256 * 1024;
 
+  private long blockCacheSize = 0;
+
+  private int blockCacheBlockSize = 64 * 1024;
+
+  private BlockCache.EvictionPolicy blockCacheEvictionPolicy = BlockCache.EvictionPolicy.LRU;
+
+  private transient BlockCache blockCache;
   
   private void setupConfig(Configuration conf)
   {
@@ -59,6 +66,54 @@ public abstract class TFileImpl extends HDHTFileAccessFSImpl
   }
 
 
+  @Override
+  public void init()
+  {
+    super.init();
+    if (blockCacheSize > 0 && blockCache == null) {
+      blockCache = new BlockCache(blockCacheSize, blockCacheEvictionPolicy);
+    }
+  }
+
+  @Override
+  public void delete(long bucketKey, String fileName) throws IOException
+  {
+    super.delete(bucketKey, fileName);
+    if (blockCache != null) {
+      blockCache.invalidate(bucketKey, fileName);
+    }
+  }
+
+  @Override
+  public void deleteBucket(long bucketKey) throws IOException
+  {
+    super.deleteBucket(bucketKey);
+    // file names are reused when the bucket is written again
+    if (blockCache != null) {
+      blockCache.invalidate(bucketKey);
+    }
+  }
+
+  /**
+   * Open file for the reader, through the block cache when enabled.
+   */
+  protected FSDataInputStream getReaderInputStream(long bucketKey, String fileName, long fileLength) throws IOException
+  {
+    FSDataInputStream fsdis = getInputStream(bucketKey, fileName);
+    if (blockCache == null) {
+      return fsdis;
+    }
+    return new FSDataInputStream(new BlockCacheInputStream(fsdis, fileLength, blockCache, blockCacheBlockSize, bucketKey, fileName));
+  }
+
+  /**
+   * The block cache shared by all readers of this store, null when disabled.
+   */
+  public BlockCache getBlockCache()
+  {
+    return blockCache;
+  }
+
   @Override
   public HDSFileWriter getWriter(long bucketKey, String fileName) throws IOException
   {
@@ -138,6 +193,48 @@ public abstract class TFileImpl extends HDHTFileAccessFSImpl
     this.outputBufferSize = outputBufferSize;
   }
   
+  /**
+   * Memory in bytes for the block cache that is shared by the readers of all files. Blocks are held in direct buffers.
+   * Zero (the default) disables the cache.
+   */
+  public long getBlockCacheSize()
+  {
+    return blockCacheSize;
+  }
+
+
+  public void setBlockCacheSize(long blockCacheSize)
+  {
+    this.blockCacheSize = blockCacheSize;
+  }
+
+
+  /**
+   * Size of the file blocks in the block cache.
+   */
+  public int getBlockCacheBlockSize()
+  {
+    return blockCacheBlockSize;
+  }
+
+
+  public void setBlockCacheBlockSize(int blockCacheBlockSize)
+  {
+    this.blockCacheBlockSize = blockCacheBlockSize;
+  }
+
+
+  public BlockCache.EvictionPolicy getBlockCacheEvictionPolicy()
+  {
+    return blockCacheEvictionPolicy;
+  }
+
+
+  public void setBlockCacheEvictionPolicy(BlockCache.EvictionPolicy blockCacheEvictionPolicy)
+  {
+    this.blockCacheEvictionPolicy = blockCacheEvictionPolicy;
+  }
+
   /**
    * Return {@link TFile} {@link Reader}
    *
@@ -147,8 +244,8 @@ public abstract class TFileImpl extends HDHTFileAccessFSImpl
     @Override
     public HDSFileReader getReader(long bucketKey, String fileName) throws IOException
     {
-      FSDataInputStream fsdis =  getInputStream(bucketKey, fileName);
       long fileLength = getFileSize(bucketKey, fileName);
+      FSDataInputStream fsdis = getReaderInputStream(bucketKey, fileName, fileLength);
       super.setupConfig(fs.getConf());
       return new TFileReader(fsdis, fileLength, fs.getConf());
     }
@@ -165,8 +262,8 @@ public abstract class TFileImpl extends HDHTFileAccessFSImpl
     @Override
     public HDSFileReader getReader(long bucketKey, String fileName) throws IOException
     {
-      FSDataInputStream fsdis =  getInputStream(bucketKey, fileName);
       long fileLength = getFileSize(bucketKey, fileName);
+      FSDataInputStream fsdis = getReaderInputStream(bucketKey, fileName, fileLength);
       super.setupConfig(fs.getConf());
       return new DTFileReader(fsdis, fileLength, fs.getConf());
     }
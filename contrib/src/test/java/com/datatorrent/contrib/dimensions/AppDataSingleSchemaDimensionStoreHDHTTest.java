@@ -6,9 +6,15 @@ package com.datatorrent.contrib.dimensions;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -19,10 +25,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.mutable.MutableLong;
 
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
 import com.datatorrent.lib.appdata.gpo.GPOUtils;
+import com.datatorrent.lib.appdata.query.QueryBundle;
+import com.datatorrent.lib.appdata.schemas.DataQueryDimensional;
+import com.datatorrent.lib.appdata.schemas.DataResultDimensional;
 import com.datatorrent.lib.appdata.schemas.DimensionalConfigurationSchema;
+import com.datatorrent.lib.appdata.schemas.Fields;
+import com.datatorrent.lib.appdata.schemas.FieldsAggregatable;
 import com.datatorrent.lib.appdata.schemas.FieldsDescriptor;
 import com.datatorrent.lib.appdata.schemas.SchemaUtils;
 import com.datatorrent.lib.appdata.schemas.TimeBucket;
@@ -140,22 +152,34 @@ public class AppDataSingleSchemaDimensionStoreHDHTTest
 
     long windowId = 0L;
     store.setup(null);
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
     store.beginWindow(windowId);
     byte[] windowIDBytes = store.load(AppDataSingleSchemaDimensionStoreHDHT.DEFAULT_BUCKET_ID,
                                       DimensionsStoreHDHT.WINDOW_ID_KEY);
     Assert.assertArrayEquals(null, windowIDBytes);
+    store.input.put(createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, 10L, 1.0));
     store.endWindow();
     store.checkpointed(windowId);
     store.committed(windowId);
 
+    //the window ID is only written to buckets which receive data
+    long lastWrittenWindowId = windowId;
+
     for(int windowCounter = 0;
-        windowCounter < 2;
+        windowCounter < 4;
         windowCounter++) {
       windowId++;
       store.beginWindow(windowId);
       windowIDBytes = store.load(AppDataSingleSchemaDimensionStoreHDHT.DEFAULT_BUCKET_ID,
                                  DimensionsStoreHDHT.WINDOW_ID_KEY);
-      Assert.assertEquals(windowId - 1L, GPOUtils.deserializeLong(windowIDBytes));
+      Assert.assertEquals(lastWrittenWindowId, GPOUtils.deserializeLong(windowIDBytes));
+
+      if(windowCounter % 2 == 1) {
+        store.input.put(createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, 10L, 1.0));
+        lastWrittenWindowId = windowId;
+      }
+
       store.endWindow();
       store.checkpointed(windowId);
       store.committed(windowId);
@@ -230,6 +254,20 @@ public class AppDataSingleSchemaDimensionStoreHDHTTest
     Assert.assertEquals("Test aggregates", ae.getAggregates(), deserializedAE.getAggregates());
     Assert.assertEquals("event keys must be equal", ae.getEventKey(), deserializedAE.getEventKey());
 
+    //Keys are prefixed by the timestamp and the ids
+    Assert.assertArrayEquals("time prefix", Longs.toByteArray(60000L), Arrays.copyOfRange(keyBytes, 0, 8));
+    Assert.assertArrayEquals("schema prefix", Ints.toByteArray(ae.getSchemaID()), Arrays.copyOfRange(keyBytes, 8, 12));
+    Assert.assertArrayEquals("aggregator prefix", Ints.toByteArray(ae.getAggregatorID()), Arrays.copyOfRange(keyBytes, 16, 20));
+
+    //Keys are read at the offset of the slice
+    byte[] paddedKeyBytes = new byte[keyBytes.length + 3];
+    System.arraycopy(keyBytes, 0, paddedKeyBytes, 3, keyBytes.length);
+    Slice paddedKey = new Slice(paddedKeyBytes, 3, keyBytes.length);
+    Assert.assertEquals(60000L, DimensionsStoreHDHT.getTimestamp(paddedKey));
+    deserializedAE = store.fromKeyValueGAE(paddedKey, valueBytes);
+    deserializedAE.getEventKey().getKey().setFieldDescriptor(ae.getEventKey().getKey().getFieldDescriptor());
+    Assert.assertEquals("event keys at offset must be equal", ae.getEventKey(), deserializedAE.getEventKey());
+
     store.beginWindow(0L);
     store.endWindow();
     store.teardown();
@@ -384,6 +422,299 @@ public class AppDataSingleSchemaDimensionStoreHDHTTest
     store.teardown();
   }
 
+  @Test
+  public void lruCacheTest()
+  {
+    final String publisher = "google";
+    final String advertiser = "safeway";
+    final String advertiser1 = "starbucks";
+
+    final long impressions = 10L;
+    final double cost = 1.0;
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setMaxCacheSize(1);
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+
+    store.setup(null);
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
+    Aggregate expectedDouble = createEvent(eventSchema,
+                                           publisher,
+                                           advertiser,
+                                           60000L,
+                                           TimeBucket.MINUTE,
+                                           2 * impressions,
+                                           2.0 * cost);
+
+    Aggregate expected1 = createEvent(eventSchema,
+                                      publisher,
+                                      advertiser1,
+                                      60000L,
+                                      TimeBucket.MINUTE,
+                                      impressions,
+                                      cost);
+
+    long windowId = 1L;
+    store.beginWindow(windowId);
+    store.input.put(createEvent(eventSchema, publisher, advertiser, 60000L, TimeBucket.MINUTE, impressions, cost));
+    store.input.put(createEvent(eventSchema, publisher, advertiser1, 60000L, TimeBucket.MINUTE, impressions, cost));
+    Assert.assertEquals(1, store.cache.size());
+    //the evicted aggregate was written back and is aggregated with the next event
+    store.input.put(createEvent(eventSchema, publisher, advertiser, 60000L, TimeBucket.MINUTE, impressions, cost));
+    Assert.assertEquals(1, store.cache.size());
+    Assert.assertEquals(expectedDouble, store.cache.get(expectedDouble.getEventKey()));
+    Assert.assertEquals(1, store.dirtyAggregates.size());
+    store.endWindow();
+    Assert.assertEquals(0, store.dirtyAggregates.size());
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    store.beginWindow(windowId);
+    Assert.assertEquals("The cache is not cleared", 1, store.cache.size());
+    Assert.assertEquals(expectedDouble, store.load(expectedDouble.getEventKey()));
+    Assert.assertEquals(expected1, store.load(expected1.getEventKey()));
+    store.endWindow();
+    store.checkpointed(windowId);
+    store.committed(windowId);
+
+    store.teardown();
+  }
+
+  @Test
+  public void timePartitionedTest()
+  {
+    final String publisher = "google";
+    final String advertiser = "safeway";
+
+    final long impressions = 10L;
+    final double cost = 1.0;
+    final long hour = 60L * 60L * 1000L;
+    final long time = 10L * hour;
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+    store.setTimeRangeMillis(hour);
+    store.setKeyPartitions(2);
+    store.setRetentionMillis(3L * hour);
+
+    store.setup(null);
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
+    Aggregate ae = createEvent(eventSchema, publisher, advertiser, time, TimeBucket.MINUTE, impressions, cost);
+    Aggregate ae1 = createEvent(eventSchema, publisher, advertiser, time + hour, TimeBucket.MINUTE, impressions, cost);
+    long bucket = store.getBucketForSchema(ae.getEventKey());
+    long bucket1 = store.getBucketForSchema(ae1.getEventKey());
+
+    Assert.assertEquals("time range", 10L, bucket >>> AppDataSingleSchemaDimensionStoreHDHT.KEY_PARTITION_BITS);
+    Assert.assertEquals("time range", 11L, bucket1 >>> AppDataSingleSchemaDimensionStoreHDHT.KEY_PARTITION_BITS);
+    Assert.assertTrue("key partition", (bucket & (AppDataSingleSchemaDimensionStoreHDHT.MAX_KEY_PARTITIONS - 1)) < 2);
+
+    long windowId = 1L;
+    store.beginWindow(windowId);
+    store.input.put(ae);
+    store.input.put(ae1);
+    Assert.assertEquals(Sets.newHashSet(bucket, bucket1), store.buckets);
+    store.endWindow();
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    store.beginWindow(windowId);
+    Assert.assertEquals(ae, store.load(ae.getEventKey()));
+    Assert.assertEquals(ae1, store.load(ae1.getEventKey()));
+    //the time range of the first event is now older than the retention
+    store.input.put(createEvent(eventSchema, publisher, advertiser, time + 4L * hour, TimeBucket.MINUTE, impressions, cost));
+    Assert.assertTrue(store.isExpired(ae.getEventKey()));
+    Assert.assertFalse(store.isExpired(ae1.getEventKey()));
+    store.endWindow();
+    Assert.assertFalse(store.buckets.contains(bucket));
+    Assert.assertEquals(Sets.newHashSet(bucket), store.expiredBuckets.keySet());
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    Assert.assertTrue(store.expiredBuckets.isEmpty());
+    windowId++;
+
+    store.beginWindow(windowId);
+    Assert.assertNull("deleted", store.load(ae.getEventKey()));
+    Assert.assertEquals(ae1, store.load(ae1.getEventKey()));
+    //late data for expired time ranges is dropped
+    store.input.put(createEvent(eventSchema, publisher, advertiser, time, TimeBucket.MINUTE, impressions, cost));
+    Assert.assertFalse(store.buckets.contains(bucket));
+    store.endWindow();
+    store.checkpointed(windowId);
+    store.committed(windowId);
+
+    store.teardown();
+  }
+
+  @Test
+  public void rollupCacheTest()
+  {
+    final String publisher = "google";
+    final String advertiser = "safeway";
+
+    final long impressions = 10L;
+    final double cost = 1.0;
+    final long hour = 60L * 60L * 1000L;
+    final long time = 10L * hour;
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+    store.setRollupTimeBuckets(true);
+
+    store.setup(null);
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
+    Aggregate rollup = createEvent(eventSchema, publisher, advertiser, time, TimeBucket.HOUR, impressions, cost);
+    Aggregate rollup1 = createEvent(eventSchema, publisher, advertiser, time + hour, TimeBucket.HOUR, impressions, cost);
+
+    long windowId = 1L;
+    store.beginWindow(windowId);
+    long version = store.getRollupCacheVersion();
+    store.putRollup(rollup.getEventKey(), rollup, version);
+    store.putRollup(rollup1.getEventKey(), rollup1, version);
+    Assert.assertEquals(rollup, store.getRollup(rollup.getEventKey()));
+    //data is written for a minute in the first hour
+    store.input.put(createEvent(eventSchema, publisher, advertiser, time + 30L * 60L * 1000L, TimeBucket.MINUTE, impressions, cost));
+    store.endWindow();
+
+    Assert.assertNull("invalidated", store.getRollup(rollup.getEventKey()));
+    Assert.assertEquals("not written", rollup1, store.getRollup(rollup1.getEventKey()));
+
+    //rollups which were started before the invalidation are stale
+    store.putRollup(rollup.getEventKey(), rollup, version);
+    Assert.assertNull("stale", store.getRollup(rollup.getEventKey()));
+
+    store.teardown();
+  }
+
+  @Test
+  public void rollupQueryTest()
+  {
+    final String publisher = "google";
+    final String advertiser = "safeway";
+
+    final long impressions = 10L;
+    final double cost = 1.0;
+    final long hour = 60L * 60L * 1000L;
+    final long time = 10L * hour;
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+    store.setRollupTimeBuckets(true);
+
+    store.setup(null);
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
+    //only two minutes of the hour have data
+    long windowId = 0L;
+    store.beginWindow(windowId);
+    store.input.put(createEvent(eventSchema, publisher, advertiser, time, TimeBucket.MINUTE, impressions, cost));
+    store.input.put(createEvent(eventSchema, publisher, advertiser, time + 30L * 60L * 1000L, TimeBucket.MINUTE, impressions, cost));
+    store.endWindow();
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+    store.beginWindow(windowId);
+    store.endWindow();
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+    store.beginWindow(windowId);
+
+    //query the hour, which is rolled up from the minutes
+    GPOMutable keys = new GPOMutable(eventSchema.getKeyDescriptor().getSubset(new Fields(Sets.newHashSet("publisher", "advertiser"))));
+    keys.setField("publisher", publisher);
+    keys.setField("advertiser", advertiser);
+
+    Map<String, Set<String>> fieldToAggregator = Maps.newHashMap();
+    fieldToAggregator.put("impressions", Sets.newHashSet(AggregatorIncrementalType.SUM.name()));
+    fieldToAggregator.put("cost", Sets.newHashSet(AggregatorIncrementalType.SUM.name()));
+    FieldsAggregatable fieldsAggregatable = new FieldsAggregatable(Sets.newHashSet(DimensionsDescriptor.DIMENSION_TIME), fieldToAggregator);
+
+    DataQueryDimensional query = new DataQueryDimensional("1",
+                                                          DataQueryDimensional.TYPE,
+                                                          time,
+                                                          time,
+                                                          TimeBucket.HOUR,
+                                                          keys,
+                                                          fieldsAggregatable,
+                                                          10L,
+                                                          false);
+
+    DimensionsQueueManager queueManager = new DimensionsQueueManager(store, store.schemaRegistry);
+    Assert.assertTrue("rollup enqueued", queueManager.enqueue(query, null, null));
+    QueryBundle<DataQueryDimensional, QueryMeta, MutableLong> queryBundle = queueManager.dequeue();
+    QueryMeta qm = queryBundle.getMetaQuery();
+    Assert.assertEquals("minutes of the hour", 60, qm.getRollupHdsQueries().get(0).get(AggregatorIncrementalType.SUM.name()).size());
+
+    DimensionsQueryExecutor executor = new DimensionsQueryExecutor(store, store.schemaRegistry);
+    //the empty minutes don't keep the rollup from completing while the query has time in its countdown
+    DataResultDimensional result = (DataResultDimensional) executor.executeQuery(query, qm, new MutableLong(10L));
+    Assert.assertNotNull("complete result", result);
+    Assert.assertEquals("time buckets", 1, result.getValues().size());
+    GPOMutable sum = result.getValues().get(0).get(AggregatorIncrementalType.SUM.name());
+    Assert.assertEquals("impressions", 2L * impressions, sum.getFieldLong("impressions"));
+    Assert.assertEquals("cost", 2.0 * cost, sum.getFieldDouble("cost"), 0.0);
+
+    EventKey rollupEventKey = qm.getEventKeys().get(0).get(AggregatorIncrementalType.SUM.name());
+    Assert.assertNotNull("rollup cached", store.getRollup(rollupEventKey));
+
+    //the cached rollup answers the query again
+    result = (DataResultDimensional) executor.executeQuery(query, qm, new MutableLong(10L));
+    Assert.assertNotNull("cached result", result);
+    Assert.assertEquals("impressions", 2L * impressions, result.getValues().get(0).get(AggregatorIncrementalType.SUM.name()).getFieldLong("impressions"));
+
+    store.endWindow();
+    store.teardown();
+  }
+
   @Test
   public void aggregationTest()
   {
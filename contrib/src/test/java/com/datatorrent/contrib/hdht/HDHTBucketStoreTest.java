@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.datatorrent.lib.util.TestUtils;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Tests for {@link HDHTBucketStore}
+ */
+public class HDHTBucketStoreTest
+{
+  @Rule
+  public final TestUtils.TestInfo testInfo = new TestUtils.TestInfo();
+
+  private static Map<Integer, Map<Object, Long>> newData(int bucketIdx, long... eventKeys)
+  {
+    Map<Object, Long> bucketData = Maps.newHashMap();
+    for (long eventKey : eventKeys) {
+      bucketData.put(eventKey, eventKey * 10);
+    }
+    Map<Integer, Map<Object, Long>> data = Maps.newHashMap();
+    data.put(bucketIdx, bucketData);
+    return data;
+  }
+
+  @Test
+  public void testLookupAndExpiry() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    MockFileAccess fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter writer = new HDHTWriter();
+    writer.setFileStore(fa);
+    writer.setFlushSize(0);
+
+    HDHTBucketStore<Long> store = new HDHTBucketStore<Long>();
+    store.setWriter(writer);
+    store.setNoOfBuckets(10);
+    store.setMaxPartitionCount(4);
+    store.setConfiguration(Sets.newHashSet(0), 0);
+    store.setup();
+    writer.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    store.storeBucketData(1, 100, newData(1, 1L, 2L));
+    store.storeBucketData(2, 200, newData(2, 3L));
+
+    Assert.assertTrue("uncommitted", store.containsEventKey(1, 1L));
+    Assert.assertTrue("bucket key of same index", store.containsEventKey(11, 2L));
+    Assert.assertFalse("absent", store.containsEventKey(1, 3L));
+    Assert.assertFalse("not stored", store.containsEventKey(3, 3L));
+    Map<Object, Long> bucketData = store.fetchBucket(1);
+    Assert.assertEquals("fetched", 2, bucketData.size());
+    Assert.assertEquals("event", Long.valueOf(20), bucketData.get(2L));
+
+    store.checkpointed(2);
+    store.committed(2);
+    Assert.assertTrue("flushed", store.containsEventKey(1, 1L));
+    Assert.assertEquals("fetched flushed", 2, store.fetchBucket(1).size());
+
+    // hash key of 1L is 1, first generation of index 1
+    File bucketDir = new File(file, Long.toString(1 << 2 | 1));
+    Assert.assertTrue("exists " + bucketDir, bucketDir.exists());
+
+    store.deleteExpiredBuckets(150);
+    Assert.assertFalse("expired", store.containsEventKey(1, 1L));
+    Assert.assertTrue("fetched expired", store.fetchBucket(1).isEmpty());
+    Assert.assertTrue("not expired", store.containsEventKey(2, 3L));
+    Assert.assertTrue("kept until commit " + bucketDir, bucketDir.exists());
+
+    store.storeBucketData(3, 300, newData(1, 2L));
+    Assert.assertFalse("previous generation", store.containsEventKey(1, 1L));
+    Assert.assertTrue("new generation", store.containsEventKey(1, 2L));
+
+    store.checkpointed(3);
+    store.committed(3);
+    Assert.assertFalse("deleted " + bucketDir, bucketDir.exists());
+    Assert.assertEquals("fetched new generation", 1, store.fetchBucket(1).size());
+    Assert.assertTrue("new generation flushed", store.containsEventKey(1, 2L));
+
+    store.teardown();
+  }
+}
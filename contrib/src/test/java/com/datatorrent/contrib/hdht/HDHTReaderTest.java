@@ -16,6 +16,7 @@
 package com.datatorrent.contrib.hdht;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.io.FileUtils;
@@ -187,4 +188,128 @@ public class HDHTReaderTest
     reader.teardown();
 
   }
+
+  @Test
+  public void testGetAll() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setMaxFileSize(1); // limit to single entry per file
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+    hds.beginWindow(1);
+    for (int i = 0; i < 10; i += 2) {
+      hds.put(1, HDHTWriterTest.newKey(1, i), ("data" + i).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    final List<HDSQuery> results = Lists.newArrayList();
+    HDHTReader reader = new HDHTReader() {
+      @Override
+      protected void emitQueryResult(HDSQuery query)
+      {
+        results.add(query);
+      }
+    };
+    reader.queryExecutor = MoreExecutors.sameThreadExecutor(); // synchronous endWindow processing
+    reader.setFileStore(fa);
+    reader.setup(null);
+
+    // keys in any order, missing keys before, between and after the files, duplicate keys
+    List<Slice> keys = Lists.newArrayList(HDHTWriterTest.newKey(1, 8), HDHTWriterTest.newKey(1, 1),
+        HDHTWriterTest.newKey(1, 0), HDHTWriterTest.newKey(1, 20), HDHTWriterTest.newKey(1, 8), HDHTWriterTest.newKey(0, 0));
+    List<byte[]> values = reader.getAll(1, keys);
+    Assert.assertEquals("values", keys.size(), values.size());
+    Assert.assertArrayEquals("data8".getBytes(), values.get(0));
+    Assert.assertNull("missing", values.get(1));
+    Assert.assertArrayEquals("data0".getBytes(), values.get(2));
+    Assert.assertNull("missing", values.get(3));
+    Assert.assertArrayEquals("duplicate", "data8".getBytes(), values.get(4));
+    Assert.assertNull("before first file", values.get(5));
+
+    // queries of a bucket are processed as one batch
+    reader.beginWindow(1);
+    for (int i = 2; i < 6; i++) {
+      HDSQuery q = new HDSQuery();
+      q.bucketKey = 1;
+      q.key = HDHTWriterTest.newKey(1, i);
+      reader.addQuery(q);
+    }
+    reader.endWindow();
+    Assert.assertEquals("query results", 4, results.size());
+    for (HDSQuery q : results) {
+      Assert.assertTrue("processed " + q, q.processed);
+      Assert.assertArrayEquals("result " + q, reader.get(1, q.key), q.result);
+    }
+
+    reader.teardown();
+    hds.teardown();
+  }
+
+  @Test
+  public void testConcurrentGet() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+
+    final int numKeys = 10;
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setMaxFileSize(1); // limit to single entry per file
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+    hds.beginWindow(1);
+    for (int i = 0; i < numKeys; i++) {
+      hds.put(1, HDHTWriterTest.newKey(1, i), ("data" + i).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    final HDHTReader reader = new HDHTReader();
+    reader.setFileStore(fa);
+    reader.setNumReaderThreads(4);
+    reader.setup(null);
+
+    final List<Throwable> errors = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+    List<Thread> threads = Lists.newArrayList();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run()
+        {
+          try {
+            for (int n = 0; n < 100; n++) {
+              int i = n % numKeys;
+              Assert.assertArrayEquals("get " + i, ("data" + i).getBytes(), reader.get(1, HDHTWriterTest.newKey(1, i)));
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals("errors " + errors, 0, errors.size());
+
+    reader.teardown();
+    hds.teardown();
+  }
 }
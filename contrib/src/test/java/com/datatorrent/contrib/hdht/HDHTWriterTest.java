@@ -17,12 +17,18 @@ package com.datatorrent.contrib.hdht;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.RegexFileFilter;
@@ -30,6 +36,10 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 
+import com.datatorrent.api.DefaultPartition;
+import com.datatorrent.api.Operator;
+import com.datatorrent.api.Partitioner;
+import com.datatorrent.api.StatsListener.BatchedOperatorStats;
 import com.datatorrent.netlet.util.Slice;
 import com.datatorrent.contrib.hdht.HDHTFileAccessFSImpl;
 import com.datatorrent.contrib.hdht.HDHTWalManager;
@@ -37,9 +47,13 @@ import com.datatorrent.contrib.hdht.HDHTWriter;
 import com.datatorrent.contrib.hdht.HDHTFileAccess.HDSFileReader;
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
 import com.datatorrent.contrib.hdht.hfile.HFileImpl;
+import com.datatorrent.contrib.hdht.tfile.BlockCache;
 import com.datatorrent.contrib.hdht.tfile.TFileImpl;
+import com.datatorrent.lib.util.KeyValPair;
 import com.datatorrent.lib.util.TestUtils;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
 
 /**
@@ -347,6 +361,252 @@ public class HDHTWriterTest
     Assert.assertEquals(5, seq);
   }
 
+  @Test
+  public void testSortedRuns() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+    hds.setMaxRunsPerLevel(2);
+    hds.setMaxRunLevels(2);
+
+    long BUCKETKEY = 1;
+    Slice key1 = newKey(BUCKETKEY, 1);
+
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+
+    hds.beginWindow(0);
+    try {
+      hds.put(BUCKETKEY, key1, new byte[0]);
+      Assert.fail("empty value accepted");
+    } catch (IllegalArgumentException e) {
+      // expected, runs keep deletes as empty values
+    }
+    hds.endWindow();
+
+    int[] expectedRuns = { 1, 1, 2, 0 };
+    for (int wid = 1; wid <= expectedRuns.length; wid++) {
+      hds.beginWindow(wid);
+      if (wid == 3) {
+        hds.delete(BUCKETKEY, key1);
+      } else {
+        Slice key = newKey(BUCKETKEY, wid);
+        hds.put(BUCKETKEY, key, ("data" + wid).getBytes());
+      }
+      hds.endWindow();
+      hds.checkpointed(wid);
+      hds.committed(wid);
+
+      HDHTWriter.BucketMeta meta = hds.loadBucketMeta(BUCKETKEY);
+      Assert.assertEquals("runs after window " + wid, expectedRuns[wid - 1], meta.runs.size());
+      if (wid == 2) {
+        Assert.assertEquals("level after merge", 1, meta.runs.get(0).level);
+        Assert.assertArrayEquals("get from run", "data1".getBytes(), hds.get(BUCKETKEY, key1));
+      }
+      if (wid == 3) {
+        Assert.assertNull("get shadowed by delete", hds.get(BUCKETKEY, key1));
+      }
+    }
+
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("data files " + meta.files, 1, meta.files.size());
+    Assert.assertNull("deleted key", hds.get(BUCKETKEY, key1));
+    Assert.assertArrayEquals("get from data file", "data2".getBytes(), hds.get(BUCKETKEY, newKey(BUCKETKEY, 2)));
+    Assert.assertArrayEquals("get from data file", "data4".getBytes(), hds.get(BUCKETKEY, newKey(BUCKETKEY, 4)));
+    Assert.assertEquals("keys in data file", 2, readFile(hds, BUCKETKEY, meta.files.firstEntry().getValue().name).size());
+    hds.teardown();
+  }
+
+  @Test
+  public void testUnversionedMeta() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+
+    long BUCKETKEY = 1;
+    // meta data as written before versioning, without runs
+    HDHTWriter.BucketMeta oldMeta = new HDHTWriter.BucketMeta(hds.getKeyComparator());
+    oldMeta.committedWid = 5;
+    oldMeta.fileSeq = 3;
+    Output output = new Output(fa.getOutputStream(BUCKETKEY, HDHTReader.FNAME_META));
+    HDHTReader.newUnversionedMetaKryo().writeClassAndObject(output, oldMeta);
+    output.close();
+
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("committed window", 5, meta.committedWid);
+    Assert.assertEquals("file sequence", 3, meta.fileSeq);
+    Assert.assertNotNull("runs", meta.runs);
+    Assert.assertTrue("runs", meta.runs.isEmpty());
+    Assert.assertFalse("contains file", meta.containsFile("1-0"));
+
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+
+    Slice key = newKey(BUCKETKEY, 1);
+    hds.beginWindow(6);
+    hds.put(BUCKETKEY, key, "data1".getBytes());
+    hds.endWindow();
+    hds.checkpointed(6);
+    hds.committed(6);
+
+    meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("committed window", 6, meta.committedWid);
+    Assert.assertEquals("data files " + meta.files, 1, meta.files.size());
+    Assert.assertEquals("file name", "1-3", meta.files.firstEntry().getValue().name);
+    Assert.assertArrayEquals("get", "data1".getBytes(), hds.get(BUCKETKEY, key));
+    hds.teardown();
+
+    // file entries written before bloom filters are read without filter
+    meta.files.firstEntry().getValue().bloomFilter = true;
+    output = new Output(fa.getOutputStream(BUCKETKEY, HDHTReader.FNAME_META));
+    HDHTReader.newUnversionedMetaKryo().writeClassAndObject(output, meta);
+    output.close();
+
+    hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertFalse("bloom filter", meta.files.firstEntry().getValue().bloomFilter);
+    hds.setup(null);
+    Assert.assertArrayEquals("get without filter", "data1".getBytes(), hds.get(BUCKETKEY, key));
+    hds.teardown();
+  }
+
+  @Test
+  public void testBloomFilter() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    final AtomicInteger readersOpened = new AtomicInteger();
+    HDHTFileAccessFSImpl fa = new MockFileAccess() {
+      @Override
+      public HDSFileReader getReader(long bucketKey, String fileName) throws IOException
+      {
+        readersOpened.incrementAndGet();
+        return super.getReader(bucketKey, fileName);
+      }
+    };
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+    hds.setBloomFilterBitsPerKey(20);
+
+    long BUCKETKEY = 1;
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+
+    hds.beginWindow(1);
+    for (int i = 1; i < 100; i += 2) {
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, i), ("data" + i).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(BUCKETKEY);
+    HDHTReader.BucketFileMeta fileMeta = meta.files.firstEntry().getValue();
+    Assert.assertTrue("filter written", fileMeta.bloomFilter);
+    Assert.assertTrue("filter file", new File(file, BUCKETKEY + "/" + fileMeta.name + HDHTReader.FNAME_SUFFIX_BLOOM_FILTER).exists());
+
+    readersOpened.set(0);
+    for (int i = 2; i < 100; i += 2) {
+      Assert.assertNull("missing key " + i, hds.get(BUCKETKEY, newKey(BUCKETKEY, i)));
+    }
+    Assert.assertEquals("data file not read for missing keys", 0, readersOpened.get());
+
+    for (int i = 1; i < 100; i += 2) {
+      Assert.assertArrayEquals("key " + i, ("data" + i).getBytes(), hds.get(BUCKETKEY, newKey(BUCKETKEY, i)));
+    }
+    Assert.assertEquals("data file read", 1, readersOpened.get());
+    hds.teardown();
+
+    BloomFilter filter = new BloomFilter(1000, 10);
+    for (int i = 0; i < 1000; i++) {
+      filter.add(newKey(BUCKETKEY, i));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue("added key " + i, filter.mightContain(newKey(BUCKETKEY, i)));
+      if (filter.mightContain(newKey(BUCKETKEY + 1, i))) {
+        falsePositives++;
+      }
+    }
+    Assert.assertTrue("false positives " + falsePositives, falsePositives < 50);
+  }
+
+  @Test
+  public void testScan() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+    hds.setMaxFileSize(32); // multiple data files
+
+    long BUCKETKEY = 1;
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+
+    hds.beginWindow(1);
+    for (int i = 1; i <= 10; i++) {
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, i), ("data" + i).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+    Assert.assertTrue("data files", hds.loadBucketMeta(BUCKETKEY).files.size() > 1);
+
+    // changes remain in write cache
+    hds.setFlushIntervalCount(1000);
+    hds.beginWindow(2);
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 11), "data11".getBytes());
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 5), "data5-update".getBytes());
+    hds.delete(BUCKETKEY, newKey(BUCKETKEY, 3));
+
+    HDHT.ScanIterator it = hds.scan(BUCKETKEY, newKey(BUCKETKEY, 2), newKey(BUCKETKEY, 8));
+    String[] expected = { "data2", "data4", "data5-update", "data6", "data7" };
+    for (String value : expected) {
+      Assert.assertTrue("has next " + value, it.hasNext());
+      Assert.assertArrayEquals(value.getBytes(), it.next().getValue());
+    }
+    Assert.assertFalse("end of range", it.hasNext());
+    it.close();
+
+    it = hds.scan(BUCKETKEY, null, null);
+    int count = 0;
+    long lastSeq = 0;
+    while (it.hasNext()) {
+      Map.Entry<Slice, byte[]> entry = it.next();
+      long seq = readLong(entry.getKey().buffer, entry.getKey().offset);
+      Assert.assertTrue("key order", seq > lastSeq);
+      Assert.assertTrue("deleted key", seq != 3);
+      lastSeq = seq;
+      count++;
+    }
+    it.close();
+    Assert.assertEquals("keys", 10, count);
+    Assert.assertEquals("last key", 11, lastSeq);
+    hds.endWindow();
+    hds.teardown();
+  }
+
   @Test
   public void testWriteError() throws Exception
   {
@@ -406,6 +666,112 @@ public class HDHTWriterTest
     hds.teardown();
   }
 
+  @Test
+  public void testParallelFlush() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    final CountDownLatch bucket1Released = new CountDownLatch(1);
+    final CountDownLatch bucket2Written = new CountDownLatch(1);
+    HDHTFileAccessFSImpl fa = new MockFileAccess() {
+      @Override
+      public HDSFileWriter getWriter(long bucketKey, String fileName) throws IOException
+      {
+        if (bucketKey == 1) {
+          try {
+            bucket1Released.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        return super.getWriter(bucketKey, fileName);
+      }
+
+      @Override
+      public void rename(long bucketKey, String fromName, String toName) throws IOException
+      {
+        super.rename(bucketKey, fromName, toName);
+        if (bucketKey == 2 && HDHTReader.FNAME_META.equals(toName)) {
+          bucket2Written.countDown();
+        }
+      }
+    };
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+    hds.setFlushThreads(2);
+    hds.setMaxPendingFlushes(2);
+
+    hds.setup(null);
+    hds.beginWindow(1);
+    for (long bucketKey = 1; bucketKey <= 2; bucketKey++) {
+      hds.put(bucketKey, newKey(bucketKey, 1), ("data" + bucketKey).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    Assert.assertTrue("bucket 2 flushed while bucket 1 blocked", bucket2Written.await(10, TimeUnit.SECONDS));
+    Assert.assertFalse("bucket 1 not flushed", new File(file, "1/" + HDHTReader.FNAME_META).exists());
+    bucket1Released.countDown();
+    hds.writeExecutor.shutdown();
+    Assert.assertTrue(hds.writeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    hds.teardown();
+
+    // get fresh instance w/o cached readers
+    hds = TestUtils.clone(new Kryo(), hds);
+    hds.setup(null);
+    hds.beginWindow(2);
+    for (long bucketKey = 1; bucketKey <= 2; bucketKey++) {
+      Assert.assertArrayEquals("get", ("data" + bucketKey).getBytes(), hds.get(bucketKey, newKey(bucketKey, 1)));
+    }
+    hds.endWindow();
+    hds.teardown();
+  }
+
+  @Test
+  public void testCacheMemoryBudget() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(1000);
+    long entrySize = 16 + 100 + 96;
+    hds.setMaxCacheBytes(entrySize * 5);
+
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+    hds.beginWindow(1);
+    for (int i = 0; i < 10; i++) {
+      hds.put(1, newKey(1, i), new byte[100]);
+    }
+    // replace value
+    hds.put(1, newKey(1, 0), new byte[50]);
+    Assert.assertEquals("cache bytes", entrySize * 10 - 50, hds.getCacheBytes());
+    hds.endWindow();
+    hds.checkpointed(1);
+    Assert.assertEquals("cache bytes after checkpoint", entrySize * 10 - 50, hds.getCacheBytes());
+
+    hds.beginWindow(2);
+    hds.put(1, newKey(1, 10), new byte[100]);
+    hds.endWindow();
+    hds.checkpointed(2);
+    Assert.assertEquals("cache bytes", entrySize * 11 - 50, hds.getCacheBytes());
+
+    // budget exceeded, committed changes are flushed below flushSize
+    hds.committed(1);
+    Assert.assertEquals("committed changes flushed", 0, hds.committedDataSize(1));
+    Assert.assertEquals("cache bytes after flush", entrySize, hds.getCacheBytes());
+    Assert.assertArrayEquals("flushed value", new byte[50], hds.get(1, newKey(1, 0)));
+    hds.teardown();
+  }
+
   @Test
   public void testDefaultHDSFileAccess() throws Exception
   {
@@ -431,6 +797,83 @@ public class HDHTWriterTest
     testHDSFileAccess(timpl);
   }
 
+  @Test
+  public void testDTFileBlockCache() throws Exception
+  {
+    TFileImpl timpl = new TFileImpl.DTFileImpl();
+    timpl.setBlockCacheSize(1024 * 1024);
+    timpl.setBlockCacheBlockSize(1024);
+    testHDSFileAccess(timpl);
+    BlockCache.Counters counters = timpl.getBlockCache().getCounters(1L, new BlockCache.Counters());
+    Assert.assertTrue("cache misses " + counters.misses, counters.misses > 0);
+    Assert.assertTrue("cache hits " + counters.hits, counters.hits > 0);
+
+    for (BlockCache.EvictionPolicy policy : BlockCache.EvictionPolicy.values()) {
+      BlockCache cache = new BlockCache(2, policy);
+      byte[] block = new byte[1];
+      cache.put(1L, "f", 0, block, 1);
+      cache.put(1L, "f", 1, block, 1);
+      Assert.assertNotNull(cache.get(1L, "f", 0));
+      cache.put(1L, "f", 2, block, 1);
+      Assert.assertEquals("size", 2, cache.getSize());
+      Assert.assertNotNull(policy + " retains accessed block", cache.get(1L, "f", 0));
+      Assert.assertNull(policy + " evicts unused block", cache.get(1L, "f", 1));
+      Assert.assertEquals("evictions", 1, cache.getCounters(1L, new BlockCache.Counters()).evictions);
+      cache.invalidate(1L, "f");
+      Assert.assertEquals("size", 0, cache.getSize());
+    }
+  }
+
+  @Test
+  public void testDeleteBucketBlockCache() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+    final long BUCKET1 = 1L;
+
+    TFileImpl timpl = new TFileImpl.DTFileImpl();
+    timpl.setBlockCacheSize(1024 * 1024);
+    timpl.setBlockCacheBlockSize(1024);
+    timpl.setBasePath(file.getAbsolutePath());
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(timpl);
+    hds.setFlushSize(0); // flush after every key
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush on endWindow
+
+    Slice key1 = newKey(BUCKET1, 1);
+    String data1 = "data01bucket1";
+
+    long windowId = 1;
+    hds.beginWindow(windowId);
+    hds.put(BUCKET1, key1, data1.getBytes());
+    hds.endWindow();
+    hds.checkpointed(windowId);
+    hds.committed(windowId);
+
+    hds.beginWindow(++windowId);
+    Assert.assertArrayEquals("get " + key1, data1.getBytes(), hds.get(BUCKET1, key1));
+    Assert.assertTrue("cached blocks", timpl.getBlockCache().getSize() > 0);
+    hds.endWindow();
+
+    hds.deleteBucket(BUCKET1);
+    Assert.assertEquals("cached blocks of deleted bucket", 0, timpl.getBlockCache().getSize());
+
+    // same length, so that the rewritten file has the same name and blocks as the deleted one
+    String data1Rewritten = "data02bucket1";
+    hds.beginWindow(++windowId);
+    hds.put(BUCKET1, key1, data1Rewritten.getBytes());
+    hds.endWindow();
+    hds.checkpointed(windowId);
+    hds.committed(windowId);
+
+    hds.beginWindow(++windowId);
+    Assert.assertArrayEquals("get after rewrite " + key1, data1Rewritten.getBytes(), hds.get(BUCKET1, key1));
+    hds.endWindow();
+    hds.teardown();
+  }
+
   @Test
   public void testHFileHDSFileAccess() throws Exception
   {
@@ -440,5 +883,114 @@ public class HDHTWriterTest
     testHDSFileAccess(hfi);
   }
 
-}
+  private static class StatsPartition extends DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>
+  {
+    private final long tuplesProcessedPSMA;
+
+    StatsPartition(AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>> oper, long tuplesProcessedPSMA)
+    {
+      super(oper);
+      this.tuplesProcessedPSMA = tuplesProcessedPSMA;
+    }
+
+    @Override
+    public BatchedOperatorStats getStats()
+    {
+      return (BatchedOperatorStats)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {BatchedOperatorStats.class}, new InvocationHandler()
+      {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+          if (method.getName().equals("getTuplesProcessedPSMA")) {
+            return tuplesProcessedPSMA;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testRepartition() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+    HDHTFileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+
+    final HDHTTestOperator oper = new HDHTTestOperator();
+    oper.setFileStore(fa);
+    oper.setMaxPartitionCount(4);
+    oper.setMaxEventsPerSecond(100);
+    oper.setMinEventsPerSecond(10);
+    Partitioner.PartitioningContext context = new Partitioner.PartitioningContext()
+    {
+      @Override
+      public int getParallelPartitionCount()
+      {
+        return 2;
+      }
 
+      @Override
+      public List<Operator.InputPort<?>> getInputPorts()
+      {
+        return Lists.<Operator.InputPort<?>>newArrayList(oper.input);
+      }
+    };
+
+    List<Partitioner.Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> partitions = Lists.newArrayList();
+    partitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>(oper));
+    List<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> opers = Lists.newArrayList();
+    for (Partitioner.Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : oper.definePartitions(partitions, context)) {
+      opers.add(p.getPartitionedInstance());
+    }
+    Assert.assertEquals("partitions", 2, opers.size());
+
+    // one key per bucket, the codec derives the partition from the last 4 bytes
+    for (AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>> p : opers) {
+      p.setup(null);
+      p.beginWindow(1);
+      for (int i = 0; i < 4; i++) {
+        if (p.partitions.contains(i & p.partitionMask)) {
+          p.input.process(new KeyValPair<byte[], byte[]>(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte)i}, ("data" + i).getBytes()));
+        }
+      }
+      p.endWindow();
+      p.teardown();
+      Assert.assertEquals("buckets " + p.partitions, 2, p.getBucketKeys().size());
+    }
+
+    // scale-in is not triggered by a single partition below the threshold
+    partitions.clear();
+    partitions.add(new StatsPartition(opers.get(0), 1));
+    partitions.add(new StatsPartition(opers.get(1), 50));
+    Assert.assertSame("partitions unchanged", partitions, oper.definePartitions(partitions, context));
+
+    partitions.clear();
+    partitions.add(new StatsPartition(opers.get(0), 1000));
+    partitions.add(new StatsPartition(opers.get(1), 50));
+    List<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> newOpers = Lists.newArrayList();
+    for (Partitioner.Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : oper.definePartitions(partitions, context)) {
+      newOpers.add(p.getPartitionedInstance());
+    }
+    Assert.assertEquals("partitions", 4, newOpers.size());
+    for (AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>> p : opers) {
+      Assert.assertTrue("buckets transferred", p.getBucketKeys().isEmpty());
+    }
+
+    for (AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>> p : newOpers) {
+      Assert.assertEquals("bucket owner " + p.partitions, 1, p.getBucketKeys().size());
+      long bucketKey = p.getBucketKeys().iterator().next();
+      Assert.assertTrue("bucket owner " + p.partitions, p.partitions.contains((int)bucketKey & p.partitionMask));
+
+      // the new owner recovers the uncommitted data from the WAL of the previous owner
+      p.setup(null);
+      p.beginWindow(2);
+      p.input.process(new KeyValPair<byte[], byte[]>(new byte[] {0, 0, 0, 1, 0, 0, 0, (byte)bucketKey}, "update".getBytes()));
+      Assert.assertArrayEquals("recovered " + bucketKey, ("data" + bucketKey).getBytes(), p.getUncommitted(bucketKey, new Slice(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte)bucketKey})));
+      p.endWindow();
+      p.teardown();
+    }
+  }
+
+}
@@ -33,6 +33,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Random;
 
@@ -94,6 +95,114 @@ public class WALTest
     Assert.assertEquals("Write and read same number of tuples ", numTuples, read);
   }
 
+  /**
+   * WAL written asynchronously contains all tuples of the
+   * buckets in order.
+   */
+  @Test
+  public void testAsyncWal() throws IOException
+  {
+    FileUtils.deleteDirectory(file);
+    HDHTFileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(bfs);
+    hds.setAsyncWal(true);
+    hds.setFlushIntervalCount(1000);
+    hds.setup(null);
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    int numTuples = 1000;
+    for (long wid = 1; wid <= 2; wid++) {
+      hds.beginWindow(wid);
+      for (int i = 0; i < numTuples; i++) {
+        hds.put(1, getLongByteArray(wid * numTuples + i), genRandomByteArray(100));
+        hds.put(2, getLongByteArray(wid * numTuples + i), genRandomByteArray(100));
+      }
+      hds.endWindow();
+    }
+    hds.teardown();
+
+    for (long bucketKey = 1; bucketKey <= 2; bucketKey++) {
+      HDFSWalReader wReader = new HDFSWalReader(bfs, bucketKey, HDHTWalManager.WAL_FILE_PREFIX + 0);
+      long expected = numTuples;
+      while (wReader.advance()) {
+        Assert.assertEquals("key order bucket " + bucketKey, expected++, ByteBuffer.wrap(wReader.get().getKey()).getLong());
+      }
+      wReader.close();
+      Assert.assertEquals("tuples in WAL bucket " + bucketKey, 3 * numTuples, expected);
+    }
+  }
+
+  /**
+   * Block format with compression, read back from start, from a
+   * flushed offset and with an incomplete block at the end.
+   */
+  @Test
+  public void testWalBlockFormat() throws IOException
+  {
+    FileUtils.deleteDirectory(file);
+    MockFileAccess bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    bfs.disableChecksum();
+
+    int numTuples = 1000;
+    byte[] value = new byte[100]; // compressible
+    HDFSWalWriter wWriter = new HDFSWalWriter(bfs, 1, "WAL-0", 4096, true);
+    long offset = 0;
+    for (int i = 0; i < numTuples; i++) {
+      if (i % 10 == 0) {
+        wWriter.append(getLongByteArray(i), HDHT.WALReader.DELETED);
+      } else {
+        wWriter.append(getLongByteArray(i), value);
+      }
+      if (i == numTuples / 2 - 1) {
+        wWriter.flush();
+        offset = wWriter.logSize();
+      }
+    }
+    wWriter.close();
+
+    File wal0 = new File(file.getAbsoluteFile().toString() + "/1/WAL-0");
+    Assert.assertTrue("compressed size " + wal0.length(), wal0.length() < numTuples * (8 + 8 + value.length) / 4);
+
+    HDFSWalReader wReader = new HDFSWalReader(bfs, 1, "WAL-0");
+    int read = 0;
+    while (wReader.advance()) {
+      MutableKeyValue keyVal = wReader.get();
+      Assert.assertEquals("key", read, ByteBuffer.wrap(keyVal.getKey()).getLong());
+      if (read % 10 == 0) {
+        Assert.assertSame("deleted", HDHT.WALReader.DELETED, keyVal.getValue());
+      } else {
+        Assert.assertArrayEquals("value", value, keyVal.getValue());
+      }
+      read++;
+    }
+    wReader.close();
+    Assert.assertEquals("tuples read", numTuples, read);
+
+    wReader = new HDFSWalReader(bfs, 1, "WAL-0");
+    wReader.seek(offset);
+    Assert.assertTrue("read after seek", wReader.advance());
+    Assert.assertEquals("key after seek", numTuples / 2, ByteBuffer.wrap(wReader.get().getKey()).getLong());
+    wReader.close();
+
+    // torn write at end of file
+    RandomAccessFile raf = new RandomAccessFile(wal0, "rw");
+    raf.setLength(wal0.length() - 3);
+    raf.close();
+    wReader = new HDFSWalReader(bfs, 1, "WAL-0");
+    read = 0;
+    while (wReader.advance()) {
+      read++;
+    }
+    wReader.close();
+    Assert.assertTrue("tuples of complete blocks " + read, read >= numTuples / 2 && read < numTuples);
+  }
+
   /**
    * Read WAL from middle of the file by seeking to known valid
    * offset and start reading from that point till the end.
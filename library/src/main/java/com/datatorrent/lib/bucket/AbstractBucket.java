@@ -53,6 +53,7 @@ public abstract class AbstractBucket<T>
   private transient Map<Object, T> writtenEvents;
   private transient long lastUpdateTime;
   private transient boolean isDataOnDiskLoaded;
+  private boolean primitiveKeys;
 
   @SuppressWarnings("unused")
   protected AbstractBucket()
@@ -67,6 +68,17 @@ public abstract class AbstractBucket<T>
     this.lastUpdateTime = System.currentTimeMillis();
   }
 
+  /**
+   * @param bucketKey     key of the bucket.
+   * @param primitiveKeys true for keeping {@link Long} and {@link java.util.UUID} event keys in a
+   *                      {@link PrimitiveKeyMap}; false otherwise.
+   */
+  protected AbstractBucket(long bucketKey, boolean primitiveKeys)
+  {
+    this(bucketKey);
+    this.primitiveKeys = primitiveKeys;
+  }
+
   void setWrittenEvents(@Nonnull Map<Object, T> writtenEvents)
   {
     this.writtenEvents = writtenEvents;
@@ -98,7 +110,12 @@ public abstract class AbstractBucket<T>
   void addNewEvent(Object eventKey, T event)
   {
     if (unwrittenEvents == null) {
-      unwrittenEvents = Maps.newHashMap();
+      if (primitiveKeys && PrimitiveKeyMap.supports(eventKey.getClass())) {
+        unwrittenEvents = new PrimitiveKeyMap<T>();
+      }
+      else {
+        unwrittenEvents = Maps.newHashMap();
+      }
     }
     unwrittenEvents.put(eventKey, event);
   }
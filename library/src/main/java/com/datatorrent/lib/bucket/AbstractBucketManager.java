@@ -23,8 +23,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.validation.constraints.Min;
@@ -35,10 +39,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.MinMaxPriorityQueue;
 import com.google.common.collect.Sets;
+import com.datatorrent.common.util.NameableThreadFactory;
 import com.datatorrent.netlet.util.DTThrowable;
 
 /**
@@ -70,6 +74,20 @@ import com.datatorrent.netlet.util.DTThrowable;
  * keep the event key. This reduces memory usage and is useful for operators like De-duplicator which are interested only
  * in the event key.
  * </li>
+ * <li>
+ * {@link #loaderThreads}: number of threads which load buckets concurrently. Requested buckets with more waiting
+ * events, see {@link #updateWaitingEvents(long, int)}, are loaded first.
+ * </li>
+ * <li>
+ * {@link #primitiveEventKeys}: when this is true, buckets created by the manager and fetched from the store keep
+ * {@link Long} and {@link java.util.UUID} event keys in a {@link PrimitiveKeyMap}. Together with
+ * {@link #writeEventKeysOnly} this allows many more buckets in memory.
+ * </li>
+ * <li>
+ * {@link #keyFilterExpectedEvents}: when set, the manager keeps a {@link BucketKeyFilter} of the event keys of every
+ * bucket that was loaded once, also after the bucket is off-loaded. New events whose keys are definitely not in the
+ * bucket are accepted by {@link #newEventIfAbsent(long, Object)} without loading the bucket.
+ * </li>
  * </ol>
  * </p>
  *
@@ -82,6 +100,7 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
   public static int DEF_NUM_BUCKETS_MEM = 120;
   public static long DEF_MILLIS_PREVENTING_EVICTION = 10 * 60000;
   private static final long RESERVED_BUCKET_KEY = -2;
+  private static final int LOCK_STRIPES = 64;
   //Check-pointed
   @Min(1)
   protected int noOfBuckets;
@@ -92,11 +111,19 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
   @Min(0)
   protected long millisPreventingBucketEviction;
   protected boolean writeEventKeysOnly;
+  protected boolean primitiveEventKeys;
+  @Min(1)
+  protected int loaderThreads;
   @NotNull
   protected BucketStore<T> bucketStore;
   @NotNull
   protected final Map<Integer, AbstractBucket<T>> dirtyBuckets;
   protected long committedWindow;
+  @Min(0)
+  protected int keyFilterExpectedEvents;
+  //bucket index -> filter of the event keys in the store and un-written part of the bucket
+  @NotNull
+  protected Map<Integer, BucketKeyFilter> keyFilters;
   //Not check-pointed
   //Indexed by bucketKey keys.
   protected transient AbstractBucket<T>[] buckets;
@@ -110,6 +137,17 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
   private transient final Lock lock;
   @NotNull
   private transient final MinMaxPriorityQueue<AbstractBucket<T>> bucketHeap;
+  private transient ExecutorService loaderPool;
+  private transient Semaphore loaderPermits;
+  //bucket key -> number of events waiting for the requested bucket
+  private transient Map<Long, AtomicInteger> pendingLoads;
+  private transient Set<Long> loadsInFlight;
+  //keys of the buckets requested since the last reserved request, these are not evicted
+  private transient Set<Long> requestedBuckets;
+  //guard the slots of the buckets array, a slot is guarded by the lock at its index modulo the number of locks
+  private transient Object[] bucketLocks;
+  private transient Object evictionLock;
+  private transient volatile Throwable loadFailure;
 
   protected transient boolean recordStats;
   protected transient BasicCounters<MutableLong> bucketCounters;
@@ -117,8 +155,9 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
   public AbstractBucketManager()
   {
     eventQueue = new LinkedBlockingQueue<Long>();
-    evictionCandidates = Sets.newHashSet();
+    evictionCandidates = Sets.newSetFromMap(Maps.<Integer, Boolean>newConcurrentMap());
     dirtyBuckets = Maps.newConcurrentMap();
+    keyFilters = Maps.newConcurrentMap();
     bucketHeap = MinMaxPriorityQueue.orderedBy(new Comparator<AbstractBucket<T>>()
     {
       @Override
@@ -142,6 +181,7 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     maxNoOfBucketsInMemory = DEF_NUM_BUCKETS_MEM + 100;
     millisPreventingBucketEviction = DEF_MILLIS_PREVENTING_EVICTION;
     writeEventKeysOnly = true;
+    loaderThreads = 1;
   }
 
   /**
@@ -199,6 +239,58 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     return writeEventKeysOnly;
   }
 
+  /**
+   * Set true for keeping {@link Long} and {@link java.util.UUID} event keys in primitive arrays instead of hash map
+   * entries, see {@link PrimitiveKeyMap}; false otherwise.
+   *
+   * @param primitiveEventKeys
+   */
+  public void setPrimitiveEventKeys(boolean primitiveEventKeys)
+  {
+    this.primitiveEventKeys = primitiveEventKeys;
+    if (this.bucketStore != null) {
+      this.bucketStore.setPrimitiveEventKeys(primitiveEventKeys);
+    }
+  }
+
+  public boolean isPrimitiveEventKeys()
+  {
+    return primitiveEventKeys;
+  }
+
+  /**
+   * Sets the number of events per bucket for which the key filters are sized. Filters of larger buckets still work but
+   * let more unique events through to a bucket load. 0 (default) disables the filters.
+   *
+   * @param keyFilterExpectedEvents expected number of events in a bucket.
+   */
+  public void setKeyFilterExpectedEvents(int keyFilterExpectedEvents)
+  {
+    this.keyFilterExpectedEvents = keyFilterExpectedEvents;
+  }
+
+  public int getKeyFilterExpectedEvents()
+  {
+    return keyFilterExpectedEvents;
+  }
+
+  /**
+   * Sets the number of threads which load buckets from the store concurrently. With more than one thread, buckets of
+   * different indices are fetched from and deleted in the store concurrently, which the store needs to support, as
+   * {@link HdfsBucketStore} does.
+   *
+   * @param loaderThreads number of loader threads.
+   */
+  public void setLoaderThreads(int loaderThreads)
+  {
+    this.loaderThreads = loaderThreads;
+  }
+
+  public int getLoaderThreads()
+  {
+    return loaderThreads;
+  }
+
   @Override
   public void setBucketCounters(@Nonnull BasicCounters<MutableLong> bucketCounters)
   {
@@ -208,6 +300,7 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     bucketCounters.setCounter(CounterKeys.DELETED_BUCKETS, new MutableLong());
     bucketCounters.setCounter(CounterKeys.EVENTS_COMMITTED_LAST_WINDOW, new MutableLong());
     bucketCounters.setCounter(CounterKeys.EVENTS_IN_MEMORY, new MutableLong());
+    bucketCounters.setCounter(CounterKeys.EVENTS_ADDED_WITHOUT_LOAD, new MutableLong());
     recordStats = true;
   }
 
@@ -215,6 +308,9 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
   public void shutdownService()
   {
     running = false;
+    if (loaderPool != null) {
+      loaderPool.shutdown();
+    }
     bucketStore.teardown();
   }
 
@@ -223,94 +319,38 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
   public void run()
   {
     running = true;
-    List<Long> requestedBuckets = Lists.newArrayList();
+    //bucket keys which are not loading yet, in the order of the requests
+    Set<Long> pendingKeys = Sets.newLinkedHashSet();
     try {
       while (running) {
-        Long request = eventQueue.poll(1, TimeUnit.SECONDS);
+        if (loadFailure != null) {
+          throw loadFailure;
+        }
+        Long request = pendingKeys.isEmpty() ? eventQueue.poll(1, TimeUnit.SECONDS) : eventQueue.poll();
         if (request != null) {
           long requestedKey = request;
           if (RESERVED_BUCKET_KEY == requestedKey) {
+            while (!pendingKeys.isEmpty()) {
+              dispatchLoad(pendingKeys);
+            }
+            //wait for the loads in flight
+            loaderPermits.acquire(loaderThreads);
+            loaderPermits.release(loaderThreads);
+            if (loadFailure != null) {
+              throw loadFailure;
+            }
             synchronized (lock) {
               lock.notify();
             }
             requestedBuckets.clear();
           }
-          else {
-            requestedBuckets.add(requestedKey);
-            int bucketIdx = (int) (requestedKey % noOfBuckets);
-            long numEventsRemoved = 0;
-            if (buckets[bucketIdx] != null && buckets[bucketIdx].bucketKey != requestedKey) {
-              //Delete the old bucket in memory at that index.
-              AbstractBucket<T> oldBucket = buckets[bucketIdx];
-
-              dirtyBuckets.remove(bucketIdx);
-              evictionCandidates.remove(bucketIdx);
-              buckets[bucketIdx] = null;
-
-              listener.bucketOffLoaded(oldBucket.bucketKey);
-              bucketStore.deleteBucket(bucketIdx);
-              if (recordStats) {
-                bucketCounters.getCounter(CounterKeys.DELETED_BUCKETS).increment();
-                bucketCounters.getCounter(CounterKeys.BUCKETS_IN_MEMORY).decrement();
-                numEventsRemoved += oldBucket.countOfUnwrittenEvents() + oldBucket.countOfWrittenEvents();
-              }
-              logger.debug("deleted bucket {} {}", oldBucket.bucketKey, bucketIdx);
-            }
-
-            Map<Object, T> bucketDataInStore = bucketStore.fetchBucket(bucketIdx);
-
-            //Delete the least recently used bucket in memory if the noOfBucketsInMemory threshold is reached.
-            if (evictionCandidates.size() + 1 > noOfBucketsInMemory) {
-
-              for (int anIndex : evictionCandidates) {
-                bucketHeap.add(buckets[anIndex]);
-              }
-              int overFlow = evictionCandidates.size() + 1 - noOfBucketsInMemory;
-              while (overFlow-- >= 0) {
-                AbstractBucket<T> lruBucket = bucketHeap.poll();
-                if (lruBucket == null) {
-                  break;
-                }
-                // Do not evict buckets loaded in the current window
-                if(requestedBuckets.contains(lruBucket.bucketKey)) {
-                  break;
-                }
-                int lruIdx = (int) (lruBucket.bucketKey % noOfBuckets);
-
-                if (dirtyBuckets.containsKey(lruIdx)) {
-                  break;
-                }
-                if (((System.currentTimeMillis() - lruBucket.lastUpdateTime()) < millisPreventingBucketEviction)
-                  && ((evictionCandidates.size() + 1) <= maxNoOfBucketsInMemory)) {
-                  break;
-                }
-                evictionCandidates.remove(lruIdx);
-                buckets[lruIdx] = null;
-                listener.bucketOffLoaded(lruBucket.bucketKey);
-                if (recordStats) {
-                  bucketCounters.getCounter(CounterKeys.EVICTED_BUCKETS).increment();
-                  bucketCounters.getCounter(CounterKeys.BUCKETS_IN_MEMORY).decrement();
-                  numEventsRemoved += lruBucket.countOfUnwrittenEvents() + lruBucket.countOfWrittenEvents();
-                }
-                logger.debug("evicted bucket {} {}", lruBucket.bucketKey, lruIdx);
-              }
-            }
-
-            AbstractBucket<T> bucket = buckets[bucketIdx];
-            if (bucket == null || bucket.bucketKey != requestedKey) {
-              bucket = createBucket(requestedKey);
-              buckets[bucketIdx] = bucket;
-            }
-            bucket.setWrittenEvents(bucketDataInStore);
-            evictionCandidates.add(bucketIdx);
-            listener.bucketLoaded(bucket);
-            if (recordStats) {
-              bucketCounters.getCounter(CounterKeys.BUCKETS_IN_MEMORY).increment();
-              bucketCounters.getCounter(CounterKeys.EVENTS_IN_MEMORY).add(bucketDataInStore.size() - numEventsRemoved);
-            }
-            bucketHeap.clear();
+          else if (!loadsInFlight.contains(requestedKey) && pendingKeys.add(requestedKey)) {
+            pendingLoads.put(requestedKey, new AtomicInteger());
           }
         }
+        else if (!pendingKeys.isEmpty()) {
+          dispatchLoad(pendingKeys);
+        }
       }
     }
     catch (Throwable cause) {
@@ -319,12 +359,185 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     }
   }
 
+  /**
+   * Hands the pending bucket with the most waiting events to the loader pool. Blocks while all the loaders are busy.
+   *
+   * @param pendingKeys keys of the buckets which are not loading yet.
+   */
+  private void dispatchLoad(Set<Long> pendingKeys) throws InterruptedException
+  {
+    loaderPermits.acquire();
+    long bucketKey = -1;
+    int maxWaitingEvents = -1;
+    for (long pendingKey : pendingKeys) {
+      AtomicInteger waitingEvents = pendingLoads.get(pendingKey);
+      int numWaitingEvents = waitingEvents == null ? 0 : waitingEvents.get();
+      if (numWaitingEvents > maxWaitingEvents) {
+        maxWaitingEvents = numWaitingEvents;
+        bucketKey = pendingKey;
+      }
+    }
+    pendingKeys.remove(bucketKey);
+    pendingLoads.remove(bucketKey);
+    loadsInFlight.add(bucketKey);
+    requestedBuckets.add(bucketKey);
+
+    final long requestedKey = bucketKey;
+    loaderPool.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          loadBucket(requestedKey);
+        }
+        catch (Throwable cause) {
+          logger.error("loading bucket {}", requestedKey, cause);
+          loadFailure = cause;
+        }
+        finally {
+          loadsInFlight.remove(requestedKey);
+          loaderPermits.release();
+        }
+      }
+
+    });
+  }
+
+  /**
+   * Loads a bucket from the store. Loads of buckets in different lock stripes run concurrently.
+   *
+   * @param requestedKey key of the bucket.
+   */
+  private void loadBucket(long requestedKey) throws Exception
+  {
+    int bucketIdx = (int) (requestedKey % noOfBuckets);
+    long numEventsRemoved = 0;
+    AbstractBucket<T> bucket;
+    Map<Object, T> bucketDataInStore;
+    synchronized (bucketLocks[bucketIdx % bucketLocks.length]) {
+      if (buckets[bucketIdx] != null && buckets[bucketIdx].bucketKey != requestedKey) {
+        //Delete the old bucket in memory at that index.
+        AbstractBucket<T> oldBucket = buckets[bucketIdx];
+
+        dirtyBuckets.remove(bucketIdx);
+        evictionCandidates.remove(bucketIdx);
+        buckets[bucketIdx] = null;
+
+        listener.bucketOffLoaded(oldBucket.bucketKey);
+        keyFilters.remove(bucketIdx);
+        bucketStore.deleteBucket(bucketIdx);
+        if (recordStats) {
+          bucketCounters.getCounter(CounterKeys.DELETED_BUCKETS).increment();
+          bucketCounters.getCounter(CounterKeys.BUCKETS_IN_MEMORY).decrement();
+          numEventsRemoved += oldBucket.countOfUnwrittenEvents() + oldBucket.countOfWrittenEvents();
+        }
+        logger.debug("deleted bucket {} {}", oldBucket.bucketKey, bucketIdx);
+      }
+
+      bucketDataInStore = bucketStore.fetchBucket(bucketIdx);
+
+      bucket = buckets[bucketIdx];
+      if (bucket == null || bucket.bucketKey != requestedKey) {
+        bucket = createBucket(requestedKey);
+        buckets[bucketIdx] = bucket;
+      }
+      if (keyFilterExpectedEvents > 0) {
+        BucketKeyFilter filter = keyFilters.get(bucketIdx);
+        if (filter == null || filter.getBucketKey() != requestedKey) {
+          //un-written events are not modified by the operator until the bucket is loaded or has a filter
+          filter = new BucketKeyFilter(requestedKey, Math.max(keyFilterExpectedEvents, 2 * bucketDataInStore.size()));
+          for (Object eventKey : bucketDataInStore.keySet()) {
+            filter.add(eventKey);
+          }
+          if (bucket.countOfUnwrittenEvents() > 0) {
+            for (Object eventKey : bucket.getUnwrittenEvents().keySet()) {
+              filter.add(eventKey);
+            }
+          }
+          keyFilters.put(bucketIdx, filter);
+        }
+      }
+      bucket.setWrittenEvents(bucketDataInStore);
+    }
+
+    //Delete the least recently used bucket in memory if the noOfBucketsInMemory threshold is reached.
+    numEventsRemoved += evictBuckets();
+
+    evictionCandidates.add(bucketIdx);
+    listener.bucketLoaded(bucket);
+    if (recordStats) {
+      bucketCounters.getCounter(CounterKeys.BUCKETS_IN_MEMORY).increment();
+      bucketCounters.getCounter(CounterKeys.EVENTS_IN_MEMORY).add(bucketDataInStore.size() - numEventsRemoved);
+    }
+  }
+
+  /**
+   * Off-loads least recently used buckets which were not requested in the current window, when the number of buckets in
+   * memory is going beyond {@link #noOfBucketsInMemory}.
+   *
+   * @return number of events off-loaded.
+   */
+  private long evictBuckets()
+  {
+    long numEventsRemoved = 0;
+    synchronized (evictionLock) {
+      if (evictionCandidates.size() + 1 > noOfBucketsInMemory) {
+
+        for (int anIndex : evictionCandidates) {
+          AbstractBucket<T> candidate = buckets[anIndex];
+          if (candidate != null) {
+            bucketHeap.add(candidate);
+          }
+        }
+        int overFlow = evictionCandidates.size() + 1 - noOfBucketsInMemory;
+        while (overFlow-- >= 0) {
+          AbstractBucket<T> lruBucket = bucketHeap.poll();
+          if (lruBucket == null) {
+            break;
+          }
+          // Do not evict buckets loaded in the current window
+          if (requestedBuckets.contains(lruBucket.bucketKey)) {
+            break;
+          }
+          int lruIdx = (int) (lruBucket.bucketKey % noOfBuckets);
+
+          if (dirtyBuckets.containsKey(lruIdx)) {
+            break;
+          }
+          if (((System.currentTimeMillis() - lruBucket.lastUpdateTime()) < millisPreventingBucketEviction)
+            && ((evictionCandidates.size() + 1) <= maxNoOfBucketsInMemory)) {
+            break;
+          }
+          synchronized (bucketLocks[lruIdx % bucketLocks.length]) {
+            if (buckets[lruIdx] != lruBucket) {
+              //replaced by a concurrent load
+              continue;
+            }
+            evictionCandidates.remove(lruIdx);
+            buckets[lruIdx] = null;
+          }
+          listener.bucketOffLoaded(lruBucket.bucketKey);
+          if (recordStats) {
+            bucketCounters.getCounter(CounterKeys.EVICTED_BUCKETS).increment();
+            bucketCounters.getCounter(CounterKeys.BUCKETS_IN_MEMORY).decrement();
+            numEventsRemoved += lruBucket.countOfUnwrittenEvents() + lruBucket.countOfWrittenEvents();
+          }
+          logger.debug("evicted bucket {} {}", lruBucket.bucketKey, lruIdx);
+        }
+        bucketHeap.clear();
+      }
+    }
+    return numEventsRemoved;
+  }
+
   @Override
   public void setBucketStore(@Nonnull BucketStore<T> bucketStore)
   {
     this.bucketStore = bucketStore;
     bucketStore.setNoOfBuckets(noOfBuckets);
     bucketStore.setWriteEventKeysOnly(writeEventKeysOnly);
+    bucketStore.setPrimitiveEventKeys(primitiveEventKeys);
   }
 
   @Override
@@ -346,6 +559,17 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     for (Map.Entry<Integer, AbstractBucket<T>> bucketEntry : dirtyBuckets.entrySet()) {
       buckets[bucketEntry.getKey()] = bucketEntry.getValue();
     }
+    loaderPool = Executors.newFixedThreadPool(loaderThreads, new NameableThreadFactory("BucketLoader"));
+    loaderPermits = new Semaphore(loaderThreads);
+    pendingLoads = Maps.newConcurrentMap();
+    loadsInFlight = Sets.newSetFromMap(Maps.<Long, Boolean>newConcurrentMap());
+    requestedBuckets = Sets.newSetFromMap(Maps.<Long, Boolean>newConcurrentMap());
+    bucketLocks = new Object[Math.min(noOfBuckets, LOCK_STRIPES)];
+    for (int i = 0; i < bucketLocks.length; i++) {
+      bucketLocks[i] = new Object();
+    }
+    evictionLock = new Object();
+    loadFailure = null;
     Thread eventServiceThread = new Thread(this, "BucketLoaderService");
     eventServiceThread.start();
   }
@@ -381,16 +605,64 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
       dirtyBuckets.put(bucketIdx, bucket);
     }
 
-    bucket.addNewEvent(bucket.getEventKey(event), writeEventKeysOnly ? null : event);
+    Object eventKey = bucket.getEventKey(event);
+    bucket.addNewEvent(eventKey, writeEventKeysOnly ? null : event);
+    addToKeyFilter(bucketIdx, bucketKey, eventKey);
     if (recordStats) {
       bucketCounters.getCounter(CounterKeys.EVENTS_IN_MEMORY).increment();
     }
   }
 
+  @Override
+  public boolean newEventIfAbsent(long bucketKey, T event)
+  {
+    int bucketIdx = (int) (bucketKey % noOfBuckets);
+    BucketKeyFilter filter = keyFilters.get(bucketIdx);
+    if (filter == null || filter.getBucketKey() != bucketKey) {
+      return false;
+    }
+
+    AbstractBucket<T> bucket = buckets[bucketIdx];
+    boolean newBucket = bucket == null || bucket.bucketKey != bucketKey;
+    if (newBucket) {
+      //the bucket is needed for the event key and is kept only for an absent event
+      bucket = createBucket(bucketKey);
+    }
+    if (filter.mightContain(bucket.getEventKey(event))) {
+      return false;
+    }
+    if (newBucket) {
+      buckets[bucketIdx] = bucket;
+      dirtyBuckets.put(bucketIdx, bucket);
+    }
+    newEvent(bucketKey, event);
+    if (recordStats) {
+      bucketCounters.getCounter(CounterKeys.EVENTS_ADDED_WITHOUT_LOAD).increment();
+    }
+    return true;
+  }
+
+  /**
+   * Adds the event key to the key filter of the bucket, if the bucket has one.
+   *
+   * @param bucketIdx index of the bucket.
+   * @param bucketKey key of the bucket.
+   * @param eventKey  key of the new event.
+   */
+  protected void addToKeyFilter(int bucketIdx, long bucketKey, Object eventKey)
+  {
+    BucketKeyFilter filter = keyFilters.get(bucketIdx);
+    if (filter != null && filter.getBucketKey() == bucketKey) {
+      filter.add(eventKey);
+    }
+  }
+
   @Override
   public void addEventToBucket(AbstractBucket<T> bucket, T event)
   {
-    bucket.addNewEvent(bucket.getEventKey(event), writeEventKeysOnly ? null : event);
+    Object eventKey = bucket.getEventKey(event);
+    bucket.addNewEvent(eventKey, writeEventKeysOnly ? null : event);
+    addToKeyFilter((int) (bucket.bucketKey % noOfBuckets), bucket.bucketKey, eventKey);
   }
 
   @Override
@@ -437,6 +709,16 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     }
   }
 
+  @Override
+  public void updateWaitingEvents(long bucketKey, int waitingEvents)
+  {
+    Map<Long, AtomicInteger> loads = pendingLoads;
+    AtomicInteger pendingLoad = loads == null ? null : loads.get(bucketKey);
+    if (pendingLoad != null) {
+      pendingLoad.set(waitingEvents);
+    }
+  }
+
   @Override
   public void loadBucketData(long bucketKey)
   {
@@ -541,6 +823,8 @@ public abstract class AbstractBucketManager<T> implements BucketManager<T>, Runn
     @SuppressWarnings("unchecked")
     AbstractBucketManager<T> clone = (AbstractBucketManager<T>)super.clone();
     clone.setBucketStore(clone.getBucketStore().clone());
+    //filters are rebuilt on the next load of each bucket
+    clone.keyFilters = Maps.newConcurrentMap();
     return clone;
   }
 
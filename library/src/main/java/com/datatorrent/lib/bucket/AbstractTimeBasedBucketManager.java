@@ -18,6 +18,8 @@ package com.datatorrent.lib.bucket;
 import com.datatorrent.api.DefaultOutputPort;
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -29,12 +31,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
 
 import com.datatorrent.lib.counters.BasicCounters;
 
 /**
  * This is the base implementation of TimeBasedBucketManager which contains all the events which belong to the same bucket.
  * Subclasses must implement the getEventKey method which gets the keys on which deduplication is done.
+ * <p>
+ * When {@link #prefetchBuckets} is set, the manager requests the buckets following the latest event time before events
+ * of those buckets arrive. The manager has prefetchBuckets slots in addition to the buckets of {@link #daysSpan}, so that
+ * the prefetched buckets don't take the slots of buckets which are still in the span.
+ * </p>
  *
  * @param <T>
  *
@@ -52,10 +60,17 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
   protected long startOfBucketsInMillis;
   private long expiryTime;
   private Long[] maxTimesPerBuckets;
+  @Min(0)
+  private int prefetchBuckets;
 
   private transient long endOBucketsInMillis;
   private transient Timer bucketSlidingTimer;
   private final transient Lock lock;
+  //highest bucket key of the events seen so far
+  private transient long frontierBucketKey;
+  //highest bucket key requested by the prefetcher
+  private transient long prefetchedBucketKey;
+  private transient Set<Long> prefetchedKeys;
 
   public AbstractTimeBasedBucketManager()
   {
@@ -122,6 +137,29 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
     return bucketSpanInMillis;
   }
 
+  /**
+   * Sets the number of buckets after the bucket of the latest event that are loaded ahead of demand. 0 (default)
+   * disables prefetching.<br/>
+   * The total number of buckets grows by prefetchBuckets to hold the prefetched buckets.
+   *
+   * @param prefetchBuckets number of buckets to prefetch.
+   */
+  public void setPrefetchBuckets(int prefetchBuckets)
+  {
+    this.prefetchBuckets = prefetchBuckets;
+    recomputeNumBuckets();
+  }
+
+  /**
+   * Gets the number of buckets after the bucket of the latest event that are loaded ahead of demand.
+   *
+   * @return prefetchBuckets
+   */
+  public int getPrefetchBuckets()
+  {
+    return prefetchBuckets;
+  }
+
   @Deprecated
   @Override
   public AbstractTimeBasedBucketManager<T> cloneWithProperties()
@@ -144,7 +182,8 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
     calendar.add(Calendar.DATE, -daysSpan);
     startOfBucketsInMillis = calendar.getTimeInMillis();
     expiryTime = startOfBucketsInMillis;
-    noOfBuckets = (int) Math.ceil((now - startOfBucketsInMillis) / (bucketSpanInMillis * 1.0));
+    //slots for the prefetched buckets in addition to the buckets of the span
+    noOfBuckets = (int) Math.ceil((now - startOfBucketsInMillis) / (bucketSpanInMillis * 1.0)) + prefetchBuckets;
     if (bucketStore != null) {
       bucketStore.setNoOfBuckets(noOfBuckets);
       bucketStore.setWriteEventKeysOnly(writeEventKeysOnly);
@@ -159,12 +198,17 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
     bucketCounters.setCounter(CounterKeys.LOW, new MutableLong());
     bucketCounters.setCounter(CounterKeys.HIGH, new MutableLong());
     bucketCounters.setCounter(CounterKeys.IGNORED_EVENTS, new MutableLong());
+    bucketCounters.setCounter(CounterKeys.PREFETCHED_BUCKETS, new MutableLong());
+    bucketCounters.setCounter(CounterKeys.PREFETCH_HITS, new MutableLong());
   }
 
   @Override
   public void startService(Listener<T> listener)
   {
     bucketSlidingTimer = new Timer();
+    frontierBucketKey = -1;
+    prefetchedBucketKey = -1;
+    prefetchedKeys = Sets.newHashSet();
     endOBucketsInMillis = expiryTime + (noOfBuckets * bucketSpanInMillis);
     logger.debug("bucket properties {}, {}", daysSpan, bucketSpanInMillis);
     logger.debug("bucket time params: start {}, expiry {}, end {}", startOfBucketsInMillis, expiryTime, endOBucketsInMillis);
@@ -219,9 +263,63 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
         }
       }
     }
+    if (prefetchBuckets > 0 && prefetchedKeys != null) {
+      prefetch(key);
+    }
     return key;
   }
 
+  /**
+   * Records prefetch hits and requests the buckets following the bucket of the event, when the event moves the
+   * frontier of event time.
+   *
+   * @param bucketKey key of the bucket of an event.
+   */
+  private void prefetch(long bucketKey)
+  {
+    if (prefetchedKeys.remove(bucketKey)) {
+      AbstractBucket<T> bucket = buckets[(int) (bucketKey % noOfBuckets)];
+      if (recordStats && bucket != null && bucket.bucketKey == bucketKey && bucket.isDataOnDiskLoaded()) {
+        bucketCounters.getCounter(CounterKeys.PREFETCH_HITS).increment();
+      }
+    }
+    if (bucketKey <= frontierBucketKey) {
+      return;
+    }
+    frontierBucketKey = bucketKey;
+    //prefetched buckets behind the frontier which did not get events are not counted any more
+    Iterator<Long> iterator = prefetchedKeys.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() < bucketKey) {
+        iterator.remove();
+      }
+    }
+
+    long lastKey = bucketKey + Math.min(prefetchBuckets, noOfBuckets - 1);
+    synchronized (lock) {
+      //prefetching beyond the end moves the buckets forward like an event of that time, the span behind the frontier
+      //is kept as there are slots for the prefetched buckets
+      long endKey = (endOBucketsInMillis - startOfBucketsInMillis) / bucketSpanInMillis;
+      if (lastKey >= endKey) {
+        long move = (lastKey - endKey + 1) * bucketSpanInMillis;
+        expiryTime += move;
+        endOBucketsInMillis += move;
+        if (recordStats) {
+          bucketCounters.getCounter(CounterKeys.HIGH).setValue(endOBucketsInMillis);
+          bucketCounters.getCounter(CounterKeys.LOW).setValue(expiryTime);
+        }
+      }
+    }
+    for (long key = Math.max(bucketKey, prefetchedBucketKey) + 1; key <= lastKey; key++) {
+      loadBucketData(key);
+      prefetchedKeys.add(key);
+      if (recordStats) {
+        bucketCounters.getCounter(CounterKeys.PREFETCHED_BUCKETS).increment();
+      }
+    }
+    prefetchedBucketKey = Math.max(prefetchedBucketKey, lastKey);
+  }
+
   @Override
   public void shutdownService()
   {
@@ -288,7 +386,9 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
       dirtyBuckets.put(bucketIdx, bucket);
     }
 
-    bucket.addNewEvent(bucket.getEventKey(event), writeEventKeysOnly ? null : event);
+    Object eventKey = bucket.getEventKey(event);
+    bucket.addNewEvent(eventKey, writeEventKeysOnly ? null : event);
+    addToKeyFilter(bucketIdx, bucketKey, eventKey);
     bucketCounters.getCounter(BucketManager.CounterKeys.EVENTS_IN_MEMORY).increment();
 
     Long max = maxTimesPerBuckets[bucketIdx];
@@ -319,7 +419,7 @@ public abstract class AbstractTimeBasedBucketManager<T> extends AbstractBucketMa
 
   public static enum CounterKeys
   {
-    LOW, HIGH, IGNORED_EVENTS
+    LOW, HIGH, IGNORED_EVENTS, PREFETCHED_BUCKETS, PREFETCH_HITS
   }
 
   private static transient final Logger logger = LoggerFactory.getLogger(AbstractTimeBasedBucketManager.class);
@@ -26,6 +26,11 @@ public class Bucket<T extends Bucketable> extends AbstractBucket<T>
     super(bucketKey);
   }
 
+  protected Bucket(long bucketKey, boolean primitiveKeys)
+  {
+    super(bucketKey, primitiveKeys);
+  }
+
   @Override
   protected Object getEventKey(T event)
   {
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.lib.bucket;
+
+/**
+ * Bloom filter over the event keys of a bucket. It answers whether an event key was definitely never added to the
+ * bucket, which allows a new event to be accepted without loading the bucket from the {@link BucketStore}.<br/>
+ * Keys are hashed through {@link Object#hashCode()}, hence keys with equal hash codes are never told apart.
+ *
+ * @since 2.2.0
+ */
+public class BucketKeyFilter
+{
+  private long bucketKey;
+  private long[] bits;
+  private int numHashes;
+
+  @SuppressWarnings("unused")
+  private BucketKeyFilter()
+  {
+    //for kryo
+  }
+
+  /**
+   * @param bucketKey    key of the bucket the filter belongs to.
+   * @param expectedKeys number of keys for which the false positive rate stays at about 1%.
+   */
+  public BucketKeyFilter(long bucketKey, int expectedKeys)
+  {
+    this.bucketKey = bucketKey;
+    this.bits = new long[Math.max(1, (int)(((long)expectedKeys * BITS_PER_KEY + 63) / 64))];
+    this.numHashes = NUM_HASHES;
+  }
+
+  public long getBucketKey()
+  {
+    return bucketKey;
+  }
+
+  public void add(Object eventKey)
+  {
+    long hash = hash(eventKey);
+    int h1 = (int)(hash >>> 32);
+    int h2 = (int)hash;
+    for (int i = 0; i < numHashes; i++) {
+      int bit = position(h1 + i * h2);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @param eventKey event key
+   * @return false if the key was definitely not added; true if it may have been added.
+   */
+  public boolean mightContain(Object eventKey)
+  {
+    long hash = hash(eventKey);
+    int h1 = (int)(hash >>> 32);
+    int h2 = (int)hash;
+    for (int i = 0; i < numHashes; i++) {
+      int bit = position(h1 + i * h2);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int position(int combinedHash)
+  {
+    if (combinedHash < 0) {
+      combinedHash = ~combinedHash;
+    }
+    return (int)(combinedHash % (bits.length * 64L));
+  }
+
+  /**
+   * Spreads the 32 bit hash code of the key over 64 bits (murmur3 finalizer).
+   */
+  private static long hash(Object eventKey)
+  {
+    long h = eventKey.hashCode();
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static final int BITS_PER_KEY = 10;
+  private static final int NUM_HASHES = 7;
+}
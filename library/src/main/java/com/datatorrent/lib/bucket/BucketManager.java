@@ -113,6 +113,15 @@ public interface BucketManager<T> extends Cloneable
    */
   void loadBucketData(long bucketKey);
 
+  /**
+   * Updates the number of events which wait for a requested bucket. Requested buckets with more waiting events are
+   * loaded first. This is a hint and has no effect on buckets which are already loading.
+   *
+   * @param bucketKey     key of the requested bucket.
+   * @param waitingEvents number of events waiting for the bucket.
+   */
+  void updateWaitingEvents(long bucketKey, int waitingEvents);
+
   /**
    * Adds the event to the un-written section of the bucket corresponding to the bucket key.
    *
@@ -121,6 +130,16 @@ public interface BucketManager<T> extends Cloneable
    */
   void newEvent(long bucketKey, T event);
 
+  /**
+   * Adds the event to the un-written section of the bucket when the event key is definitely not present in the bucket,
+   * without the bucket being loaded from the store.
+   *
+   * @param bucketKey key of the bucket.
+   * @param event     new event.
+   * @return true if the event was added; false if the event may already be present and the bucket needs to be loaded.
+   */
+  boolean newEventIfAbsent(long bucketKey, T event);
+
   /**
    * Adds the event to the un-written section of the bucket to the given bucket.
    *
@@ -199,6 +218,6 @@ public interface BucketManager<T> extends Cloneable
   {
 
     BUCKETS_IN_MEMORY, EVICTED_BUCKETS, DELETED_BUCKETS, EVENTS_COMMITTED_LAST_WINDOW,
-    EVENTS_IN_MEMORY
+    EVENTS_IN_MEMORY, EVENTS_ADDED_WITHOUT_LOAD
   }
 }
\ No newline at end of file
@@ -28,7 +28,7 @@ public class BucketManagerImpl<T extends Bucketable> extends AbstractBucketManag
   @Override
   protected Bucket<T> createBucket(long bucketKey)
   {
-    return new Bucket<T>(bucketKey);
+    return new Bucket<T>(bucketKey, primitiveEventKeys);
   }
 
   @Override
@@ -78,6 +78,14 @@ public interface BucketStore<T> extends Cloneable
    * @param writeEventKeysOnly
    */
   void setWriteEventKeysOnly(boolean writeEventKeysOnly);
+
+  /**
+   * Set true for keeping {@link Long} and {@link java.util.UUID} event keys of fetched buckets in a
+   * {@link PrimitiveKeyMap}; false otherwise.
+   *
+   * @param primitiveEventKeys
+   */
+  void setPrimitiveEventKeys(boolean primitiveEventKeys);
   BucketStore<T> clone() throws CloneNotSupportedException;
 
   public interface ExpirableBucketStore<T> extends BucketStore<T>
@@ -34,9 +34,8 @@ import org.slf4j.LoggerFactory;
 public class ExpirableHdfsBucketStore<T> extends HdfsBucketStore<T> implements BucketStore.ExpirableBucketStore<T>
 {
 
-  @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
   @Override
-  public void deleteExpiredBuckets(long time) throws IOException
+  public synchronized void deleteExpiredBuckets(long time) throws IOException
   {
     Iterator<Long> iterator = windowToBuckets.keySet().iterator();
     for (; iterator.hasNext(); ) {
@@ -44,32 +43,46 @@ public class ExpirableHdfsBucketStore<T> extends HdfsBucketStore<T> implements B
       long timestamp= windowToTimestamp.get(window);
       if (timestamp < time) {
         Collection<Integer> indices = windowToBuckets.get(window);
-        synchronized (indices) {
-          if (indices.size() > 0) {
-            Path dataFilePath = new Path(bucketRoot + PATH_SEPARATOR + window);
-            FileSystem fs = FileSystem.newInstance(dataFilePath.toUri(), configuration);
-            try {
-              if (fs.exists(dataFilePath)) {
-                logger.debug("start delete {}", window);
-                fs.delete(dataFilePath, true);
-                logger.debug("end delete {}", window);
-              }
-              for (int bucketIdx : indices) {
-                Map<Long, Long> offsetMap = bucketPositions[bucketIdx];
-                if (offsetMap != null) {
-                  synchronized (offsetMap) {
-                    offsetMap.remove(window);
-                  }
+        if (indices.size() > 0) {
+          Path dataFilePath = new Path(bucketRoot + PATH_SEPARATOR + window);
+          FileSystem fs = FileSystem.newInstance(dataFilePath.toUri(), configuration);
+          try {
+            if (fs.exists(dataFilePath)) {
+              logger.debug("start delete {}", window);
+              fs.delete(dataFilePath, true);
+              logger.debug("end delete {}", window);
+            }
+            for (int bucketIdx : indices) {
+              Map<Long, Long> offsetMap = bucketPositions[bucketIdx];
+              if (offsetMap != null) {
+                synchronized (offsetMap) {
+                  offsetMap.remove(window);
                 }
               }
             }
-            finally {
-              fs.close();
-            }
           }
-          windowToTimestamp.remove(window);
-          iterator.remove();
+          finally {
+            fs.close();
+          }
+        }
+        windowToTimestamp.remove(window);
+        iterator.remove();
+      }
+    }
+
+    Iterator<Map.Entry<Integer, CompactedSegment>> segmentIterator = compactedSegments.entrySet().iterator();
+    while (segmentIterator.hasNext()) {
+      Map.Entry<Integer, CompactedSegment> entry = segmentIterator.next();
+      CompactedSegment segment = entry.getValue();
+      if (segment.timestamp < time) {
+        deleteCompactedSegment(entry.getKey(), segment);
+        Map<Long, Long> offsetMap = bucketPositions[entry.getKey()];
+        if (offsetMap != null) {
+          synchronized (offsetMap) {
+            offsetMap.remove(segment.window);
+          }
         }
+        segmentIterator.remove();
       }
     }
   }
@@ -42,7 +42,14 @@ import com.datatorrent.common.util.NameableThreadFactory;
 
 /**
  * {@link BucketStore} which works with HDFS.<br/>
- * The path of buckets in hdfs is <code>{application-path}/buckets/{operatorId}/{windowId}</code>.
+ * The path of buckets in hdfs is <code>{application-path}/buckets/{operatorId}/{windowId}</code>.<br/>
+ * When {@link #setMinSegmentsToCompact(int)} is set, the segments of a bucket that is fetched from more windows are
+ * consolidated into a single segment in <code>{application-path}/buckets/{operatorId}/compacted/</code>. The files that
+ * are no longer referenced after a compaction are deleted once the window of the compaction is committed, so that
+ * recovery from an earlier checkpoint still finds them. The checkpoint notifications need to be passed to
+ * {@link #checkpointed(long)} and {@link #committed(long)}, see {@link com.datatorrent.lib.dedup.DeduperWithHdfsStore}.
+ * <br/>
+ * Buckets of different indices can be fetched and deleted concurrently, as the loader threads of a bucket manager do.
  *
  * @param <T> type of bucket event
  * @since 0.9.4
@@ -57,9 +64,11 @@ public class HdfsBucketStore<T> implements BucketStore<T>
   public static transient int DEF_KEEP_ALIVE_SECONDS = 120;
 
   static transient final String PATH_SEPARATOR = "/";
+  static transient final String COMPACTED_DIR = "compacted";
 
   //Check-pointed
   private boolean writeEventKeysOnly;
+  private boolean primitiveEventKeys;
   @Min(1)
   protected int noOfBuckets;
   protected Map<Long, Long>[] bucketPositions;
@@ -73,8 +82,16 @@ public class HdfsBucketStore<T> implements BucketStore<T>
   protected int interpolatedPoolSize;
   @NotNull
   private String bucketsDir;
+  @Min(0)
+  private int minSegmentsToCompact;
+  protected Map<Integer, CompactedSegment> compactedSegments;
+  //files relative to the bucket root that were released by compactions after the last checkpoint
+  protected List<String> releasedFiles;
+  //files that are deleted when the window is committed
+  protected TreeMap<Long, List<String>> checkpointedReleases;
 
   //Non check-pointed
+  //guarded by the store, like windowToTimestamp, as buckets are stored, fetched and deleted by different threads
   protected transient Multimap<Long, Integer> windowToBuckets;
   protected transient String bucketRoot;
   protected transient Configuration configuration;
@@ -93,6 +110,9 @@ public class HdfsBucketStore<T> implements BucketStore<T>
     interpolatedPoolSize = -1;
     keepAliveSeconds = DEF_KEEP_ALIVE_SECONDS;
     bucketsDir = "buckets";
+    compactedSegments = Maps.newConcurrentMap();
+    releasedFiles = Lists.newArrayList();
+    checkpointedReleases = Maps.newTreeMap();
   }
 
   @SuppressWarnings("unchecked")
@@ -109,6 +129,12 @@ public class HdfsBucketStore<T> implements BucketStore<T>
     this.writeEventKeysOnly = writeEventKeysOnly;
   }
 
+  @Override
+  public void setPrimitiveEventKeys(boolean primitiveEventKeys)
+  {
+    this.primitiveEventKeys = primitiveEventKeys;
+  }
+
   public void setCorePoolSize(int corePoolSize)
   {
     this.corePoolSize = corePoolSize;
@@ -134,6 +160,23 @@ public class HdfsBucketStore<T> implements BucketStore<T>
     this.bucketsDir = bucketsDir;
   }
 
+  /**
+   * Sets the number of window segments from which a bucket needs to be fetched for it to be compacted. The fetched
+   * data is written as a single segment that replaces the window segments, later fetches read one file for all those
+   * windows. 0 (default) disables compaction.
+   *
+   * @param minSegmentsToCompact minimum number of segments, at least 2 when set.
+   */
+  public void setMinSegmentsToCompact(int minSegmentsToCompact)
+  {
+    this.minSegmentsToCompact = minSegmentsToCompact;
+  }
+
+  public int getMinSegmentsToCompact()
+  {
+    return minSegmentsToCompact;
+  }
+
   public void setConfiguration(int operatorId, String applicationPath, Set<Integer> partitionKeys, int partitionMask)
   {
     Preconditions.checkNotNull(applicationPath);
@@ -162,7 +205,9 @@ public class HdfsBucketStore<T> implements BucketStore<T>
     for (int i = 0; i < bucketPositions.length; i++) {
       if (bucketPositions[i] != null) {
         for (Long window : bucketPositions[i].keySet()) {
-          windowToBuckets.put(window, i);
+          if (!isCompactedSegment(i, window)) {
+            windowToBuckets.put(window, i);
+          }
         }
       }
     }
@@ -194,7 +239,7 @@ public class HdfsBucketStore<T> implements BucketStore<T>
    * @throws java.io.IOException
    */
   @Override
-  public void storeBucketData(long window, long timestamp, Map<Integer, Map<Object, T>> data) throws IOException
+  public synchronized void storeBucketData(long window, long timestamp, Map<Integer, Map<Object, T>> data) throws IOException
   {
     Path dataFilePath = new Path(bucketRoot + PATH_SEPARATOR + window);
     FileSystem fs = FileSystem.newInstance(dataFilePath.toUri(), configuration);
@@ -215,23 +260,7 @@ public class HdfsBucketStore<T> implements BucketStore<T>
             eventClass = lEventClass;
           }
         }
-        //Write the size of data and then data
-        dataStream.writeInt(bucketData.size());
-        for (Map.Entry<Object, T> entry : bucketData.entrySet()) {
-          writeSerde.writeObject(output, entry.getKey());
-
-          if (!writeEventKeysOnly) {
-            int posLength = output.position();
-            output.writeInt(0); //temporary place holder
-            writeSerde.writeObject(output, entry.getValue());
-            int posValue = output.position();
-            int valueLength = posValue - posLength - 4;
-            output.setPosition(posLength);
-            output.writeInt(valueLength);
-            output.setPosition(posValue);
-          }
-        }
-        output.flush();
+        writeBucketData(dataStream, output, writeSerde, bucketData);
         if (bucketPositions[bucketIdx] == null) {
           bucketPositions[bucketIdx] = Maps.newHashMap();
         }
@@ -250,76 +279,243 @@ public class HdfsBucketStore<T> implements BucketStore<T>
     }
   }
 
+  private void writeBucketData(FSDataOutputStream dataStream, Output output, Kryo serde, Map<Object, T> bucketData) throws IOException
+  {
+    //Write the size of data and then data
+    dataStream.writeInt(bucketData.size());
+    for (Map.Entry<Object, T> entry : bucketData.entrySet()) {
+      serde.writeObject(output, entry.getKey());
+
+      if (!writeEventKeysOnly) {
+        int posLength = output.position();
+        output.writeInt(0); //temporary place holder
+        serde.writeObject(output, entry.getValue());
+        int posValue = output.position();
+        int valueLength = posValue - posLength - 4;
+        output.setPosition(posLength);
+        output.writeInt(valueLength);
+        output.setPosition(posValue);
+      }
+    }
+    output.flush();
+  }
+
   /**
    * {@inheritDoc}
    * @throws java.io.IOException
    */
-  @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
   @Override
-  public void deleteBucket(int bucketIdx) throws IOException
+  public synchronized void deleteBucket(int bucketIdx) throws IOException
   {
     Map<Long, Long> offsetMap = bucketPositions[bucketIdx];
+    CompactedSegment segment = compactedSegments.remove(bucketIdx);
     if (offsetMap != null) {
       for (Long window : offsetMap.keySet()) {
-        Collection<Integer> indices = windowToBuckets.get(window);
-        synchronized (indices) {
-          boolean elementRemoved = indices.remove(bucketIdx);
-          if (indices.isEmpty() && elementRemoved) {
-            Path dataFilePath = new Path(bucketRoot + PATH_SEPARATOR + window);
-            FileSystem fs = FileSystem.newInstance(dataFilePath.toUri(), configuration);
-            try {
-              if (fs.exists(dataFilePath)) {
-                logger.debug("start delete {}", window);
-                fs.delete(dataFilePath, true);
-                logger.debug("end delete {}", window);
-              }
-              windowToBuckets.removeAll(window);
-              windowToTimestamp.remove(window);
-            }
-            finally {
-              fs.close();
-            }
-          }
+        if (segment != null && segment.window == window) {
+          deleteCompactedSegment(bucketIdx, segment);
+        }
+        else if (releaseWindow(bucketIdx, window)) {
+          deleteFile(Long.toString(window));
         }
       }
     }
     bucketPositions[bucketIdx] = null;
   }
 
+  /**
+   * Removes the reference of the bucket to the window file. The caller needs to hold the lock of the store.
+   *
+   * @return true when no other bucket refers to the window file.
+   */
+  private boolean releaseWindow(int bucketIdx, long window)
+  {
+    Collection<Integer> indices = windowToBuckets.get(window);
+    if (indices.remove(bucketIdx) && indices.isEmpty()) {
+      windowToBuckets.removeAll(window);
+      windowToTimestamp.remove(window);
+      return true;
+    }
+    return false;
+  }
+
+  protected void deleteCompactedSegment(int bucketIdx, CompactedSegment segment) throws IOException
+  {
+    deleteFile(getCompactedSegmentName(bucketIdx, segment.window));
+  }
+
+  /**
+   * Deletes the file with the given name relative to the bucket root.
+   */
+  private void deleteFile(String fileName) throws IOException
+  {
+    Path dataFilePath = new Path(bucketRoot + PATH_SEPARATOR + fileName);
+    FileSystem fs = FileSystem.newInstance(dataFilePath.toUri(), configuration);
+    try {
+      if (fs.exists(dataFilePath)) {
+        logger.debug("start delete {}", fileName);
+        fs.delete(dataFilePath, true);
+        logger.debug("end delete {}", fileName);
+      }
+    }
+    finally {
+      fs.close();
+    }
+  }
+
+  public synchronized void checkpointed(long windowId)
+  {
+    if (!releasedFiles.isEmpty()) {
+      checkpointedReleases.put(windowId, releasedFiles);
+      releasedFiles = Lists.newArrayList();
+    }
+  }
+
+  public synchronized void committed(long windowId) throws IOException
+  {
+    Map<Long, List<String>> committedReleases = checkpointedReleases.headMap(windowId, true);
+    for (List<String> fileNames : committedReleases.values()) {
+      for (String fileName : fileNames) {
+        deleteFile(fileName);
+      }
+    }
+    committedReleases.clear();
+  }
+
+  private boolean isCompactedSegment(int bucketIdx, long window)
+  {
+    CompactedSegment segment = compactedSegments.get(bucketIdx);
+    return segment != null && segment.window == window;
+  }
+
+  protected Path getCompactedSegmentPath(int bucketIdx, long window)
+  {
+    return new Path(bucketRoot + PATH_SEPARATOR + getCompactedSegmentName(bucketIdx, window));
+  }
+
+  private static String getCompactedSegmentName(int bucketIdx, long window)
+  {
+    return COMPACTED_DIR + PATH_SEPARATOR + bucketIdx + "-" + window;
+  }
+
+  private Path getDataFilePath(int bucketIdx, long window)
+  {
+    if (isCompactedSegment(bucketIdx, window)) {
+      return getCompactedSegmentPath(bucketIdx, window);
+    }
+    return new Path(bucketRoot + PATH_SEPARATOR + window);
+  }
+
+  /**
+   * Writes the fetched data of the bucket as single segment that replaces the segments of the given windows. The
+   * previous segment and the window files that no other bucket refers to are released, they are deleted when the
+   * current window is committed.
+   *
+   * @param bucketIdx  index of the bucket.
+   * @param windows    windows from which the data was fetched.
+   * @param bucketData the merged bucket data.
+   * @throws IOException
+   */
+  @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+  protected void compactBucket(int bucketIdx, Collection<Long> windows, Map<Object, T> bucketData) throws IOException
+  {
+    long startTime = System.currentTimeMillis();
+    CompactedSegment previous = compactedSegments.get(bucketIdx);
+    CompactedSegment segment = new CompactedSegment();
+    segment.window = Collections.max(windows);
+    synchronized (this) {
+      for (long window : windows) {
+        Long timestamp = (previous != null && previous.window == window) ? previous.timestamp : windowToTimestamp.get(window);
+        if (timestamp != null) {
+          segment.timestamp = Math.max(segment.timestamp, timestamp);
+        }
+      }
+    }
+
+    Path segmentPath = getCompactedSegmentPath(bucketIdx, segment.window);
+    FileSystem fs = FileSystem.newInstance(segmentPath.toUri(), configuration);
+    try {
+      FSDataOutputStream dataStream = fs.create(segmentPath);
+      Output output = new Output(dataStream);
+      try {
+        Kryo serde = new Kryo();
+        serde.setClassLoader(classLoader);
+        writeBucketData(dataStream, output, serde, bucketData);
+      }
+      finally {
+        output.close();
+        dataStream.close();
+      }
+    }
+    finally {
+      fs.close();
+    }
+
+    synchronized (this) {
+      Map<Long, Long> offsetMap = bucketPositions[bucketIdx];
+      synchronized (offsetMap) {
+        for (long window : windows) {
+          offsetMap.remove(window);
+        }
+        compactedSegments.put(bucketIdx, segment);
+        offsetMap.put(segment.window, 0L);
+      }
+
+      for (long window : windows) {
+        if (previous != null && previous.window == window) {
+          releasedFiles.add(getCompactedSegmentName(bucketIdx, previous.window));
+        }
+        else if (releaseWindow(bucketIdx, window)) {
+          releasedFiles.add(Long.toString(window));
+        }
+      }
+    }
+    logger.debug("compacted bucket {} windows {} took {}", bucketIdx, windows.size(), System.currentTimeMillis() - startTime);
+  }
+
   /**
    * {@inheritDoc}
    * @throws java.lang.Exception
    */
   @Override
   @Nonnull
+  @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
   public Map<Object, T> fetchBucket(int bucketIdx) throws Exception
   {
-    Map<Object, T> bucketData = Maps.newHashMap();
+    Map<Object, T> bucketData = newBucketData();
 
-    if (bucketPositions[bucketIdx] == null) {
+    Map<Long, Long> offsetMap = bucketPositions[bucketIdx];
+    if (offsetMap == null) {
       return bucketData;
     }
 
     logger.debug("start fetch bucket {}", bucketIdx);
 
     long startTime = System.currentTimeMillis();
-    Set<Long> windows = bucketPositions[bucketIdx].keySet();
+    List<Long> windows;
+    Map<Long, Long> offsets;
+    synchronized (offsetMap) {
+      offsets = Maps.newHashMap(offsetMap);
+      windows = Lists.newArrayList(offsets.keySet());
+    }
     int numWindows = windows.size();
-    if (maximumPoolSize == -1 && interpolatedPoolSize < numWindows && interpolatedPoolSize < hardLimitOnPoolSize) {
-      int diff = numWindows - interpolatedPoolSize;
-      if (interpolatedPoolSize + diff <= hardLimitOnPoolSize) {
-        interpolatedPoolSize += diff;
-      }
-      else {
-        interpolatedPoolSize = hardLimitOnPoolSize;
+    //buckets can be fetched concurrently by the loaders of the manager
+    synchronized (threadPoolExecutor) {
+      if (maximumPoolSize == -1 && interpolatedPoolSize < numWindows && interpolatedPoolSize < hardLimitOnPoolSize) {
+        int diff = numWindows - interpolatedPoolSize;
+        if (interpolatedPoolSize + diff <= hardLimitOnPoolSize) {
+          interpolatedPoolSize += diff;
+        }
+        else {
+          interpolatedPoolSize = hardLimitOnPoolSize;
+        }
+        logger.debug("interpolated pool size {}", interpolatedPoolSize);
+        threadPoolExecutor.setMaximumPoolSize(interpolatedPoolSize);
       }
-      logger.debug("interpolated pool size {}", interpolatedPoolSize);
-      threadPoolExecutor.setMaximumPoolSize(interpolatedPoolSize);
     }
 
     List<Future<Exchange<T>>> futures = Lists.newArrayList();
     for (long window : windows) {
-      futures.add(threadPoolExecutor.submit(new BucketFetchCallable(bucketIdx, window)));
+      futures.add(threadPoolExecutor.submit(new BucketFetchCallable(bucketIdx, window, offsets.get(window))));
     }
 
     if (writeEventKeysOnly) {
@@ -338,9 +534,24 @@ public class HdfsBucketStore<T> implements BucketStore<T>
       }
     }
     logger.debug("end fetch bucket {} num {} took {}", bucketIdx, bucketData.size(), System.currentTimeMillis() - startTime);
+
+    if (minSegmentsToCompact > 0 && numWindows >= Math.max(2, minSegmentsToCompact)) {
+      compactBucket(bucketIdx, windows, bucketData);
+    }
     return bucketData;
   }
 
+  /**
+   * Creates the map for the events of a fetched bucket.
+   */
+  protected Map<Object, T> newBucketData()
+  {
+    if (primitiveEventKeys && PrimitiveKeyMap.supports(eventKeyClass)) {
+      return new PrimitiveKeyMap<T>();
+    }
+    return Maps.newHashMap();
+  }
+
   @Override
   public boolean equals(Object o)
   {
@@ -376,7 +587,21 @@ public class HdfsBucketStore<T> implements BucketStore<T>
   @SuppressWarnings("unchecked")
   public HdfsBucketStore<T> clone() throws CloneNotSupportedException
   {
-    return (HdfsBucketStore<T>)super.clone();
+    HdfsBucketStore<T> clone = (HdfsBucketStore<T>)super.clone();
+    //released files are deleted by this store
+    clone.releasedFiles = Lists.newArrayList();
+    clone.checkpointedReleases = Maps.newTreeMap();
+    return clone;
+  }
+
+  /**
+   * Consolidated segment of a bucket, it replaces the window segments up to and including {@link #window}.
+   */
+  protected static class CompactedSegment
+  {
+    long window;
+    // latest timestamp of the compacted windows
+    long timestamp;
   }
 
   private class Exchange<E> implements Comparable<Exchange<E>>
@@ -402,11 +627,13 @@ public class HdfsBucketStore<T> implements BucketStore<T>
 
     final long window;
     final int bucketIdx;
+    final long offset;
 
-    BucketFetchCallable(int bucketIdx, long window)
+    BucketFetchCallable(int bucketIdx, long window, long offset)
     {
       this.bucketIdx = bucketIdx;
       this.window = window;
+      this.offset = offset;
     }
 
     @Override
@@ -415,13 +642,13 @@ public class HdfsBucketStore<T> implements BucketStore<T>
       Kryo readSerde = new Kryo();
       readSerde.setClassLoader(classLoader);
 
-      Map<Object, T> bucketDataPerWindow = Maps.newHashMap();
-      Path dataFile = new Path(bucketRoot + PATH_SEPARATOR + window);
+      Map<Object, T> bucketDataPerWindow = newBucketData();
+      Path dataFile = getDataFilePath(bucketIdx, window);
       FileSystem fs = FileSystem.newInstance(dataFile.toUri(), configuration);
       try {
         //Read data only for the fileIds in which bucketIdx had events.
         FSDataInputStream stream = fs.open(dataFile);
-        stream.seek(bucketPositions[bucketIdx].get(window));
+        stream.seek(offset);
         Input input = new Input(stream);
 
         int length = stream.readInt();
@@ -51,6 +51,11 @@ public class NonOperationalBucketStore<T> implements BucketStore.ExpirableBucket
   {
   }
 
+  @Override
+  public void setPrimitiveEventKeys(boolean primitiveEventKeys)
+  {
+  }
+
   @Override
   public void setup()
   {
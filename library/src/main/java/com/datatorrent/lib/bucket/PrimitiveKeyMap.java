@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.lib.bucket;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Open addressing map for {@link Long} and {@link UUID} event keys. Keys are kept in primitive arrays and the value
+ * array is only allocated once a non null value is added, so a bucket that keeps only event keys costs about 11 bytes
+ * per long key and 22 bytes per UUID key instead of a {@link java.util.HashMap} entry with a boxed key.<br/>
+ * The key type is taken from the first key put in the map, keys of other classes are rejected. Iteration creates the
+ * boxed keys on the fly.
+ *
+ * @param <T> type of values
+ * @since 2.2.0
+ */
+public class PrimitiveKeyMap<T> extends AbstractMap<Object, T>
+{
+  public static enum KeyType
+  {
+    LONG(Long.class), UUID(UUID.class);
+
+    final Class<?> keyClass;
+
+    KeyType(Class<?> keyClass)
+    {
+      this.keyClass = keyClass;
+    }
+
+    /**
+     * @param keyClass class of the event keys.
+     * @return the key type for the class; null when the class has no primitive representation.
+     */
+    @Nullable
+    public static KeyType of(@Nullable Class<?> keyClass)
+    {
+      for (KeyType keyType : values()) {
+        if (keyType.keyClass == keyClass) {
+          return keyType;
+        }
+      }
+      return null;
+    }
+  }
+
+  private KeyType keyType;
+  private long[] keys;
+  //low bits of UUID keys
+  private long[] keys2;
+  private long[] used;
+  private Object[] values;
+  private int size;
+
+  public PrimitiveKeyMap()
+  {
+  }
+
+  public PrimitiveKeyMap(KeyType keyType)
+  {
+    init(keyType, INITIAL_CAPACITY);
+  }
+
+  /**
+   * Returns whether keys of the given class can be kept in a {@link PrimitiveKeyMap}.
+   *
+   * @param keyClass class of the event keys.
+   * @return true if the class is supported; false otherwise.
+   */
+  public static boolean supports(@Nullable Class<?> keyClass)
+  {
+    return KeyType.of(keyClass) != null;
+  }
+
+  private void init(KeyType keyType, int capacity)
+  {
+    this.keyType = keyType;
+    keys = new long[capacity];
+    keys2 = keyType == KeyType.UUID ? new long[capacity] : null;
+    used = new long[(capacity + 63) >>> 6];
+    values = null;
+    size = 0;
+  }
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(Object key)
+  {
+    int idx = indexOf(key);
+    return idx >= 0 && values != null ? (T)values[idx] : null;
+  }
+
+  @Override
+  public T put(Object key, T value)
+  {
+    if (keyType == null) {
+      KeyType type = key == null ? null : KeyType.of(key.getClass());
+      if (type == null) {
+        throw new IllegalArgumentException("unsupported key " + key);
+      }
+      init(type, INITIAL_CAPACITY);
+    }
+    else if (!accepts(key)) {
+      throw new IllegalArgumentException("key " + key + " is not of type " + keyType);
+    }
+
+    long k1 = high(key);
+    long k2 = low(key);
+    int idx = find(k1, k2);
+    if (idx >= 0) {
+      return setValue(idx, value);
+    }
+    if ((size + 1) * 4L > keys.length * 3L) {
+      resize(keys.length * 2);
+      idx = find(k1, k2);
+    }
+    idx = -(idx + 1);
+    keys[idx] = k1;
+    if (keys2 != null) {
+      keys2[idx] = k2;
+    }
+    used[idx >>> 6] |= 1L << idx;
+    size++;
+    return setValue(idx, value);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T remove(Object key)
+  {
+    int idx = indexOf(key);
+    if (idx < 0) {
+      return null;
+    }
+    T old = values == null ? null : (T)values[idx];
+    removeAt(idx);
+    return old;
+  }
+
+  @Override
+  public void clear()
+  {
+    if (keyType != null) {
+      init(keyType, INITIAL_CAPACITY);
+    }
+  }
+
+  @Override
+  public Set<Entry<Object, T>> entrySet()
+  {
+    return new AbstractSet<Entry<Object, T>>()
+    {
+      @Override
+      public Iterator<Entry<Object, T>> iterator()
+      {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size()
+      {
+        return size;
+      }
+    };
+  }
+
+  private boolean accepts(Object key)
+  {
+    return key != null && keyType != null && key.getClass() == keyType.keyClass;
+  }
+
+  private int indexOf(Object key)
+  {
+    if (!accepts(key)) {
+      return -1;
+    }
+    int idx = find(high(key), low(key));
+    return idx >= 0 ? idx : -1;
+  }
+
+  /**
+   * @return index of the key if present; otherwise -(insertion index + 1).
+   */
+  private int find(long k1, long k2)
+  {
+    int mask = keys.length - 1;
+    int idx = hash(k1, k2) & mask;
+    while (isUsed(idx)) {
+      if (keys[idx] == k1 && (keys2 == null || keys2[idx] == k2)) {
+        return idx;
+      }
+      idx = (idx + 1) & mask;
+    }
+    return -(idx + 1);
+  }
+
+  private boolean isUsed(int idx)
+  {
+    return (used[idx >>> 6] & (1L << idx)) != 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T setValue(int idx, T value)
+  {
+    if (values == null) {
+      if (value == null) {
+        return null;
+      }
+      values = new Object[keys.length];
+    }
+    T old = (T)values[idx];
+    values[idx] = value;
+    return old;
+  }
+
+  private void resize(int capacity)
+  {
+    long[] oldKeys = keys;
+    long[] oldKeys2 = keys2;
+    long[] oldUsed = used;
+    Object[] oldValues = values;
+    init(keyType, capacity);
+    if (oldValues != null) {
+      values = new Object[capacity];
+    }
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if ((oldUsed[i >>> 6] & (1L << i)) != 0) {
+        long k1 = oldKeys[i];
+        long k2 = oldKeys2 == null ? 0 : oldKeys2[i];
+        int idx = hash(k1, k2) & mask;
+        while (isUsed(idx)) {
+          idx = (idx + 1) & mask;
+        }
+        keys[idx] = k1;
+        if (keys2 != null) {
+          keys2[idx] = k2;
+        }
+        used[idx >>> 6] |= 1L << idx;
+        if (oldValues != null) {
+          values[idx] = oldValues[i];
+        }
+        size++;
+      }
+    }
+  }
+
+  /**
+   * Removes the entry at the index and shifts back the entries of the probe sequence that follows it.
+   */
+  private void removeAt(int idx)
+  {
+    int mask = keys.length - 1;
+    int next = idx;
+    while (true) {
+      next = (next + 1) & mask;
+      if (!isUsed(next)) {
+        break;
+      }
+      int home = hash(keys[next], keys2 == null ? 0 : keys2[next]) & mask;
+      boolean movable = next > idx ? (home <= idx || home > next) : (home <= idx && home > next);
+      if (movable) {
+        keys[idx] = keys[next];
+        if (keys2 != null) {
+          keys2[idx] = keys2[next];
+        }
+        if (values != null) {
+          values[idx] = values[next];
+        }
+        idx = next;
+      }
+    }
+    used[idx >>> 6] &= ~(1L << idx);
+    if (values != null) {
+      values[idx] = null;
+    }
+    size--;
+  }
+
+  private Object keyAt(int idx)
+  {
+    return keyType == KeyType.LONG ? Long.valueOf(keys[idx]) : new UUID(keys[idx], keys2[idx]);
+  }
+
+  private static long high(Object key)
+  {
+    return key instanceof UUID ? ((UUID)key).getMostSignificantBits() : (Long)key;
+  }
+
+  private static long low(Object key)
+  {
+    return key instanceof UUID ? ((UUID)key).getLeastSignificantBits() : 0;
+  }
+
+  private static int hash(long k1, long k2)
+  {
+    long h = k1 ^ (k2 * 0x9e3779b97f4a7c15L);
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int)h;
+  }
+
+  private class EntryIterator implements Iterator<Entry<Object, T>>
+  {
+    private int idx = -1;
+    private int returned;
+
+    @Override
+    public boolean hasNext()
+    {
+      return returned < size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Entry<Object, T> next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      do {
+        idx++;
+      }
+      while (!isUsed(idx));
+      returned++;
+      return new SimpleImmutableEntry<Object, T>(keyAt(idx), values == null ? null : (T)values[idx]);
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+}
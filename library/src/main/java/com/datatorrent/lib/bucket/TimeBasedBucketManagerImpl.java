@@ -23,7 +23,7 @@ public class TimeBasedBucketManagerImpl<T extends Event & Bucketable> extends Ab
   @Override
   protected Bucket<T> createBucket(long bucketKey)
   {
-    return new Bucket<T>(bucketKey);
+    return new Bucket<T>(bucketKey, primitiveEventKeys);
   }
 
   @Override
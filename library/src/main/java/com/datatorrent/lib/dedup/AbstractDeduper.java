@@ -62,6 +62,10 @@ import com.datatorrent.netlet.util.DTThrowable;
  * <li>
  * If the bucket is loaded, the operator drops the event if it is already present in the bucket; emits it otherwise.
  * </li>
+ * <li>
+ * If the bucket is not loaded but its key filter proves that the event is not present, the event is emitted without
+ * loading the bucket.
+ * </li>
  * </ol>
  * </p>
  *
@@ -187,6 +191,10 @@ public abstract class AbstractDeduper<INPUT, OUTPUT> implements Operator, Bucket
         bucketManager.newEvent(bucketKey, tuple);
         output.emit(convert(tuple));
       }
+      else if (!waitingEvents.containsKey(bucketKey) && bucketManager.newEventIfAbsent(bucketKey, tuple)) {
+        //the key filter of the bucket proves that the event is unique, no need to load the bucket
+        output.emit(convert(tuple));
+      }
       else {
         /**
          * The bucket on disk is not loaded. So we load the bucket from the disk.
@@ -206,6 +214,10 @@ public abstract class AbstractDeduper<INPUT, OUTPUT> implements Operator, Bucket
           //Trigger the storage manager to load bucketData for this bucket key. This is a non-blocking call.
           bucketManager.loadBucketData(bucketKey);
         }
+        else {
+          //buckets with larger backlogs are loaded first
+          bucketManager.updateWaitingEvents(bucketKey, waitingList.size());
+        }
       }
   }
 
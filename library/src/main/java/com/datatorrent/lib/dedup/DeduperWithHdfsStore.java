@@ -15,8 +15,11 @@
  */
 package com.datatorrent.lib.dedup;
 
+import java.io.IOException;
+
 import com.datatorrent.api.Context;
 import com.datatorrent.api.DAG;
+import com.datatorrent.api.Operator;
 
 import com.datatorrent.lib.bucket.Bucketable;
 import com.datatorrent.lib.bucket.Event;
@@ -35,8 +38,10 @@ import com.datatorrent.lib.bucket.NonOperationalBucketStore;
  *
  * @since 0.9.5
  */
-public abstract class DeduperWithHdfsStore<INPUT extends Bucketable & Event, OUTPUT> extends AbstractDeduper<INPUT, OUTPUT>
+public abstract class DeduperWithHdfsStore<INPUT extends Bucketable & Event, OUTPUT> extends AbstractDeduper<INPUT, OUTPUT> implements Operator.CheckpointListener
 {
+  private transient HdfsBucketStore<INPUT> store;
+
   @Override
   public void setup(Context.OperatorContext context)
   {
@@ -45,11 +50,33 @@ public abstract class DeduperWithHdfsStore<INPUT extends Bucketable & Event, OUT
       bucketManager.setBucketStore(new NonOperationalBucketStore<INPUT>());
     }
     else {
-      ((HdfsBucketStore<INPUT>) bucketManager.getBucketStore()).setConfiguration(context.getId(), context.getValue(DAG.APPLICATION_PATH), partitionKeys, partitionMask);
+      store = (HdfsBucketStore<INPUT>) bucketManager.getBucketStore();
+      store.setConfiguration(context.getId(), context.getValue(DAG.APPLICATION_PATH), partitionKeys, partitionMask);
     }
     super.setup(context);
   }
 
+  @Override
+  public void checkpointed(long windowId)
+  {
+    if (store != null) {
+      store.checkpointed(windowId);
+    }
+  }
+
+  @Override
+  public void committed(long windowId)
+  {
+    if (store != null) {
+      try {
+        store.committed(windowId);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
   @Override
   protected Object getEventKey(INPUT event)
   {
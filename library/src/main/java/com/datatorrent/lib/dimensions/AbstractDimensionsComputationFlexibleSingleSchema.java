@@ -7,9 +7,14 @@ package com.datatorrent.lib.dimensions;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import java.util.List;
 
+import com.google.common.collect.Lists;
+
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
@@ -20,6 +25,7 @@ import com.datatorrent.lib.appdata.schemas.FieldsDescriptor;
 import com.datatorrent.lib.dimensions.DimensionsEvent.Aggregate;
 import com.datatorrent.lib.dimensions.DimensionsEvent.EventKey;
 import com.datatorrent.lib.dimensions.DimensionsEvent.InputEvent;
+import com.datatorrent.lib.dimensions.aggregator.AbstractIncrementalAggregator;
 import com.datatorrent.lib.dimensions.aggregator.AggregatorRegistry;
 import com.datatorrent.lib.dimensions.aggregator.IncrementalAggregator;
 import com.datatorrent.lib.statistics.DimensionsComputation;
@@ -31,6 +37,9 @@ import com.datatorrent.api.DefaultOutputPort;
 import com.datatorrent.api.Operator;
 import com.datatorrent.api.Sink;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * This is the base class for a generic single schema dimensions computation operator. A single
  * schema dimensions computation operator performs dimensions computation on inputs using a
@@ -46,6 +55,14 @@ import com.datatorrent.api.Sink;
  *  performs dimensions computation.</li>
  *  <li>Aggregations are emitted by the operator as {@link Aggregate}s.</li>
  * </ol>
+ * When more than one aggregation thread is set, the {@link DimensionsComputation} operator aggregates shards of the
+ * aggregators in parallel. Each event is then converted once for each shard, since aggregators modify the
+ * {@link InputEvent}s they receive.
+ * <br/>
+ * <br/>
+ * The {@link InputEvent}s which became keys of groups are reused after the aggregates of the window were emitted,
+ * the others once they were aggregated. At most {@link #MAX_FREE_INPUT_EVENTS} of them are kept for reuse.
+ * The emitted {@link Aggregate}s themselves can be reused as well, see {@link #setRecycleAggregates(boolean)}.
  * @param <EVENT> The type of the input events on which to perform dimensions computation.
  */
 public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> implements Operator
@@ -54,6 +71,10 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
    * The default schema ID.
    */
   public static final int DEFAULT_SCHEMA_ID = 1;
+  /**
+   * The maximum number of {@link InputEvent}s which are kept for reuse.
+   */
+  public static final int MAX_FREE_INPUT_EVENTS = 16 * 1024;
   /**
    * This holds the JSON which defines the {@link DimensionalConfigurationSchema} to be used by this operator.
    */
@@ -89,6 +110,50 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
    * of this schema.
    */
   protected InputEvent inputEvent;
+  /**
+   * The number of threads used to aggregate the events.
+   */
+  @Min(1)
+  private int aggregationThreads = 1;
+  /**
+   * The number of events handed over to an aggregation thread at once.
+   */
+  @Min(1)
+  private int batchSize = 1024;
+  /**
+   * Whether emitted aggregates are reused for the groups of following windows.
+   */
+  private boolean recycleAggregates = false;
+  /**
+   * The recycled aggregates of each aggregator, null if aggregates are not recycled.
+   */
+  private transient List<Deque<Aggregate>> recycledAggregates;
+  /**
+   * The {@link InputEvent}s which became keys of groups in the current window.
+   */
+  private transient List<InputEvent> usedInputEvents;
+  /**
+   * The {@link InputEvent}s which can be reused.
+   */
+  private transient List<InputEvent> freeInputEvents;
+  /**
+   * Whether aggregations are kept in a {@link ColumnarAggregationStore} per dimension combination.
+   */
+  private boolean columnarAggregation = false;
+  /**
+   * The {@link ColumnarAggregationStore} of each dimension combination, null if the aggregations are kept
+   * by the {@link DimensionsComputation} operator.
+   */
+  private transient ColumnarAggregationStore[] columnarStores;
+  /**
+   * The sink which emits the aggregates computed by this operator.
+   */
+  private transient Sink<Aggregate> aggregateSink;
+  /**
+   * The number of application windows for which aggregates are kept before they are emitted.
+   */
+  @Min(1)
+  private int emitIntervalWindows = 1;
 
   /**
    * The output port for the aggregates.
@@ -121,17 +186,53 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
   @SuppressWarnings({"unchecked","rawtypes"})
   public void setup(OperatorContext context)
   {
-    IncrementalAggregator[] aggregatorArray = createAggregators();
+    recycledAggregates = recycleAggregates ? Lists.<Deque<Aggregate>>newArrayList() : null;
+    IncrementalAggregator[] aggregatorArray = createAggregators(recycledAggregates);
+    columnarStores = columnarAggregation ? createColumnarStores(aggregatorArray) : null;
+
+    DimensionsComputation<InputEvent, Aggregate> checkpointedComputation = dimensionsComputation;
 
     dimensionsComputation = new DimensionsComputation<InputEvent, Aggregate>();
     dimensionsComputation.setAggregators(aggregatorArray);
+    dimensionsComputation.setAggregationThreads(columnarStores == null ? aggregationThreads : 1);
+    dimensionsComputation.setBatchSize(batchSize);
+    dimensionsComputation.setEmitIntervalWindows(columnarStores == null ? emitIntervalWindows : 1);
+    dimensionsComputation.setBatchListener(new DimensionsComputation.BatchListener<InputEvent>()
+    {
+      @Override
+      public void batchAggregated(List<InputEvent> batch)
+      {
+        //Only the input events which became keys of groups are kept by the aggregators.
+        for(int index = 0;
+            index < batch.size();
+            index++) {
+          InputEvent shardEvent = batch.get(index);
+
+          if(shardEvent.used) {
+            usedInputEvents.add(shardEvent);
+          }
+          else {
+            freeInputEvent(shardEvent);
+          }
+        }
+      }
+    });
 
-    Sink<Aggregate> sink = new Sink<Aggregate>() {
+    if(checkpointedComputation != null) {
+      //Aggregates which were kept across windows are restored from the checkpoint.
+      dimensionsComputation.transferAggregates(checkpointedComputation);
+    }
+
+    aggregateSink = new Sink<Aggregate>() {
 
       @Override
       public void put(Aggregate tuple)
       {
         output.emit(tuple);
+
+        if(recycledAggregates != null) {
+          recycledAggregates.get(tuple.getAggregatorIndex()).add(tuple);
+        }
       }
 
       @Override
@@ -141,15 +242,37 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
       }
     };
 
-    dimensionsComputation.output.setSink((Sink) sink);
+    dimensionsComputation.output.setSink((Sink) aggregateSink);
     dimensionsComputation.setup(context);
 
+    usedInputEvents = Lists.newArrayList();
+    freeInputEvents = Lists.newArrayList();
     createInputEvent();
   }
 
   private void createInputEvent()
   {
-    inputEvent = new InputEvent(
+    inputEvent = newInputEvent();
+  }
+
+  /**
+   * Keeps the given {@link InputEvent} for reuse, unless enough {@link InputEvent}s are kept already.
+   * @param freeInputEvent The {@link InputEvent} which is not referenced anymore.
+   */
+  private void freeInputEvent(InputEvent freeInputEvent)
+  {
+    if(freeInputEvents.size() < MAX_FREE_INPUT_EVENTS) {
+      freeInputEvents.add(freeInputEvent);
+    }
+  }
+
+  private InputEvent newInputEvent()
+  {
+    if(!freeInputEvents.isEmpty()) {
+      return freeInputEvents.remove(freeInputEvents.size() - 1);
+    }
+
+    return new InputEvent(
             new EventKey(0,
                          0,
                          0,
@@ -157,6 +280,58 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
             new GPOMutable(this.configurationSchema.getInputValuesDescriptor()));
   }
 
+  /**
+   * Creates a {@link ColumnarAggregationStore} for the aggregators of each dimension combination.
+   * @param aggregatorArray The aggregators of this operator.
+   * @return The {@link ColumnarAggregationStore}s, or null if some of the aggregators are not supported by
+   * {@link ColumnarAggregationStore}.
+   */
+  private ColumnarAggregationStore[] createColumnarStores(IncrementalAggregator[] aggregatorArray)
+  {
+    for(IncrementalAggregator aggregator: aggregatorArray) {
+      if(!ColumnarAggregationStore.supports(aggregator)) {
+        LOG.warn("Aggregator {} is not supported by columnar aggregation, aggregating without columns.",
+                 aggregator.getClass().getSimpleName());
+        return null;
+      }
+    }
+
+    List<ColumnarAggregationStore> stores = Lists.newArrayList();
+
+    //The aggregators of a dimension combination are next to each other.
+    int startIndex = 0;
+
+    while(startIndex < aggregatorArray.length) {
+      int dimensionsDescriptorID = getDimensionsDescriptorID(aggregatorArray[startIndex]);
+      int endIndex = startIndex + 1;
+
+      while(endIndex < aggregatorArray.length
+            && getDimensionsDescriptorID(aggregatorArray[endIndex]) == dimensionsDescriptorID) {
+        endIndex++;
+      }
+
+      IncrementalAggregator[] aggregators = new IncrementalAggregator[endIndex - startIndex];
+      int[] aggregatorIndices = new int[endIndex - startIndex];
+
+      for(int index = startIndex;
+          index < endIndex;
+          index++) {
+        aggregators[index - startIndex] = aggregatorArray[index];
+        aggregatorIndices[index - startIndex] = index;
+      }
+
+      stores.add(new ColumnarAggregationStore(aggregators, aggregatorIndices));
+      startIndex = endIndex;
+    }
+
+    return stores.toArray(new ColumnarAggregationStore[stores.size()]);
+  }
+
+  private static int getDimensionsDescriptorID(IncrementalAggregator aggregator)
+  {
+    return ((AbstractIncrementalAggregator) aggregator).getDimensionsConversionContext().dimensionsDescriptorID;
+  }
+
   /**
    * This is a helper method which initializes internal data structures for the operator and
    * creates the array of aggregators which are set on the {@link DimensionsComputation} operator
@@ -164,6 +339,18 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
    * @return The aggregators to be set on the unifier and internal {@link DimensionsComputation} operator.
    */
   private IncrementalAggregator[] createAggregators()
+  {
+    return createAggregators(null);
+  }
+
+  /**
+   * Creates the aggregators as {@link #createAggregators()} does. If a list is given, the conversion context
+   * of each aggregator gets a queue of recycled aggregates, which is added to the list at the index of the aggregator.
+   * @param recycledAggregates The list to add the recycled aggregates of each aggregator to, or null if aggregates
+   * are not recycled.
+   * @return The aggregators to be set on the unifier and internal {@link DimensionsComputation} operator.
+   */
+  private IncrementalAggregator[] createAggregators(List<Deque<Aggregate>> recycledAggregates)
   {
     aggregatorRegistry.setup();
 
@@ -227,6 +414,11 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
         conversionContext.indexSubsetKeys = indexSubsetKey;
         conversionContext.indexSubsetAggregates = indexSubsetAggregate;
 
+        if(recycledAggregates != null) {
+          conversionContext.recycledAggregates = new ArrayDeque<Aggregate>();
+          recycledAggregates.add(conversionContext.recycledAggregates);
+        }
+
         IncrementalAggregator aggregator;
 
         try {
@@ -256,7 +448,29 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
   @Override
   public void endWindow()
   {
+    if(columnarStores != null) {
+      for(ColumnarAggregationStore columnarStore: columnarStores) {
+        columnarStore.emitAndClear(aggregateSink);
+      }
+    }
+
     dimensionsComputation.endWindow();
+
+    if(!dimensionsComputation.isEmitWindow()) {
+      //The input events are still keys of the groups which are kept.
+      return;
+    }
+
+    //The groups were cleared, so the input events which were their keys can be reused.
+    for(int index = 0;
+        index < usedInputEvents.size();
+        index++) {
+      InputEvent usedInputEvent = usedInputEvents.get(index);
+      usedInputEvent.used = false;
+      freeInputEvent(usedInputEvent);
+    }
+
+    usedInputEvents.clear();
   }
 
   @Override
@@ -266,10 +480,39 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
   }
 
   public void processInputEvent(EVENT event) {
+    if(columnarStores != null) {
+      convert(inputEvent, event);
+
+      for(int index = 0;
+          index < columnarStores.length;
+          index++) {
+        columnarStores[index].aggregate(inputEvent);
+      }
+
+      if(inputEvent.used) {
+        usedInputEvents.add(inputEvent);
+        createInputEvent();
+      }
+
+      return;
+    }
+
+    int shardCount = dimensionsComputation.getShardCount();
+    if (shardCount > 1) {
+      //the aggregators of a shard keep and modify the input events they receive, the batch listener takes them back
+      for (int shard = 0; shard < shardCount; shard++) {
+        InputEvent shardEvent = newInputEvent();
+        convert(shardEvent, event);
+        dimensionsComputation.processInputTuple(shard, shardEvent);
+      }
+      return;
+    }
+
     convert(inputEvent, event);
     dimensionsComputation.data.put(inputEvent);
 
     if(inputEvent.used) {
+      usedInputEvents.add(inputEvent);
       createInputEvent();
     }
   }
@@ -339,6 +582,110 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
     this.unifier = unifier;
   }
 
+  /**
+   * Gets the number of threads used to aggregate the events.
+   * @return The number of threads used to aggregate the events.
+   */
+  public int getAggregationThreads()
+  {
+    return aggregationThreads;
+  }
+
+  /**
+   * Sets the number of threads used to aggregate the events. Each thread aggregates a shard of the
+   * dimension combinations and aggregators. The default is 1, which aggregates on the operator thread.
+   * @param aggregationThreads The number of threads used to aggregate the events.
+   */
+  public void setAggregationThreads(int aggregationThreads)
+  {
+    this.aggregationThreads = aggregationThreads;
+  }
+
+  /**
+   * Gets the number of events handed over to an aggregation thread at once.
+   * @return The number of events handed over to an aggregation thread at once.
+   */
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  /**
+   * Sets the number of events handed over to an aggregation thread at once.
+   * @param batchSize The number of events handed over to an aggregation thread at once.
+   */
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns whether emitted aggregates are reused for the groups of following windows.
+   * @return True if emitted aggregates are reused for the groups of following windows.
+   */
+  public boolean isRecycleAggregates()
+  {
+    return recycleAggregates;
+  }
+
+  /**
+   * Sets whether emitted aggregates are reused for the groups of following windows, which avoids allocating
+   * new aggregates for each group in each window. This must only be enabled when the downstream operators do not
+   * hold on to the emitted aggregates after the window, which is the case when the output stream is not
+   * THREAD_LOCAL or CONTAINER_LOCAL, since the aggregates are then serialized when they are emitted. The aggregators
+   * have to create their aggregates with
+   * {@link com.datatorrent.lib.dimensions.aggregator.AbstractIncrementalAggregator#createAggregate} and initialize
+   * all of the aggregate fields, as the built in aggregators do. The default is false.
+   * @param recycleAggregates True if emitted aggregates are reused for the groups of following windows.
+   */
+  public void setRecycleAggregates(boolean recycleAggregates)
+  {
+    this.recycleAggregates = recycleAggregates;
+  }
+
+  /**
+   * Gets the number of application windows for which aggregates are kept before they are emitted.
+   * @return The number of application windows for which aggregates are kept before they are emitted.
+   */
+  public int getEmitIntervalWindows()
+  {
+    return emitIntervalWindows;
+  }
+
+  /**
+   * Sets the number of application windows for which aggregates are kept before they are emitted. Keeping the
+   * aggregates for multiple windows reduces the number of aggregates the downstream store receives for the same
+   * key, at the cost of latency. The kept aggregates are checkpointed with this operator. This is ignored with
+   * columnar aggregation. The default is 1, which emits the aggregates at the end of every window.
+   * @param emitIntervalWindows The number of application windows for which aggregates are kept before they
+   * are emitted.
+   */
+  public void setEmitIntervalWindows(int emitIntervalWindows)
+  {
+    this.emitIntervalWindows = emitIntervalWindows;
+  }
+
+  /**
+   * Returns whether aggregations are kept in columns of primitive arrays.
+   * @return True if aggregations are kept in columns of primitive arrays.
+   */
+  public boolean isColumnarAggregation()
+  {
+    return columnarAggregation;
+  }
+
+  /**
+   * Sets whether aggregations are kept in columns of primitive arrays by a {@link ColumnarAggregationStore} per
+   * dimension combination, instead of an {@link Aggregate} per group and aggregator. {@link Aggregate}s are then
+   * only created when they are emitted. This is only done if all the aggregators are supported by
+   * {@link ColumnarAggregationStore}, and the aggregation threads setting is ignored. The default is false.
+   * @param columnarAggregation True if aggregations are kept in columns of primitive arrays.
+   */
+  public void setColumnarAggregation(boolean columnarAggregation)
+  {
+    this.columnarAggregation = columnarAggregation;
+  }
+
   /**
    * @return the schemaID
    */
@@ -411,6 +758,11 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
      * received by this aggregator.
      */
     public IndexSubset indexSubsetAggregates;
+    /**
+     * Emitted {@link Aggregate}s which are reused for new groups by the {@link IncrementalAggegator}s holding this
+     * context object. This is null if aggregates are not recycled.
+     */
+    public transient Deque<Aggregate> recycledAggregates;
 
     /**
      * Constructor for creating conversion context.
@@ -420,4 +772,6 @@ public abstract class AbstractDimensionsComputationFlexibleSingleSchema<EVENT> i
       //Do nothing.
     }
   }
+
+  private static final Logger LOG = LoggerFactory.getLogger(AbstractDimensionsComputationFlexibleSingleSchema.class);
 }
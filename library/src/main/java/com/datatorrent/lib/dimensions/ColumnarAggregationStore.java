@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2015 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.lib.dimensions;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import gnu.trove.map.custom_hash.TObjectIntCustomHashMap;
+
+import com.datatorrent.api.Sink;
+
+import com.datatorrent.lib.appdata.gpo.GPOMutable;
+import com.datatorrent.lib.appdata.gpo.GPOUtils.IndexSubset;
+import com.datatorrent.lib.dimensions.AbstractDimensionsComputationFlexibleSingleSchema.DimensionsConversionContext;
+import com.datatorrent.lib.dimensions.DimensionsEvent.Aggregate;
+import com.datatorrent.lib.dimensions.DimensionsEvent.InputEvent;
+import com.datatorrent.lib.dimensions.aggregator.AbstractIncrementalAggregator;
+import com.datatorrent.lib.dimensions.aggregator.AggregatorCount;
+import com.datatorrent.lib.dimensions.aggregator.AggregatorMax;
+import com.datatorrent.lib.dimensions.aggregator.AggregatorMin;
+import com.datatorrent.lib.dimensions.aggregator.AggregatorSum;
+import com.datatorrent.lib.dimensions.aggregator.IncrementalAggregator;
+
+/**
+ * This is an aggregation engine for the aggregators of a single dimension combination, which keeps the aggregations
+ * in primitive arrays instead of one {@link Aggregate} per group and aggregator. The groups of the dimension combination
+ * are numbered by one hash table shared by all of its aggregators, and each aggregate field of each aggregator is a column
+ * indexed by the group number. {@link Aggregate}s are only created when the aggregations are emitted at the end
+ * of a window.
+ * <br/>
+ * <br/>
+ * <b>Note:</b> Only the {@link AggregatorSum}, {@link AggregatorMin}, {@link AggregatorMax} and {@link AggregatorCount}
+ * aggregators are supported, see {@link #supports(IncrementalAggregator)}.
+ */
+public class ColumnarAggregationStore
+{
+  /**
+   * The operation performed on the columns of an aggregator.
+   */
+  private static enum Operation
+  {
+    SUM, MIN, MAX, COUNT;
+  }
+
+  /**
+   * The aggregator whose hashing strategy is used to compare the keys of the groups.
+   */
+  private final IncrementalAggregator keyStrategy;
+  /**
+   * The group number of the {@link InputEvent}s which are keys of the groups of the current window.
+   */
+  private final TObjectIntCustomHashMap<InputEvent> groupIDs;
+  /**
+   * The keys of the groups of the current window, by group number.
+   */
+  private final List<InputEvent> groupKeys = Lists.newArrayList();
+  /**
+   * The columns of each aggregator.
+   */
+  private final Columns[] columns;
+  /**
+   * The number of groups the columns can hold.
+   */
+  private int capacity = INITIAL_CAPACITY;
+
+  /**
+   * Creates a store for the given aggregators, which must all belong to the same dimension combination.
+   * @param aggregators The aggregators of the dimension combination.
+   * @param aggregatorIndices The index of each given aggregator in the aggregators of the operator.
+   */
+  public ColumnarAggregationStore(IncrementalAggregator[] aggregators,
+                                  int[] aggregatorIndices)
+  {
+    Preconditions.checkArgument(aggregators.length > 0);
+    Preconditions.checkArgument(aggregators.length == aggregatorIndices.length);
+
+    keyStrategy = aggregators[0];
+    groupIDs = new TObjectIntCustomHashMap<InputEvent>(keyStrategy, INITIAL_CAPACITY, 0.5f, -1);
+    columns = new Columns[aggregators.length];
+
+    for(int aggregatorIndex = 0;
+        aggregatorIndex < aggregators.length;
+        aggregatorIndex++) {
+      Preconditions.checkArgument(supports(aggregators[aggregatorIndex]),
+                                  "Unsupported aggregator %s",
+                                  aggregators[aggregatorIndex]);
+      DimensionsConversionContext context =
+      ((AbstractIncrementalAggregator) aggregators[aggregatorIndex]).getDimensionsConversionContext();
+      Preconditions.checkArgument(context.dimensionsDescriptorID ==
+                                  ((AbstractIncrementalAggregator) keyStrategy).getDimensionsConversionContext().dimensionsDescriptorID,
+                                  "The aggregators belong to different dimension combinations");
+
+      columns[aggregatorIndex] = new Columns(getOperation(aggregators[aggregatorIndex]),
+                                             context,
+                                             aggregatorIndices[aggregatorIndex]);
+    }
+  }
+
+  /**
+   * Returns true if the given aggregator can be computed by a {@link ColumnarAggregationStore}.
+   * @param aggregator The aggregator to check.
+   * @return True if the given aggregator can be computed by a {@link ColumnarAggregationStore}.
+   */
+  public static boolean supports(IncrementalAggregator aggregator)
+  {
+    return getOperation(aggregator) != null;
+  }
+
+  private static Operation getOperation(IncrementalAggregator aggregator)
+  {
+    //Subclasses may aggregate differently, so only the exact classes are supported.
+    Class<?> clazz = aggregator.getClass();
+
+    if(clazz == AggregatorSum.class) {
+      return Operation.SUM;
+    }
+    else if(clazz == AggregatorMin.class) {
+      return Operation.MIN;
+    }
+    else if(clazz == AggregatorMax.class) {
+      return Operation.MAX;
+    }
+    else if(clazz == AggregatorCount.class) {
+      return Operation.COUNT;
+    }
+
+    return null;
+  }
+
+  /**
+   * Aggregates the given {@link InputEvent}. If the event starts a new group, the event becomes the key of the group
+   * and is marked as used.
+   * @param inputEvent The {@link InputEvent} to aggregate.
+   */
+  public void aggregate(InputEvent inputEvent)
+  {
+    int groupID = groupIDs.get(inputEvent);
+    boolean newGroup = groupID < 0;
+
+    if(newGroup) {
+      groupID = groupKeys.size();
+
+      if(groupID == capacity) {
+        capacity *= 2;
+
+        for(Columns aggregatorColumns: columns) {
+          aggregatorColumns.grow(capacity);
+        }
+      }
+
+      groupIDs.put(inputEvent, groupID);
+      groupKeys.add(inputEvent);
+      inputEvent.used = true;
+    }
+
+    for(int index = 0;
+        index < columns.length;
+        index++) {
+      columns[index].aggregate(groupID, inputEvent.getAggregates(), newGroup);
+    }
+  }
+
+  /**
+   * Emits an {@link Aggregate} for each group and aggregator of the current window to the given sink, ordered by
+   * aggregator, and clears the groups.
+   * @param sink The sink to emit the {@link Aggregate}s to.
+   */
+  public void emitAndClear(Sink<Aggregate> sink)
+  {
+    int numGroups = groupKeys.size();
+
+    for(Columns aggregatorColumns: columns) {
+      for(int groupID = 0;
+          groupID < numGroups;
+          groupID++) {
+        Aggregate aggregate = AbstractIncrementalAggregator.createAggregate(groupKeys.get(groupID),
+                                                                            aggregatorColumns.context,
+                                                                            aggregatorColumns.aggregatorIndex);
+        aggregatorColumns.copyTo(groupID, aggregate.getAggregates());
+        sink.put(aggregate);
+      }
+    }
+
+    groupIDs.clear();
+    groupKeys.clear();
+  }
+
+  /**
+   * The columns of one aggregator, one column per aggregate field.
+   */
+  private static class Columns
+  {
+    final Operation operation;
+    final DimensionsConversionContext context;
+    final int aggregatorIndex;
+
+    byte[][] byteColumns;
+    short[][] shortColumns;
+    int[][] integerColumns;
+    long[][] longColumns;
+    float[][] floatColumns;
+    double[][] doubleColumns;
+
+    final int[] byteIndices;
+    final int[] shortIndices;
+    final int[] integerIndices;
+    final int[] longIndices;
+    final int[] floatIndices;
+    final int[] doubleIndices;
+
+    Columns(Operation operation,
+            DimensionsConversionContext context,
+            int aggregatorIndex)
+    {
+      this.operation = operation;
+      this.context = context;
+      this.aggregatorIndex = aggregatorIndex;
+
+      GPOMutable template = new GPOMutable(context.aggregateDescriptor);
+      IndexSubset indexSubset = context.indexSubsetAggregates;
+
+      byteColumns = new byte[length(template.getFieldsByte())][INITIAL_CAPACITY];
+      shortColumns = new short[length(template.getFieldsShort())][INITIAL_CAPACITY];
+      integerColumns = new int[length(template.getFieldsInteger())][INITIAL_CAPACITY];
+      longColumns = new long[length(template.getFieldsLong())][INITIAL_CAPACITY];
+      floatColumns = new float[length(template.getFieldsFloat())][INITIAL_CAPACITY];
+      doubleColumns = new double[length(template.getFieldsDouble())][INITIAL_CAPACITY];
+
+      byteIndices = indexSubset.fieldsByteIndexSubset;
+      shortIndices = indexSubset.fieldsShortIndexSubset;
+      integerIndices = indexSubset.fieldsIntegerIndexSubset;
+      longIndices = indexSubset.fieldsLongIndexSubset;
+      floatIndices = indexSubset.fieldsFloatIndexSubset;
+      doubleIndices = indexSubset.fieldsDoubleIndexSubset;
+    }
+
+    void grow(int capacity)
+    {
+      for(int index = 0; index < byteColumns.length; index++) {
+        byteColumns[index] = Arrays.copyOf(byteColumns[index], capacity);
+      }
+      for(int index = 0; index < shortColumns.length; index++) {
+        shortColumns[index] = Arrays.copyOf(shortColumns[index], capacity);
+      }
+      for(int index = 0; index < integerColumns.length; index++) {
+        integerColumns[index] = Arrays.copyOf(integerColumns[index], capacity);
+      }
+      for(int index = 0; index < longColumns.length; index++) {
+        longColumns[index] = Arrays.copyOf(longColumns[index], capacity);
+      }
+      for(int index = 0; index < floatColumns.length; index++) {
+        floatColumns[index] = Arrays.copyOf(floatColumns[index], capacity);
+      }
+      for(int index = 0; index < doubleColumns.length; index++) {
+        doubleColumns[index] = Arrays.copyOf(doubleColumns[index], capacity);
+      }
+    }
+
+    void aggregate(int groupID,
+                   GPOMutable src,
+                   boolean newGroup)
+    {
+      if(operation == Operation.COUNT) {
+        for(int index = 0; index < longColumns.length; index++) {
+          long[] column = longColumns[index];
+          column[groupID] = newGroup ? 1L : column[groupID] + 1L;
+        }
+
+        return;
+      }
+
+      //A new group starts with the values of its first event, as the aggregators do.
+      for(int index = 0; index < byteColumns.length; index++) {
+        byte[] column = byteColumns[index];
+        byte value = src.getFieldsByte()[byteIndices[index]];
+        column[groupID] = newGroup ? value :
+                          operation == Operation.SUM ? (byte) (column[groupID] + value) :
+                          operation == Operation.MIN ? (value < column[groupID] ? value : column[groupID]) :
+                          (value > column[groupID] ? value : column[groupID]);
+      }
+      for(int index = 0; index < shortColumns.length; index++) {
+        short[] column = shortColumns[index];
+        short value = src.getFieldsShort()[shortIndices[index]];
+        column[groupID] = newGroup ? value :
+                          operation == Operation.SUM ? (short) (column[groupID] + value) :
+                          operation == Operation.MIN ? (value < column[groupID] ? value : column[groupID]) :
+                          (value > column[groupID] ? value : column[groupID]);
+      }
+      for(int index = 0; index < integerColumns.length; index++) {
+        int[] column = integerColumns[index];
+        int value = src.getFieldsInteger()[integerIndices[index]];
+        column[groupID] = newGroup ? value :
+                          operation == Operation.SUM ? column[groupID] + value :
+                          operation == Operation.MIN ? (value < column[groupID] ? value : column[groupID]) :
+                          (value > column[groupID] ? value : column[groupID]);
+      }
+      for(int index = 0; index < longColumns.length; index++) {
+        long[] column = longColumns[index];
+        long value = src.getFieldsLong()[longIndices[index]];
+        column[groupID] = newGroup ? value :
+                          operation == Operation.SUM ? column[groupID] + value :
+                          operation == Operation.MIN ? (value < column[groupID] ? value : column[groupID]) :
+                          (value > column[groupID] ? value : column[groupID]);
+      }
+      for(int index = 0; index < floatColumns.length; index++) {
+        float[] column = floatColumns[index];
+        float value = src.getFieldsFloat()[floatIndices[index]];
+        column[groupID] = newGroup ? value :
+                          operation == Operation.SUM ? column[groupID] + value :
+                          operation == Operation.MIN ? (value < column[groupID] ? value : column[groupID]) :
+                          (value > column[groupID] ? value : column[groupID]);
+      }
+      for(int index = 0; index < doubleColumns.length; index++) {
+        double[] column = doubleColumns[index];
+        double value = src.getFieldsDouble()[doubleIndices[index]];
+        column[groupID] = newGroup ? value :
+                          operation == Operation.SUM ? column[groupID] + value :
+                          operation == Operation.MIN ? (value < column[groupID] ? value : column[groupID]) :
+                          (value > column[groupID] ? value : column[groupID]);
+      }
+    }
+
+    void copyTo(int groupID,
+                GPOMutable aggregates)
+    {
+      for(int index = 0; index < byteColumns.length; index++) {
+        aggregates.getFieldsByte()[index] = byteColumns[index][groupID];
+      }
+      for(int index = 0; index < shortColumns.length; index++) {
+        aggregates.getFieldsShort()[index] = shortColumns[index][groupID];
+      }
+      for(int index = 0; index < integerColumns.length; index++) {
+        aggregates.getFieldsInteger()[index] = integerColumns[index][groupID];
+      }
+      for(int index = 0; index < longColumns.length; index++) {
+        aggregates.getFieldsLong()[index] = longColumns[index][groupID];
+      }
+      for(int index = 0; index < floatColumns.length; index++) {
+        aggregates.getFieldsFloat()[index] = floatColumns[index][groupID];
+      }
+      for(int index = 0; index < doubleColumns.length; index++) {
+        aggregates.getFieldsDouble()[index] = doubleColumns[index][groupID];
+      }
+    }
+
+    private static int length(Object fields)
+    {
+      return fields == null ? 0 : Array.getLength(fields);
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 64;
+}
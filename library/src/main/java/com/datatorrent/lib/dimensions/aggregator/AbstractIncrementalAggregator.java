@@ -39,6 +39,15 @@ public abstract class AbstractIncrementalAggregator implements IncrementalAggreg
     this.context = Preconditions.checkNotNull(context);
   }
 
+  /**
+   * Returns the conversion context for this aggregator.
+   * @return The conversion context for this aggregator.
+   */
+  public DimensionsConversionContext getDimensionsConversionContext()
+  {
+    return context;
+  }
+
   @Override
   public Aggregate getGroup(InputEvent src, int aggregatorIndex)
   {
@@ -92,7 +101,8 @@ public abstract class AbstractIncrementalAggregator implements IncrementalAggreg
   }
 
   /**
-   * Creates an {@link Aggregate} from the given {@link InputEvent}.
+   * Creates an {@link Aggregate} from the given {@link InputEvent}. If the given context holds
+   * recycled aggregates, one of them is reused instead of allocating a new {@link Aggregate}.
    * @param inputEvent The {@link InputEvent} to unpack into an {@link Aggregate}.
    * @param context The conversion context required to transform the {@link InputEvent} into
    * the correct {@link Aggregate}.
@@ -103,13 +113,23 @@ public abstract class AbstractIncrementalAggregator implements IncrementalAggreg
                                           DimensionsConversionContext context,
                                           int aggregatorIndex)
   {
-    GPOMutable aggregates = new GPOMutable(context.aggregateDescriptor);
-    EventKey eventKey = createEventKey(inputEvent,
-                                       context,
-                                       aggregatorIndex);
+    Aggregate aggregate = pollRecycledAggregate(context);
+
+    if(aggregate != null) {
+      copyKeys(aggregate.getKeys(), inputEvent, context);
+      aggregate.setMetaData(null);
+    }
+    else {
+      GPOMutable keys = new GPOMutable(context.keyDescriptor);
+      copyKeys(keys, inputEvent, context);
+
+      aggregate = new Aggregate(keys,
+                                new GPOMutable(context.aggregateDescriptor),
+                                context.schemaID,
+                                context.dimensionsDescriptorID,
+                                context.aggregatorID);
+    }
 
-    Aggregate aggregate = new Aggregate(eventKey,
-                                        aggregates);
     aggregate.setAggregatorIndex(aggregatorIndex);
 
     return aggregate;
@@ -128,6 +148,27 @@ public abstract class AbstractIncrementalAggregator implements IncrementalAggreg
                                         int aggregatorIndex)
   {
     GPOMutable keys = new GPOMutable(context.keyDescriptor);
+    copyKeys(keys, inputEvent, context);
+
+    EventKey eventKey = new EventKey(context.schemaID,
+                                     context.dimensionsDescriptorID,
+                                     context.aggregatorID,
+                                     keys);
+
+    return eventKey;
+  }
+
+  /**
+   * Copies the keys of the given {@link InputEvent} which belong to the dimension combination of the given
+   * context into the given keys, rounding down the timestamp to the time bucket of the dimension combination.
+   * @param keys The keys to copy into.
+   * @param inputEvent The {@link InputEvent} to copy the keys from.
+   * @param context The conversion context of the dimension combination.
+   */
+  private static void copyKeys(GPOMutable keys,
+                               InputEvent inputEvent,
+                               DimensionsConversionContext context)
+  {
     GPOUtils.indirectCopy(keys, inputEvent.getKeys(), context.indexSubsetKeys);
 
     if(context.outputTimebucketIndex >= 0) {
@@ -137,13 +178,33 @@ public abstract class AbstractIncrementalAggregator implements IncrementalAggreg
       keys.getFieldsLong()[context.outputTimestampIndex] =
       timeBucket.roundDown(inputEvent.getKeys().getFieldsLong()[context.inputTimestampIndex]);
     }
+  }
 
-    EventKey eventKey = new EventKey(context.schemaID,
-                                     context.dimensionsDescriptorID,
-                                     context.aggregatorID,
-                                     keys);
+  /**
+   * Takes an aggregate from the recycled aggregates of the given context. Aggregates of other
+   * dimension combinations or aggregators are dropped, since their keys and aggregates have other fields.
+   * @param context The conversion context to take a recycled aggregate from.
+   * @return A recycled aggregate or null if there is none.
+   */
+  private static Aggregate pollRecycledAggregate(DimensionsConversionContext context)
+  {
+    if(context.recycledAggregates == null) {
+      return null;
+    }
 
-    return eventKey;
+    Aggregate aggregate;
+
+    while((aggregate = context.recycledAggregates.poll()) != null) {
+      EventKey eventKey = aggregate.getEventKey();
+
+      if(eventKey.getDimensionDescriptorID() == context.dimensionsDescriptorID &&
+         eventKey.getAggregatorID() == context.aggregatorID &&
+         eventKey.getSchemaID() == context.schemaID) {
+        return aggregate;
+      }
+    }
+
+    return null;
   }
 
   private static final Logger LOG = LoggerFactory.getLogger(AbstractIncrementalAggregator.class);
@@ -9,12 +9,9 @@ import java.util.Map;
 
 import com.google.common.collect.Maps;
 
-import com.datatorrent.lib.appdata.gpo.GPOMutable;
-import com.datatorrent.lib.appdata.gpo.GPOUtils;
 import com.datatorrent.lib.appdata.schemas.FieldsDescriptor;
 import com.datatorrent.lib.appdata.schemas.Type;
 import com.datatorrent.lib.dimensions.DimensionsEvent.Aggregate;
-import com.datatorrent.lib.dimensions.DimensionsEvent.EventKey;
 import com.datatorrent.lib.dimensions.DimensionsEvent.InputEvent;
 
 /**
@@ -49,15 +46,11 @@ public class AggregatorCount extends AbstractIncrementalAggregator
   public Aggregate getGroup(InputEvent src, int aggregatorIndex)
   {
     src.used = true;
-    GPOMutable aggregates = new GPOMutable(context.aggregateDescriptor);
-    GPOMutable keys = new GPOMutable(context.keyDescriptor);
-    GPOUtils.indirectCopy(keys, src.getKeys(), context.indexSubsetKeys);
+    Aggregate aggregate = createAggregate(src,
+                                          context,
+                                          aggregatorIndex);
 
-    EventKey eventKey = createEventKey(src,
-                                       context,
-                                       aggregatorIndex);
-
-    long[] longFields = aggregates.getFieldsLong();
+    long[] longFields = aggregate.getAggregates().getFieldsLong();
 
     for(int index = 0;
         index < longFields.length;
@@ -65,8 +58,7 @@ public class AggregatorCount extends AbstractIncrementalAggregator
       longFields[index] = 0;
     }
 
-    return new Aggregate(eventKey,
-                         aggregates);
+    return aggregate;
   }
 
   @Override
@@ -19,6 +19,11 @@ import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.validation.constraints.Min;
 
@@ -36,10 +41,24 @@ import gnu.trove.strategy.HashingStrategy;
 
 import com.datatorrent.api.*;
 import com.datatorrent.api.Context.OperatorContext;
+import com.datatorrent.common.util.NameableThreadFactory;
 
 /**
  * <p>An implementation of an operator that computes dimensions of events. </p>
  * <p>
+ * With more than one {@link #setAggregationThreads(int) aggregation thread} the aggregators are split into shards that
+ * are aggregated by their own thread. Tuples are handed over to the shards in batches and the shards are drained at the
+ * end of the window, the aggregates are emitted in the same order as with a single thread. The aggregators need to
+ * tolerate that the same tuple is aggregated concurrently by aggregators of other shards, otherwise the tuples are
+ * passed separately to each shard with {@link #processInputTuple(int, Object)}. A {@link BatchListener} gets the
+ * batches of a shard back on the operator thread once they were aggregated.
+ * </p>
+ * <p>
+ * With an {@link #setEmitIntervalWindows(int) emit interval} of more than one window the aggregates are kept across
+ * windows and only emitted at the end of every n-th window, which reduces the number of times downstream operators
+ * receive the same group. The held aggregates are part of the checkpointed state.
+ * </p>
+ * <p>
  * @displayName Dimension Computation
  * @category Stats and Aggregations
  * @tags event, dimension, aggregation, computation
@@ -75,11 +94,77 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
 
   protected void processInputTuple(EVENT tuple)
   {
+    if (shardCount > 1) {
+      for (int shard = 0; shard < shardCount; shard++) {
+        processInputTuple(shard, tuple);
+      }
+      return;
+    }
     for (int i = 0; i < aggregatorMaps.length; i++) {
       aggregatorMaps[i].add(tuple, i);
     }
   }
 
+  /**
+   * Adds the tuple to the batch of the aggregators of a shard. The shard owns the aggregators whose index modulo the
+   * number of shards is the shard index.
+   *
+   * @param shard index of the shard, less than {@link #getShardCount()}.
+   * @param tuple tuple which is only aggregated by the aggregators of the shard.
+   */
+  public void processInputTuple(int shard, EVENT tuple)
+  {
+    List<EVENT> batch = shardBatches.get(shard);
+    batch.add(tuple);
+    if (batch.size() >= batchSize) {
+      submitBatch(shard);
+    }
+  }
+
+  private void submitBatch(final int shard)
+  {
+    final List<EVENT> batch = shardBatches.get(shard);
+    if (batch.isEmpty()) {
+      return;
+    }
+    shardBatches.set(shard, new ArrayList<EVENT>(batchSize));
+
+    Deque<Future<List<EVENT>>> tasks = shardTasks.get(shard);
+    while (!tasks.isEmpty() && (tasks.size() >= MAX_PENDING_BATCHES || tasks.peek().isDone())) {
+      completeTask(tasks.poll());
+    }
+    tasks.add(shardExecutors[shard].submit(new Callable<List<EVENT>>()
+    {
+      @Override
+      public List<EVENT> call()
+      {
+        for (EVENT tuple : batch) {
+          for (int i = shard; i < aggregatorMaps.length; i += shardCount) {
+            aggregatorMaps[i].add(tuple, i);
+          }
+        }
+        return batch;
+      }
+    }));
+  }
+
+  private void completeTask(Future<List<EVENT>> task)
+  {
+    List<EVENT> batch;
+    try {
+      batch = task.get();
+    }
+    catch (InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+    catch (ExecutionException ex) {
+      throw new RuntimeException("Aggregation failed", ex.getCause());
+    }
+    if (batchListener != null) {
+      batchListener.batchAggregated(batch);
+    }
+  }
+
   /**
    * Input data port that takes an event.
    */
@@ -97,6 +182,14 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
     int getAggregatorIndex();
   }
 
+  /**
+   * Receives the batches of tuples which were aggregated by a shard, on the operator thread.
+   */
+  public static interface BatchListener<EVENT>
+  {
+    void batchAggregated(List<EVENT> batch);
+  }
+
   public static interface Aggregator<EVENT, AGGREGATE extends AggregateEvent> extends HashingStrategy<EVENT>
   {
     AGGREGATE getGroup(EVENT src, int aggregatorIndex);
@@ -107,6 +200,22 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
   }
 
   private AggregatorMap<EVENT, AGGREGATE>[] aggregatorMaps;
+  @Min(1)
+  private int aggregationThreads = 1;
+  @Min(1)
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  @Min(1)
+  private int emitIntervalWindows = 1;
+  /**
+   * Number of application windows begun, counted because window ids are not consecutive with an application window
+   * count above one.
+   */
+  private long windowCount;
+  private transient int shardCount = 1;
+  private transient ExecutorService[] shardExecutors;
+  private transient List<List<EVENT>> shardBatches;
+  private transient List<Deque<Future<List<EVENT>>>> shardTasks;
+  private transient BatchListener<EVENT> batchListener;
 
   /**
    * Set the dimensions which should each get the tuples going forward.
@@ -136,14 +245,124 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
     return aggregators;
   }
 
+  /**
+   * Sets the number of threads that aggregate the tuples, each thread aggregates a shard of the aggregators. The
+   * number of shards is limited by the number of aggregators. 1 (default) aggregates on the operator thread.
+   *
+   * @param aggregationThreads
+   */
+  public void setAggregationThreads(int aggregationThreads)
+  {
+    this.aggregationThreads = aggregationThreads;
+  }
+
+  public int getAggregationThreads()
+  {
+    return aggregationThreads;
+  }
+
+  /**
+   * Sets the number of tuples that are handed over to the thread of a shard at once.
+   *
+   * @param batchSize
+   */
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = batchSize;
+  }
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  /**
+   * Sets the listener which gets the batches of the shards back once they were aggregated, so that the tuples which
+   * did not become keys of groups can be reused.
+   *
+   * @param batchListener
+   */
+  public void setBatchListener(BatchListener<EVENT> batchListener)
+  {
+    this.batchListener = batchListener;
+  }
+
+  /**
+   * Sets the number of application windows for which the aggregates are kept before they are emitted. The application
+   * windows are counted as part of the checkpointed state and handed to new partitions, so that all partitions emit in
+   * the same windows. 1 (default) emits the aggregates at the end of every window.
+   *
+   * @param emitIntervalWindows
+   */
+  public void setEmitIntervalWindows(int emitIntervalWindows)
+  {
+    this.emitIntervalWindows = emitIntervalWindows;
+  }
+
+  public int getEmitIntervalWindows()
+  {
+    return emitIntervalWindows;
+  }
+
+  /**
+   * @return true if the aggregates are emitted at the end of the current application window; false if they are kept.
+   */
+  public boolean isEmitWindow()
+  {
+    return emitIntervalWindows <= 1 || windowCount % emitIntervalWindows == 0;
+  }
+
+  /**
+   * Adds the aggregates kept by the other operator to the aggregates of this operator and continues its count of
+   * windows. Both operators need to have the same aggregators in the same order, the other operator is typically
+   * restored from a checkpoint.
+   *
+   * @param other operator whose aggregates are taken over.
+   */
+  public void transferAggregates(DimensionsComputation<EVENT, AGGREGATE> other)
+  {
+    windowCount = other.windowCount;
+    if (other.aggregatorMaps == null) {
+      return;
+    }
+    if (aggregatorMaps == null || aggregatorMaps.length != other.aggregatorMaps.length) {
+      throw new IllegalArgumentException("The aggregators do not match");
+    }
+    for (int i = 0; i < aggregatorMaps.length; i++) {
+      aggregatorMaps[i].putAll(other.aggregatorMaps[i]);
+    }
+  }
+
+  /**
+   * @return the number of shards of aggregators that are aggregated in parallel, known after setup.
+   */
+  public int getShardCount()
+  {
+    return shardCount;
+  }
+
   @Override
   public void beginWindow(long windowId)
   {
+    windowCount++;
   }
 
   @Override
   public void endWindow()
   {
+    if (shardCount > 1) {
+      for (int shard = 0; shard < shardCount; shard++) {
+        submitBatch(shard);
+      }
+      for (Deque<Future<List<EVENT>>> tasks : shardTasks) {
+        while (!tasks.isEmpty()) {
+          completeTask(tasks.poll());
+        }
+      }
+    }
+    if (!isEmitWindow()) {
+      return;
+    }
     for (AggregatorMap<EVENT, AGGREGATE> dimension : aggregatorMaps) {
       for (AGGREGATE value : dimension.values()) {
         output.emit(value);
@@ -155,11 +374,34 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
   @Override
   public void setup(OperatorContext context)
   {
+    if (aggregatorMaps != null) {
+      for (AggregatorMap<EVENT, AGGREGATE> aggregatorMap : aggregatorMaps) {
+        aggregatorMap.restoreAggregator();
+      }
+    }
+    shardCount = aggregatorMaps == null ? 1 : Math.max(1, Math.min(aggregationThreads, aggregatorMaps.length));
+    if (shardCount > 1) {
+      shardExecutors = new ExecutorService[shardCount];
+      shardBatches = new ArrayList<List<EVENT>>(shardCount);
+      shardTasks = new ArrayList<Deque<Future<List<EVENT>>>>(shardCount);
+      for (int shard = 0; shard < shardCount; shard++) {
+        shardExecutors[shard] = Executors.newSingleThreadExecutor(new NameableThreadFactory("DimensionsComputation-" + shard));
+        shardBatches.add(new ArrayList<EVENT>(batchSize));
+        shardTasks.add(new ArrayDeque<Future<List<EVENT>>>());
+      }
+      logger.debug("aggregating {} aggregators in {} shards", aggregatorMaps.length, shardCount);
+    }
   }
 
   @Override
   public void teardown()
   {
+    if (shardExecutors != null) {
+      for (ExecutorService executor : shardExecutors) {
+        executor.shutdownNow();
+      }
+      shardExecutors = null;
+    }
   }
 
   public void transferDimension(Aggregator<EVENT, AGGREGATE> aggregator, DimensionsComputation<EVENT, AGGREGATE> other)
@@ -261,9 +503,14 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
 
       ArrayList<Partition<DimensionsComputation<EVENT, AGGREGATE>>> returnValue = new ArrayList<Partition<DimensionsComputation<EVENT, AGGREGATE>>>(newPartitionsCount);
 
+      DimensionsComputation<EVENT, AGGREGATE> template = partitions.iterator().next().getPartitionedInstance();
       Iterator<Entry<Aggregator<EVENT, AGGREGATE>, DimensionsComputation<EVENT, AGGREGATE>>> iterator = map.entrySet().iterator();
       for (int i = 0; i < newPartitionsCount; i++) {
         DimensionsComputation<EVENT, AGGREGATE> dc = new DimensionsComputation<EVENT, AGGREGATE>();
+        dc.setAggregationThreads(template.getAggregationThreads());
+        dc.setBatchSize(template.getBatchSize());
+        dc.setEmitIntervalWindows(template.getEmitIntervalWindows());
+        dc.windowCount = template.windowCount;
         for (int j = 0; j < dimensionsPerPartition[i]; j++) {
           Entry<Aggregator<EVENT,AGGREGATE>, DimensionsComputation<EVENT, AGGREGATE>> next = iterator.next();
           dc.transferDimension(next.getKey(), next.getValue());
@@ -346,6 +593,17 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
       this.aggregator = aggregator;
     }
 
+    /**
+     * The aggregator is not serialized by kryo, it is the hashing strategy of the map.
+     */
+    @SuppressWarnings("unchecked")
+    void restoreAggregator()
+    {
+      if (aggregator == null) {
+        aggregator = (Aggregator<EVENT, AGGREGATE>) strategy;
+      }
+    }
+
     public void add(EVENT tuple, int aggregatorIdx)
     {
       AGGREGATE aggregateEvent = get(tuple);
@@ -422,6 +680,9 @@ public class DimensionsComputation<EVENT, AGGREGATE extends DimensionsComputatio
     return aggregatorMaps != null ? Arrays.hashCode(aggregatorMaps) : 0;
   }
 
+  private static final int DEFAULT_BATCH_SIZE = 1024;
+  //batches queued per shard before the operator thread waits for the shard
+  private static final int MAX_PENDING_BATCHES = 4;
   private static final Logger logger = LoggerFactory.getLogger(DimensionsComputation.class);
 
 }
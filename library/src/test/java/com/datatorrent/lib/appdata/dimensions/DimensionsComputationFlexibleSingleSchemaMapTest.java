@@ -4,10 +4,13 @@
  */
 package com.datatorrent.lib.appdata.dimensions;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -112,6 +115,279 @@ public class DimensionsComputationFlexibleSingleSchemaMapTest
     Assert.assertEquals(expectedAE.getAggregates(), sink.collectedTuples.get(0).getAggregates());
   }
 
+  @Test
+  public void parallelTest() throws Exception
+  {
+    String eventSchema = SchemaUtils.jarResourceFileToString("adsGenericEventSchema.json");
+
+    DimensionsComputationFlexibleSingleSchemaMap serial = new DimensionsComputationFlexibleSingleSchemaMap();
+    serial.setConfigurationSchemaJSON(eventSchema);
+    CollectorTestSink<DimensionsEvent> serialSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(serial.output, serialSink);
+
+    DimensionsComputationFlexibleSingleSchemaMap parallel = new DimensionsComputationFlexibleSingleSchemaMap();
+    parallel.setConfigurationSchemaJSON(eventSchema);
+    parallel.setAggregationThreads(4);
+    parallel.setBatchSize(3);
+    CollectorTestSink<DimensionsEvent> parallelSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(parallel.output, parallelSink);
+
+    serial.setup(null);
+    parallel.setup(null);
+
+    for (long windowId = 0; windowId < 2; windowId++) {
+      serial.beginWindow(windowId);
+      parallel.beginWindow(windowId);
+      for (int eventCounter = 0; eventCounter < 20; eventCounter++) {
+        Map<String, Object> ai = createAdInfoEvent1();
+        ai.put("location", "LOC" + (eventCounter % 3));
+        ai.put("clicks", (long) eventCounter);
+        ai.put("time", 60000L * (eventCounter % 2));
+        serial.input.put(ai);
+        parallel.input.put(Maps.newHashMap(ai));
+      }
+      serial.endWindow();
+      parallel.endWindow();
+    }
+
+    serial.teardown();
+    parallel.teardown();
+
+    Assert.assertFalse("Expected aggregates", serialSink.collectedTuples.isEmpty());
+    Assert.assertEquals(serialSink.collectedTuples, parallelSink.collectedTuples);
+    for (int index = 0; index < serialSink.collectedTuples.size(); index++) {
+      Assert.assertEquals(serialSink.collectedTuples.get(index).getAggregates(),
+                          parallelSink.collectedTuples.get(index).getAggregates());
+    }
+  }
+
+  @Test
+  public void recycleTest() throws Exception
+  {
+    String eventSchema = SchemaUtils.jarResourceFileToString("adsGenericEventSchema.json");
+
+    DimensionsComputationFlexibleSingleSchemaMap expected = new DimensionsComputationFlexibleSingleSchemaMap();
+    expected.setConfigurationSchemaJSON(eventSchema);
+    CollectorTestSink<DimensionsEvent> expectedSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(expected.output, expectedSink);
+
+    DimensionsComputationFlexibleSingleSchemaMap recycling = new DimensionsComputationFlexibleSingleSchemaMap();
+    recycling.setConfigurationSchemaJSON(eventSchema);
+    recycling.setRecycleAggregates(true);
+    CollectorTestSink<DimensionsEvent> recyclingSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(recycling.output, recyclingSink);
+
+    expected.setup(null);
+    recycling.setup(null);
+
+    Set<DimensionsEvent> previousAggregates = Sets.newIdentityHashSet();
+
+    for (long windowId = 0; windowId < 3; windowId++) {
+      expected.beginWindow(windowId);
+      recycling.beginWindow(windowId);
+      for (int eventCounter = 0; eventCounter < 10; eventCounter++) {
+        Map<String, Object> ai = createAdInfoEvent2();
+        ai.put("advertiser", "ADV" + ((eventCounter + windowId) % 4));
+        ai.put("impressions", windowId * eventCounter);
+        ai.put("time", 60000L * windowId);
+        expected.input.put(ai);
+        recycling.input.put(Maps.newHashMap(ai));
+      }
+      expected.endWindow();
+      recycling.endWindow();
+
+      //aggregates are only valid until the next window when they are recycled
+      Assert.assertEquals(expectedSink.collectedTuples, recyclingSink.collectedTuples);
+      for (int index = 0; index < expectedSink.collectedTuples.size(); index++) {
+        Assert.assertEquals(expectedSink.collectedTuples.get(index).getAggregates(),
+                            recyclingSink.collectedTuples.get(index).getAggregates());
+      }
+
+      if (windowId > 0) {
+        Assert.assertTrue("Aggregates reused", previousAggregates.containsAll(recyclingSink.collectedTuples));
+      }
+
+      previousAggregates.clear();
+      previousAggregates.addAll(recyclingSink.collectedTuples);
+      expectedSink.clear();
+      recyclingSink.clear();
+    }
+
+    expected.teardown();
+    recycling.teardown();
+  }
+
+  @Test
+  public void columnarTest() throws Exception
+  {
+    String eventSchema = SchemaUtils.jarResourceFileToString("adsGenericEventSchemaAdditional.json");
+
+    DimensionsComputationFlexibleSingleSchemaMap expected = new DimensionsComputationFlexibleSingleSchemaMap();
+    expected.setConfigurationSchemaJSON(eventSchema);
+    CollectorTestSink<DimensionsEvent> expectedSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(expected.output, expectedSink);
+
+    DimensionsComputationFlexibleSingleSchemaMap columnar = new DimensionsComputationFlexibleSingleSchemaMap();
+    columnar.setConfigurationSchemaJSON(eventSchema);
+    columnar.setColumnarAggregation(true);
+    CollectorTestSink<DimensionsEvent> columnarSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(columnar.output, columnarSink);
+
+    expected.setup(null);
+    columnar.setup(null);
+
+    String[] advertisers = new String[]{"starbucks", "safeway", "mcdonalds"};
+    String[] locations = new String[]{"SKY", "CA", "AL", "N"};
+
+    for (long windowId = 0; windowId < 2; windowId++) {
+      expected.beginWindow(windowId);
+      columnar.beginWindow(windowId);
+      for (int eventCounter = 0; eventCounter < 200; eventCounter++) {
+        Map<String, Object> ai = createAdInfoEvent1();
+        ai.put("advertiser", advertisers[eventCounter % advertisers.length]);
+        ai.put("location", locations[eventCounter % locations.length]);
+        ai.put("impressions", (long) (eventCounter * 7 % 13));
+        ai.put("clicks", (long) (eventCounter % 5));
+        ai.put("cost", eventCounter * 0.5);
+        ai.put("time", 60000L * (eventCounter % 3) + windowId);
+        expected.input.put(ai);
+        columnar.input.put(Maps.newHashMap(ai));
+      }
+      expected.endWindow();
+      columnar.endWindow();
+
+      Assert.assertEquals(expectedSink.collectedTuples.size(), columnarSink.collectedTuples.size());
+      Assert.assertEquals(toAggregatesMap(expectedSink.collectedTuples), toAggregatesMap(columnarSink.collectedTuples));
+
+      expectedSink.clear();
+      columnarSink.clear();
+    }
+
+    expected.teardown();
+    columnar.teardown();
+  }
+
+  @Test
+  public void emitIntervalTest() throws Exception
+  {
+    String eventSchema = SchemaUtils.jarResourceFileToString("adsGenericEventSchemaAdditional.json");
+
+    DimensionsComputationFlexibleSingleSchemaMap expected = new DimensionsComputationFlexibleSingleSchemaMap();
+    expected.setConfigurationSchemaJSON(eventSchema);
+    CollectorTestSink<DimensionsEvent> expectedSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(expected.output, expectedSink);
+
+    DimensionsComputationFlexibleSingleSchemaMap interval = new DimensionsComputationFlexibleSingleSchemaMap();
+    interval.setConfigurationSchemaJSON(eventSchema);
+    interval.setEmitIntervalWindows(4);
+    CollectorTestSink<DimensionsEvent> intervalSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(interval.output, intervalSink);
+
+    expected.setup(null);
+    interval.setup(null);
+
+    String[] advertisers = new String[]{"starbucks", "safeway", "mcdonalds"};
+    expected.beginWindow(0L);
+
+    for (long windowId = 0; windowId < 4; windowId++) {
+      if (windowId == 2) {
+        //the kept aggregates are restored from the checkpoint
+        interval = TestUtils.clone(new Kryo(), interval);
+        TestUtils.setSink(interval.output, intervalSink);
+        interval.setup(null);
+      }
+
+      interval.beginWindow(windowId);
+      for (int eventCounter = 0; eventCounter < 30; eventCounter++) {
+        Map<String, Object> ai = createAdInfoEvent1();
+        ai.put("advertiser", advertisers[(int) ((eventCounter + windowId) % advertisers.length)]);
+        ai.put("impressions", windowId * 100 + eventCounter);
+        ai.put("time", 60000L * windowId);
+        expected.input.put(ai);
+        interval.input.put(Maps.newHashMap(ai));
+      }
+      interval.endWindow();
+
+      if (windowId < 3) {
+        Assert.assertTrue("Aggregates kept in window " + windowId, intervalSink.collectedTuples.isEmpty());
+      }
+    }
+
+    expected.endWindow();
+
+    Assert.assertEquals(toAggregatesMap(expectedSink.collectedTuples), toAggregatesMap(intervalSink.collectedTuples));
+
+    expected.teardown();
+    interval.teardown();
+  }
+
+  @Test
+  public void emitIntervalApplicationWindowsTest() throws Exception
+  {
+    String eventSchema = SchemaUtils.jarResourceFileToString("adsGenericEventSchemaAdditional.json");
+    //with an APPLICATION_WINDOW_COUNT of 4 the ids of consecutive application windows are 4 apart
+    final long applicationWindowCount = 4L;
+
+    DimensionsComputationFlexibleSingleSchemaMap expected = new DimensionsComputationFlexibleSingleSchemaMap();
+    expected.setConfigurationSchemaJSON(eventSchema);
+    CollectorTestSink<DimensionsEvent> expectedSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(expected.output, expectedSink);
+
+    DimensionsComputationFlexibleSingleSchemaMap interval = new DimensionsComputationFlexibleSingleSchemaMap();
+    interval.setConfigurationSchemaJSON(eventSchema);
+    interval.setEmitIntervalWindows(2);
+    CollectorTestSink<DimensionsEvent> intervalSink = new CollectorTestSink<DimensionsEvent>();
+    TestUtils.setSink(interval.output, intervalSink);
+
+    expected.setup(null);
+    interval.setup(null);
+
+    String[] advertisers = new String[]{"starbucks", "safeway", "mcdonalds"};
+
+    for (int emission = 0; emission < 2; emission++) {
+      expected.beginWindow(emission);
+
+      for (int window = 0; window < 2; window++) {
+        long windowId = (emission * 2 + window) * applicationWindowCount;
+        interval.beginWindow(windowId);
+        for (int eventCounter = 0; eventCounter < 30; eventCounter++) {
+          Map<String, Object> ai = createAdInfoEvent1();
+          ai.put("advertiser", advertisers[(int) ((eventCounter + windowId) % advertisers.length)]);
+          ai.put("impressions", windowId * 100 + eventCounter);
+          expected.input.put(ai);
+          interval.input.put(Maps.newHashMap(ai));
+        }
+        interval.endWindow();
+
+        if (window == 0) {
+          Assert.assertTrue("Aggregates kept in window " + windowId, intervalSink.collectedTuples.isEmpty());
+        }
+      }
+
+      expected.endWindow();
+
+      Assert.assertFalse("Aggregates emitted", intervalSink.collectedTuples.isEmpty());
+      Assert.assertEquals(toAggregatesMap(expectedSink.collectedTuples), toAggregatesMap(intervalSink.collectedTuples));
+      expectedSink.clear();
+      intervalSink.clear();
+    }
+
+    expected.teardown();
+    interval.teardown();
+  }
+
+  private Map<EventKey, GPOMutable> toAggregatesMap(List<DimensionsEvent> events)
+  {
+    Map<EventKey, GPOMutable> aggregatesMap = Maps.newHashMap();
+
+    for (DimensionsEvent event : events) {
+      Assert.assertNull("Duplicate aggregate " + event.getEventKey(),
+                        aggregatesMap.put(event.getEventKey(), event.getAggregates()));
+    }
+
+    return aggregatesMap;
+  }
+
   private Map<String, Object> createAdInfoEvent1()
   {
     Map<String, Object> ai = Maps.newHashMap();
@@ -16,6 +16,8 @@
 package com.datatorrent.lib.bucket;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Exchanger;
 
@@ -27,6 +29,7 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -149,6 +152,114 @@ public class BucketManagerTest
     }
   }
 
+  @Test
+  public void testNewEventIfAbsent() throws InterruptedException
+  {
+    int bucket = 1000;
+    long now = System.currentTimeMillis();
+    manager.setKeyFilterExpectedEvents(100);
+    try {
+      Assert.assertFalse("no filter before load", manager.newEventIfAbsent(bucket, new DummyEvent(1, now)));
+      manager.loadBucketData(bucket);
+      eventBucketExchanger.exchange(null);
+      manager.newEvent(bucket, new DummyEvent(1, now));
+      Assert.assertFalse("known key", manager.newEventIfAbsent(bucket, new DummyEvent(1, now)));
+      Assert.assertTrue("new key", manager.newEventIfAbsent(bucket, new DummyEvent(2, now)));
+      Assert.assertFalse("added key", manager.newEventIfAbsent(bucket, new DummyEvent(2, now)));
+      Assert.assertFalse("other bucket", manager.newEventIfAbsent(bucket + 1, new DummyEvent(3, now)));
+    }
+    finally {
+      manager.setKeyFilterExpectedEvents(0);
+    }
+  }
+
+  @Test
+  public void testConcurrentLoaders() throws Exception
+  {
+    String path = applicationPath + "/concurrent";
+    final List<Long> loadedBuckets = Collections.synchronizedList(Lists.<Long>newArrayList());
+    BucketManagerImpl<DummyEvent> concurrentManager = new BucketManagerImpl<DummyEvent>();
+    concurrentManager.setNoOfBuckets(100);
+    concurrentManager.setNoOfBucketsInMemory(100);
+    concurrentManager.setMaxNoOfBucketsInMemory(100);
+    concurrentManager.setLoaderThreads(4);
+    HdfsBucketStore<DummyEvent> bucketStore = new HdfsBucketStore<DummyEvent>();
+    bucketStore.setMinSegmentsToCompact(2);
+    concurrentManager.setBucketStore(bucketStore);
+    bucketStore.setConfiguration(0, path, Sets.newHashSet(0), 0);
+    concurrentManager.startService(new BucketManager.Listener<DummyEvent>()
+    {
+      @Override
+      public void bucketLoaded(AbstractBucket<DummyEvent> bucket)
+      {
+        loadedBuckets.add(bucket.bucketKey);
+      }
+
+      @Override
+      public void bucketOffLoaded(long bucketKey)
+      {
+      }
+    });
+
+    FileSystem fs = FileSystem.newInstance(new Path(bucketStore.bucketRoot).toUri(), new Configuration());
+    try {
+      //every window file has data of all the buckets
+      for (long window = 1; window <= 3; window++) {
+        Map<Integer, Map<Object, DummyEvent>> windowData = Maps.newHashMap();
+        for (int i = 0; i < 20; i++) {
+          DummyEvent event = new DummyEvent((int) (i * 10 + window), window);
+          Map<Object, DummyEvent> bucketData = Maps.newHashMap();
+          bucketData.put(event.getEventKey(), event);
+          windowData.put(i, bucketData);
+        }
+        bucketStore.storeBucketData(window, window, windowData);
+      }
+
+      //buckets are fetched and compacted concurrently
+      for (int i = 0; i < 20; i++) {
+        concurrentManager.loadBucketData(i);
+        concurrentManager.updateWaitingEvents(i, i);
+      }
+      concurrentManager.blockUntilAllRequestsServiced();
+      Assert.assertEquals("loaded buckets", 20, Sets.newHashSet(loadedBuckets).size());
+      for (int i = 0; i < 20; i++) {
+        AbstractBucket<DummyEvent> bucket = concurrentManager.getBucket(i);
+        Assert.assertNotNull("bucket " + i, bucket);
+        Assert.assertTrue("loaded " + i, bucket.isDataOnDiskLoaded());
+        Assert.assertEquals("events " + i, 3, bucket.countOfWrittenEvents());
+        for (int window = 1; window <= 3; window++) {
+          Assert.assertEquals("event " + i, new DummyEvent(i * 10 + window, window), bucket.getValueFromWrittenPart(i * 10 + window));
+        }
+        Assert.assertTrue("compacted segment " + i, fs.exists(bucketStore.getCompactedSegmentPath(i, 3)));
+      }
+
+      bucketStore.checkpointed(3);
+      bucketStore.committed(3);
+      for (int window = 1; window <= 3; window++) {
+        Assert.assertFalse("window file " + window, fs.exists(new Path(bucketStore.bucketRoot, Integer.toString(window))));
+      }
+
+      //buckets at the same indices delete the compacted segments concurrently
+      loadedBuckets.clear();
+      for (int i = 100; i < 120; i++) {
+        concurrentManager.loadBucketData(i);
+        concurrentManager.updateWaitingEvents(i, i);
+      }
+      concurrentManager.blockUntilAllRequestsServiced();
+      Assert.assertEquals("loaded buckets", 20, Sets.newHashSet(loadedBuckets).size());
+      for (int i = 0; i < 20; i++) {
+        AbstractBucket<DummyEvent> bucket = concurrentManager.getBucket(100 + i);
+        Assert.assertNotNull("bucket " + (100 + i), bucket);
+        Assert.assertEquals("events " + (100 + i), 0, bucket.countOfWrittenEvents());
+        Assert.assertFalse("compacted segment " + i, fs.exists(bucketStore.getCompactedSegmentPath(i, 3)));
+      }
+    }
+    finally {
+      fs.close();
+      concurrentManager.shutdownService();
+    }
+  }
+
   @Test
   public void testClone() throws CloneNotSupportedException, InterruptedException
   {
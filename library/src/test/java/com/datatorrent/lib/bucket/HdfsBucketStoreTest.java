@@ -143,6 +143,54 @@ public class HdfsBucketStoreTest
     Assert.assertTrue("latest value", retrievedEvent.equals(newEvent));
   }
 
+  @Test
+  public void testCompaction() throws Exception
+  {
+    testMeta.bucketStore.setWriteEventKeysOnly(false);
+    testMeta.bucketStore.setMinSegmentsToCompact(2);
+    testMeta.bucketStore.setup();
+    DummyEvent newEvent = new DummyEvent(0, System.currentTimeMillis());
+    //store data of buckets 0 and 1 for window 0
+    testMeta.util.storeBucket(0);
+
+    //store data of bucket 0 for window 1
+    Map<Integer, Map<Object, DummyEvent>> windowData = Maps.newHashMap();
+    Map<Object, DummyEvent> bucketData = Maps.newHashMap();
+    bucketData.put(newEvent.getEventKey(), newEvent);
+    windowData.put(0, bucketData);
+    testMeta.bucketStore.storeBucketData(1, 0, windowData);
+
+    Map<Object, DummyEvent> fetchedData = testMeta.bucketStore.fetchBucket(0);
+    Assert.assertEquals("latest value", newEvent, fetchedData.get(newEvent.getEventKey()));
+    Assert.assertEquals("segments", Sets.newHashSet(1L), testMeta.bucketStore.bucketPositions[0].keySet());
+    Assert.assertTrue("compacted segment", testMeta.fs.exists(testMeta.bucketStore.getCompactedSegmentPath(0, 1)));
+    Assert.assertTrue("window file kept until committed", testMeta.fs.exists(new Path(testMeta.rootBucketPath, "1")));
+    Assert.assertTrue("window file referenced by bucket 1", testMeta.fs.exists(new Path(testMeta.rootBucketPath, "0")));
+
+    Assert.assertEquals("fetch from compacted segment", fetchedData, testMeta.bucketStore.fetchBucket(0));
+    Assert.assertEquals("bucket 1", testMeta.data.get(1).keySet(), testMeta.bucketStore.fetchBucket(1).keySet());
+
+    testMeta.bucketStore.checkpointed(1);
+    Assert.assertTrue("window file kept until committed", testMeta.fs.exists(new Path(testMeta.rootBucketPath, "1")));
+    testMeta.bucketStore.committed(1);
+    Assert.assertFalse("window file of compacted bucket deleted", testMeta.fs.exists(new Path(testMeta.rootBucketPath, "1")));
+    Assert.assertTrue("window file referenced by bucket 1", testMeta.fs.exists(new Path(testMeta.rootBucketPath, "0")));
+
+    //compact the segment with a new window
+    testMeta.bucketStore.storeBucketData(2, 0, windowData);
+    Assert.assertEquals("fetch after new window", fetchedData, testMeta.bucketStore.fetchBucket(0));
+    Assert.assertEquals("segments", Sets.newHashSet(2L), testMeta.bucketStore.bucketPositions[0].keySet());
+    Assert.assertTrue("previous segment kept until committed", testMeta.fs.exists(testMeta.bucketStore.getCompactedSegmentPath(0, 1)));
+    testMeta.bucketStore.checkpointed(2);
+    testMeta.bucketStore.committed(2);
+    Assert.assertFalse("previous segment deleted", testMeta.fs.exists(testMeta.bucketStore.getCompactedSegmentPath(0, 1)));
+    Assert.assertFalse("window file deleted", testMeta.fs.exists(new Path(testMeta.rootBucketPath, "2")));
+
+    testMeta.bucketStore.deleteBucket(0);
+    Assert.assertFalse("compacted segment deleted", testMeta.fs.exists(testMeta.bucketStore.getCompactedSegmentPath(0, 2)));
+    Assert.assertTrue("fetch after delete", testMeta.bucketStore.fetchBucket(0).isEmpty());
+  }
+
   public static class BucketStoreTestsUtil
   {
     protected final TestMeta meta;
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015 DataTorrent, Inc. ALL Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datatorrent.lib.bucket;
+package com.datatorrent.lib.bucket;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.google.common.collect.Maps;
+
+import com.datatorrent.lib.util.TestUtils;
+
+/**
+ * Tests for {@link PrimitiveKeyMap}
+ */
+public class PrimitiveKeyMapTest
+{
+  @Test
+  public void testLongKeys()
+  {
+    Random random = new Random(1);
+    testAgainstHashMap(new PrimitiveKeyMap<String>(), random, false);
+  }
+
+  @Test
+  public void testUUIDKeys()
+  {
+    Random random = new Random(2);
+    testAgainstHashMap(new PrimitiveKeyMap<String>(PrimitiveKeyMap.KeyType.UUID), random, true);
+  }
+
+  private void testAgainstHashMap(PrimitiveKeyMap<String> map, Random random, boolean uuid)
+  {
+    Map<Object, String> expected = Maps.newHashMap();
+    for (int i = 0; i < 100000; i++) {
+      Object key = uuid ? new UUID(random.nextInt(60), random.nextInt(60)) : Long.valueOf(random.nextInt(3000));
+      if (random.nextInt(3) == 0) {
+        Assert.assertEquals("remove " + key, expected.remove(key), map.remove(key));
+      }
+      else {
+        String value = random.nextBoolean() ? null : String.valueOf(i);
+        Assert.assertEquals("put " + key, expected.put(key, value), map.put(key, value));
+      }
+      Assert.assertEquals("size", expected.size(), map.size());
+    }
+    Assert.assertEquals("entries", expected, map);
+    Assert.assertEquals("entries", map, expected);
+  }
+
+  @Test
+  public void testKeysOnly()
+  {
+    PrimitiveKeyMap<DummyEvent> map = new PrimitiveKeyMap<DummyEvent>();
+    for (long i = 0; i < 100; i++) {
+      map.put(i, null);
+    }
+    Assert.assertEquals("size", 100, map.size());
+    Assert.assertTrue("contains", map.containsKey(99L));
+    Assert.assertFalse("other key class", map.containsKey(99));
+    Assert.assertNull("value", map.get(99L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedKey()
+  {
+    new PrimitiveKeyMap<DummyEvent>().put("key", null);
+  }
+
+  @Test
+  public void testSerialization()
+  {
+    PrimitiveKeyMap<DummyEvent> map = new PrimitiveKeyMap<DummyEvent>();
+    for (long i = 0; i < 10; i++) {
+      map.put(i, new DummyEvent((int)i, i));
+    }
+    Map<Object, DummyEvent> clone = TestUtils.clone(new Kryo(), map);
+    Assert.assertEquals("class", PrimitiveKeyMap.class, clone.getClass());
+    Assert.assertEquals("entries", map, clone);
+  }
+
+  @Test
+  public void testBucketKeys()
+  {
+    Bucket<DummyEvent> bucket = new Bucket<DummyEvent>(1, true);
+    bucket.addNewEvent(1L, null);
+    bucket.addNewEvent(2L, null);
+    Assert.assertEquals("unwritten events", 2, bucket.countOfUnwrittenEvents());
+    Assert.assertTrue("contains", bucket.getUnwrittenEvents().containsKey(2L));
+    bucket.transferDataFromMemoryToStore();
+    Assert.assertEquals("written events", 2, bucket.countOfWrittenEvents());
+  }
+}
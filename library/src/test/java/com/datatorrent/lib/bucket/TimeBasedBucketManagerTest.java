@@ -16,6 +16,11 @@
 package com.datatorrent.lib.bucket;
 
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.mutable.MutableLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -27,6 +32,7 @@ import org.junit.Test;
 
 import com.google.common.collect.Sets;
 
+import com.datatorrent.lib.counters.BasicCounters;
 import com.datatorrent.lib.helper.OperatorContextTestHelper;
 
 public class TimeBasedBucketManagerTest
@@ -61,6 +67,55 @@ public class TimeBasedBucketManagerTest
     Assert.assertEquals("valid event", bucket2, rBucket2);
   }
 
+  @Test
+  public void testPrefetch() throws InterruptedException
+  {
+    final BlockingQueue<Long> loadedBuckets = new LinkedBlockingQueue<Long>();
+    TestBucketManager<DummyEvent> prefetchManager = new TestBucketManager<DummyEvent>();
+    prefetchManager.setBucketSpanInMillis(BUCKET_SPAN);
+    prefetchManager.setPrefetchBuckets(2);
+    ExpirableHdfsBucketStore<DummyEvent> bucketStore = new ExpirableHdfsBucketStore<DummyEvent>();
+    prefetchManager.setBucketStore(bucketStore);
+    bucketStore.setConfiguration(0, applicationPath + "/prefetch", Sets.newHashSet(0), 0);
+    bucketStore.setup();
+    BasicCounters<MutableLong> counters = new BasicCounters<MutableLong>(MutableLong.class);
+    prefetchManager.setBucketCounters(counters);
+    prefetchManager.startService(new BucketManager.Listener<DummyEvent>()
+    {
+      @Override
+      public void bucketLoaded(AbstractBucket<DummyEvent> bucket)
+      {
+        loadedBuckets.add(bucket.bucketKey);
+      }
+
+      @Override
+      public void bucketOffLoaded(long bucketKey)
+      {
+      }
+    });
+
+    try {
+      long bucket1 = prefetchManager.getBucketKeyFor(new DummyEvent(1, prefetchManager.startOfBucketsInMillis + 10 * BUCKET_SPAN));
+      Assert.assertEquals("prefetched bucket", Long.valueOf(bucket1 + 1), loadedBuckets.poll(10, TimeUnit.SECONDS));
+      Assert.assertEquals("prefetched bucket", Long.valueOf(bucket1 + 2), loadedBuckets.poll(10, TimeUnit.SECONDS));
+
+      long bucket2 = prefetchManager.getBucketKeyFor(new DummyEvent(2, prefetchManager.startOfBucketsInMillis + 11 * BUCKET_SPAN));
+      Assert.assertEquals("next bucket", bucket1 + 1, bucket2);
+      Assert.assertNotNull("loaded", prefetchManager.getBucket(bucket2));
+      Assert.assertEquals("prefetched bucket", Long.valueOf(bucket1 + 3), loadedBuckets.poll(10, TimeUnit.SECONDS));
+      Assert.assertEquals("prefetched buckets", 3, counters.getCounter(AbstractTimeBasedBucketManager.CounterKeys.PREFETCHED_BUCKETS).longValue());
+      Assert.assertEquals("prefetch hits", 1, counters.getCounter(AbstractTimeBasedBucketManager.CounterKeys.PREFETCH_HITS).longValue());
+
+      //prefetching at the end of the span doesn't expire the oldest bucket of the span
+      long spanBuckets = prefetchManager.noOfBuckets - 2;
+      prefetchManager.getBucketKeyFor(new DummyEvent(3, prefetchManager.startOfBucketsInMillis + (spanBuckets - 1) * BUCKET_SPAN));
+      Assert.assertEquals("oldest bucket", 0, prefetchManager.getBucketKeyFor(new DummyEvent(4, prefetchManager.startOfBucketsInMillis)));
+    }
+    finally {
+      prefetchManager.shutdownService();
+    }
+  }
+
   @Test
   public void testClone() throws CloneNotSupportedException, InterruptedException
   {